@@ -0,0 +1,28 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral;
+
+import android.app.Application;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleConnectionManager;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.GattProfileCache;
+
+/**
+ * Holds what has to outlive any single Activity, such as open GATT connections
+ */
+public class BleApplication extends Application {
+    private BleConnectionManager mBleConnectionManager;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBleConnectionManager = new BleConnectionManager(this);
+        // start loading the cached GATT profiles in the background, well before the first connection
+        GattProfileCache.getInstance(this);
+    }
+
+    /**
+     * @return the connection manager shared by every Activity
+     */
+    public BleConnectionManager getBleConnectionManager() {
+        return mBleConnectionManager;
+    }
+}
@@ -21,11 +21,10 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
-import java.util.List;
-
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.adapters.BleGattProfileListAdapter;
-import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleCommManager;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleConnectionManager;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BlePeripheral;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BleGattProfile;
 
 /**
  * Connect to a BLE Peripherals, list its GATT services
@@ -39,7 +38,7 @@ public class ConnectActivity extends AppCompatActivity {
     public static final String PERIPHERAL_MAC_ADDRESS_KEY = "com.example.com.exampleble.PERIPHERAL_MAC_ADDRESS";
 
     /** Bluetooth Stuff **/
-    private BleCommManager mBleCommManager;
+    private BleConnectionManager mBleConnectionManager;
     private BlePeripheral mBlePeripheral;
 
     /** Functional stuff **/
@@ -80,8 +79,6 @@ public class ConnectActivity extends AppCompatActivity {
         loadUI();
         attachCallbacks();
 
-
-        mBlePeripheral = new BlePeripheral();
 /*
         mGattProfileListView.setOnChildClickListener(new ExpandableListView.OnChildClickListener() {
             @Override
@@ -193,30 +190,23 @@ public class ConnectActivity extends AppCompatActivity {
 
 
     /**
-     * Turn on Bluetooth radio
+     * Get the connection manager that keeps the link open for TalkActivity
      */
     public void initializeBluetooth() {
-        try {
-            mBleCommManager = new BleCommManager(this);
-        } catch (Exception e) {
-            Toast.makeText(this, "Could not initialize bluetooth", Toast.LENGTH_SHORT).show();
-            Log.e(TAG, e.getMessage());
-            finish();
-        }
+        mBleConnectionManager = ((BleApplication) getApplication()).getBleConnectionManager();
     }
 
 
     /**
-     * Connect to Peripheral
+     * Connect to Peripheral, or attach to the link if it is already open
      */
     public void connect() {
-        // grab the Peripheral Device address and attempt to connect
-        BluetoothDevice bluetoothDevice = mBleCommManager.getBluetoothAdapter().getRemoteDevice(mPeripheralMacAddress);
         mProgressSpinner.setVisible(true);
         try {
-            mBlePeripheral.connect(bluetoothDevice, mGattCallback, getApplicationContext());
+            mBlePeripheral = mBleConnectionManager.acquire(mPeripheralMacAddress, mGattCallback);
         } catch (Exception e) {
             mProgressSpinner.setVisible(false);
+            Toast.makeText(this, "Could not initialize bluetooth", Toast.LENGTH_SHORT).show();
             Log.e(TAG, "Error connecting to peripheral");
         }
     }
@@ -227,7 +217,18 @@ public class ConnectActivity extends AppCompatActivity {
     public void disconnect() {
         // disconnect from the Peripheral.
         mProgressSpinner.setVisible(true);
-        mBlePeripheral.disconnect();
+        mBleConnectionManager.disconnect(mPeripheralMacAddress);
+    }
+
+    /**
+     * Let go of the link.  It stays open for a moment in case another screen picks it up
+     */
+    @Override
+    protected void onDestroy() {
+        if (mBleConnectionManager != null) {
+            mBleConnectionManager.release(mPeripheralMacAddress, mGattCallback);
+        }
+        super.onDestroy();
     }
 
     /**
@@ -292,8 +293,8 @@ public class ConnectActivity extends AppCompatActivity {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             // There has been a connection or a disconnection with a Peripheral.
-            // If this is a connection, update the UI to reflect the change
-            // and discover the GATT profile of the connected Peripheral
+            // If this is a connection, update the UI to reflect the change.
+            // BleConnectionManager discovers the GATT profile of the connected Peripheral
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.v(TAG, "Connected to peripheral");
                 mBleConnected = true;
@@ -305,10 +306,8 @@ public class ConnectActivity extends AppCompatActivity {
                         onBleServiceDiscoveryStarted();
                     }
                 });
-
-                gatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                mBlePeripheral.close();
+                // BleConnectionManager closes the connection
                 mBleConnected = false;
                 if (mLeaveActivity) quitActivity();
             }
@@ -320,64 +319,22 @@ public class ConnectActivity extends AppCompatActivity {
         @Override
         public void onServicesDiscovered(BluetoothGatt bluetoothGatt, int status) {
 
-            // if services were discovered, then let's iterate through them and display them on screen
+            // Build the whole profile here, off the UI thread, and show it with a single post
+            final BleGattProfile profile;
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                List<BluetoothGattService> services = bluetoothGatt.getServices();
-                for (BluetoothGattService service : services) {
-                    if (service != null) {
-                        Log.v(TAG, "Service uuid: " + service.getUuid());
-
-                        // add the gatt service to our list
-
-                        //mGattProfileListAdapter.notifyDataSetChanged();
-                        // update the UI to reflect the new Service
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                mGattProfileListAdapter.addService(service);
-                                mGattProfileListAdapter.notifyDataSetChanged();
-                            }
-                        });
-
-                        // while we are here, let's ask for this service's characteristics:
-                        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                        for (BluetoothGattCharacteristic characteristic : characteristics) {
-                            if (characteristic != null) {
-                                // if there are Characteristics, add them to the Service's list
-                                try {
-                                    //mGattProfileListAdapter.addCharacteristic(service, characteristic);
-                                    //mGattProfileListAdapter.notifyDataSetChanged();
-                                    // update the ListView UI
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            try {
-                                                mGattProfileListAdapter.addCharacteristic(service, characteristic);
-                                            } catch (Exception e) {
-                                                e.printStackTrace();
-                                            }
-                                            mGattProfileListAdapter.notifyDataSetChanged();
-                                        }
-                                    });
-
-                                } catch (Exception e) {
-                                    Log.e(TAG, e.getMessage());
-                                }
-
-                            }
-                        }
-                    }
-
-
-                }
-                disconnect(); // disconnect from the Peripheral so that a connection is possible again in TalkActivity
+                profile = BleGattProfile.build(bluetoothGatt.getServices());
+                Log.v(TAG, "Discovered " + profile.getServiceCount() + " services with "
+                        + profile.getCharacteristicCount() + " characteristics");
+                // stay connected: TalkActivity attaches to this link through BleConnectionManager
             } else {
                 Log.e(TAG, "Something went wrong while discovering GATT services from this peripheral");
+                profile = null;
             }
 
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    if (profile != null) mGattProfileListAdapter.setProfile(profile);
                     onBleServiceDiscoveryStopped();
                 }
             });
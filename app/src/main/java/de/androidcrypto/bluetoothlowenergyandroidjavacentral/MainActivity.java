@@ -6,29 +6,38 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.adapters.BlePeripheralsListAdapter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.AdvertisementParser;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleCommManager;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.ScanMultiplexer;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv18;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv21;
-import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BlePeripheralListItem;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BlePeripheralListRow;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BlePeripheralRegistry;
 
 
 /**
@@ -41,9 +50,16 @@ public class MainActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = MainActivity.class.getSimpleName();
     private static final int REQUEST_ENABLE_BT = 1;
+    /** Sightings are collected for this long before the list is updated **/
+    private static final long PUBLISH_INTERVAL_MILLIS = 250;
+    /** The list only needs every Peripheral once in a while, so let the controller batch advertisements for this long **/
+    private static final long SCAN_REPORT_DELAY_MILLIS = 1000;
 
     /** Bluetooth Stuff **/
     private BleCommManager mBleCommManager;
+    private ScanMultiplexer mScanMultiplexer;
+    private final BlePeripheralRegistry mBlePeripheralRegistry = new BlePeripheralRegistry();
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser(); // only used from the scan callback
 
     /** Activity State **/
     private boolean mScanningActive = false;
@@ -53,9 +69,11 @@ public class MainActivity extends AppCompatActivity {
     /** UI Stuff **/
     private MenuItem mScanProgressSpinner;
     private MenuItem mStartScanItem, mStopScanItem;
-    private ListView mBlePeripheralsListView;
+    private RecyclerView mBlePeripheralsListView;
     private TextView mPeripheralsListEmptyTV;
     private BlePeripheralsListAdapter mBlePeripheralsListAdapter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mPublishScheduled = new AtomicBoolean(false);
 
     /**
      * This block is for requesting permissions up to Android 12+
@@ -107,7 +125,13 @@ public class MainActivity extends AppCompatActivity {
     public void onPause() {
         super.onPause();
         // stop scanning when the activity pauses
-        mBleCommManager.stopScanning(mBleScanCallbackv18, mScanCallbackv21);
+        stopScan();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mPublishPeripherals);
     }
 
 
@@ -117,10 +141,14 @@ public class MainActivity extends AppCompatActivity {
     public void loadUI() {
         // load UI components, set up the Peripheral list
         mPeripheralsListEmptyTV = (TextView) findViewById(R.id.peripheral_list_empty);
-        mBlePeripheralsListView = (ListView) findViewById(R.id.peripherals_list);
-        mBlePeripheralsListAdapter = new BlePeripheralsListAdapter();
-        mBlePeripheralsListView.setAdapter(mBlePeripheralsListAdapter);
-        mBlePeripheralsListView.setEmptyView(mPeripheralsListEmptyTV);
+        mBlePeripheralsListView = (RecyclerView) findViewById(R.id.peripherals_list);
+        mBlePeripheralsListView.setLayoutManager(new LinearLayoutManager(this));
+        mBlePeripheralsListView.setHasFixedSize(true);
+        // RSSI updates rebind one TextView in place, without cross-fading the whole row
+        RecyclerView.ItemAnimator itemAnimator = mBlePeripheralsListView.getItemAnimator();
+        if (itemAnimator instanceof SimpleItemAnimator) {
+            ((SimpleItemAnimator) itemAnimator).setSupportsChangeAnimations(false);
+        }
     }
 
     /**
@@ -128,27 +156,15 @@ public class MainActivity extends AppCompatActivity {
      */
     public void attachCallbacks() {
         // when a user clicks on a Peripheral in the list, open that Peripheral in the Connect Activity
-        mBlePeripheralsListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mBlePeripheralsListAdapter = new BlePeripheralsListAdapter(new BlePeripheralsListAdapter.OnPeripheralClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                Log.v(TAG, "Adapter count: "+parent.getCount());
-                Log.v(TAG, "Adapter child count: "+parent.getChildCount());
-                Log.v(TAG, "Adapter click position: "+position);
-                Log.v(TAG, "Adapter view: "+view.toString());
-                Log.v(TAG, "Adapter ID: "+id);
-
-                // only click through if the selected ListItem represents a Bluetooth Peripheral
-                BlePeripheralListItem selectedPeripheralListItem = (BlePeripheralListItem) mBlePeripheralsListView.getItemAtPosition(position);
-                // FIXME: remove this condition if a null scan result does not result in a crash
-                //if (selectedPeripheralListItem.getDevice() != null) {
-                Log.v(TAG, "List View click: position: " + position + ", id: " + id);
-                BlePeripheralListItem listItem = mBlePeripheralsListAdapter.getItem(position);
-                connectToPeripheral(listItem.getMacAddress());
+            public void onPeripheralClick(BlePeripheralListRow row) {
+                Log.v(TAG, "List click: " + row.getMacAddress());
+                connectToPeripheral(row.getMacAddress());
                 stopScan();
-
-                //}
             }
         });
+        mBlePeripheralsListView.setAdapter(mBlePeripheralsListAdapter);
     }
 
     /**
@@ -208,6 +224,7 @@ public class MainActivity extends AppCompatActivity {
 
         try {
             mBleCommManager = new BleCommManager(this);
+            mScanMultiplexer = ScanMultiplexer.getInstance(this);
         } catch (Exception e) {
             Toast.makeText(this, "Could not initialize bluetooth", Toast.LENGTH_SHORT).show();
             Log.e(TAG, e.getMessage());
@@ -232,11 +249,12 @@ public class MainActivity extends AppCompatActivity {
         mScanProgressSpinner.setVisible(true);
 
         // clear the list of Peripherals and start scanning
-        mBlePeripheralsListAdapter.clear();
-        mBlePeripheralsListAdapter.notifyDataSetChanged();
+        mBlePeripheralRegistry.clear();
+        publishPeripherals();
         try {
             mScanningActive = true;
-            mBleCommManager.scanForPeripherals(mBleScanCallbackv18, mScanCallbackv21);
+            mScanMultiplexer.subscribe(null, ScanSettings.SCAN_MODE_LOW_LATENCY, BleCommManager.SCAN_PERIOD, SCAN_REPORT_DELAY_MILLIS,
+                    mBleScanCallbackv18, mScanCallbackv21);
         } catch (Exception e) {
             Log.e(TAG, "Could not open Ble Device Scanner");
         }
@@ -247,7 +265,7 @@ public class MainActivity extends AppCompatActivity {
      * Stop scanning for Peripherals
      */
     public void stopScan() {
-        mBleCommManager.stopScanning(mBleScanCallbackv18, mScanCallbackv21);
+        if (mScanMultiplexer != null) mScanMultiplexer.unsubscribe(mBleScanCallbackv18, mScanCallbackv21);
     }
 
     /**
@@ -269,35 +287,85 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Event trigger when new Peripheral is discovered
+     *
+     * @param bluetoothDevice the Peripheral device
+     * @param rssi the Peripheral's RSSI, indicating its radio signal quality
+     * @param scanRecord the raw advertisement, or <b>null</b> if not available
+     */
+    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        registerPeripheral(bluetoothDevice, rssi, scanRecord, SystemClock.elapsedRealtimeNanos());
+        schedulePublish();
+    }
+
+    /**
+     * Event trigger when a batch of Peripherals is discovered.
+     * The list is updated once for the whole batch.
+     *
+     * @param results List: List of scan results, at most one per Peripheral
+     */
+    public void onBlePeripheralsDiscovered(List<ScanResult> results) {
+        for (ScanResult result : results) {
+            registerPeripheral(result.getDevice(), result.getRssi(), BleScanCallbackv21.getScanRecordBytes(result), result.getTimestampNanos());
+        }
+        if (!results.isEmpty()) {
+            schedulePublish();
+        }
+    }
+
+    /**
+     * Add a Peripheral to the registry, or refresh the RSSI of a known one
+     *
+     * @return <b>true</b> if the Peripheral is new to the list
      */
     @SuppressLint("MissingPermission")
-    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi) {
-        Log.v(TAG, "Found "+bluetoothDevice.getName()+", "+bluetoothDevice.getAddress());
+    private boolean registerPeripheral(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord, long timestampNanos) {
+        // Android only knows the name of a Peripheral after it has seen a scan response,
+        // so fall back to the local name in the advertisement
+        String broadcastName = bluetoothDevice.getName();
+        String advertisedName = null;
+        int txPowerLevel = AdvertisementParser.TX_POWER_UNKNOWN;
+        if (mAdvertisementParser.parse(scanRecord)) {
+            advertisedName = mAdvertisementParser.getLocalName();
+            txPowerLevel = mAdvertisementParser.getTxPowerLevel();
+            if (broadcastName == null) broadcastName = advertisedName;
+        }
+        Log.v(TAG, "Found "+broadcastName+", "+bluetoothDevice.getAddress());
         // only add the peripheral if
-        // - it has a name, on
-        // - doesn't already exist in our list, or
-        // - is transmitting at a higher power (is closer) than an existing peripheral
-        boolean addPeripheral = true;
-        if (bluetoothDevice.getName() == null) {
-            addPeripheral = false;
+        // - it has a name, and
+        // - doesn't already exist in our list
+        // known peripherals only get their RSSI refreshed
+        if (broadcastName == null) {
+            return false;
         }
-        for(BlePeripheralListItem listItem : mBlePeripheralsListAdapter.getItems()) {
-            if ( listItem.getBroadcastName().equals(bluetoothDevice.getName()) ) {
-                addPeripheral = false;
-            }
+        return mBlePeripheralRegistry.addOrUpdate(bluetoothDevice, advertisedName, rssi, txPowerLevel, timestampNanos);
+    }
+
+    /**
+     * Update the list once the sightings of the next PUBLISH_INTERVAL_MILLIS are in,
+     * so a busy scan updates it a few times per second instead of once per advertisement.
+     * Safe to call from any thread
+     */
+    private void schedulePublish() {
+        if (mPublishScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mPublishPeripherals, PUBLISH_INTERVAL_MILLIS);
         }
+    }
 
-        if (addPeripheral) {
-            //mBlePeripheralsListAdapter.addBluetoothPeripheral(bluetoothDevice, rssi);
-            //mBlePeripheralsListAdapter.notifyDataSetChanged();
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mBlePeripheralsListAdapter.addBluetoothPeripheral(bluetoothDevice, rssi);
-                    mBlePeripheralsListAdapter.notifyDataSetChanged();
-                }
-            });
+    private final Runnable mPublishPeripherals = new Runnable() {
+        @Override
+        public void run() {
+            mPublishScheduled.set(false);
+            publishPeripherals();
         }
+    };
+
+    /**
+     * Show the current registry snapshot in the list.  Only call from the main thread
+     */
+    private void publishPeripherals() {
+        List<BlePeripheralListRow> rows = mBlePeripheralRegistry.getRows();
+        mBlePeripheralsListAdapter.submitList(rows); // diffed off the main thread
+        mPeripheralsListEmptyTV.setVisibility(rows.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     /**
@@ -334,7 +402,7 @@ public class MainActivity extends AppCompatActivity {
             BluetoothDevice bluetoothDevice = result.getDevice();
             int rssi = result.getRssi();
 
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, getScanRecordBytes(result));
         }
 
         /**
@@ -344,12 +412,7 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult result : results) {
-                BluetoothDevice bluetoothDevice = result.getDevice();
-                int rssi = result.getRssi();
-
-                onBlePeripheralDiscovered(bluetoothDevice, rssi);
-            }
+            onBlePeripheralsDiscovered(coalesceByDevice(results));
         }
 
         /**
@@ -408,7 +471,7 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, scanRecord);
         }
 
         /**
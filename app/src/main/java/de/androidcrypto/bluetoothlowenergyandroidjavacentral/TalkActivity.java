@@ -5,10 +5,13 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import android.util.Log;
 import android.view.Menu;
@@ -23,12 +26,19 @@ import androidx.appcompat.widget.Toolbar;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleCommManager;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleConnectionManager;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleScanFilterSet;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.ScanMultiplexer;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BlePeripheral;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.NotificationRingBuffer;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv18;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv21;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.ValueCodec;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.ValueCodecRegistry;
 
 
 /**
@@ -43,17 +53,28 @@ public class TalkActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = TalkActivity.class.getSimpleName();
 
-    private static final String CHARACTER_ENCODING = "ASCII";
     public static final String PERIPHERAL_NAME = "com.example.com.exampleble.PERIPHERAL_NAME";
     public static final String PERIPHERAL_MAC_ADDRESS_KEY = "com.example.com.exampleble.PERIPHERAL_MAC_ADDRESS";
     public static final String CHARACTERISTIC_KEY = "com.example.com.exampleble.CHARACTERISTIC_UUID";
     public static final String SERVICE_KEY = "com.example.com.exampleble.SERVICE_UUID";
 
+    /** How long to try the known MAC address before looking for the Peripheral with a scan **/
+    private static final long DIRECT_CONNECT_TIMEOUT_MILLIS = 3000;
+    /** Ways to reach the Peripheral, fastest first **/
+    private static final String STRATEGY_ATTACH = "attach";
+    private static final String STRATEGY_DIRECT = "direct";
+    private static final String STRATEGY_SCAN = "scan";
+
     /** Bluetooth Stuff **/
-    private BleCommManager mBleCommManager;
+    private BleConnectionManager mBleConnectionManager;
+    private ScanMultiplexer mScanMultiplexer;
     private BlePeripheral mBlePeripheral;
 
     private BluetoothGattCharacteristic mCharacteristic;
+    private boolean mSubscribed = false;
+    private final NotificationRingBuffer mNotificationRingBuffer = new NotificationRingBuffer();
+    private final AtomicBoolean mNotificationDrainScheduled = new AtomicBoolean(false);
+    private static final int NOTIFICATION_DRAIN_BATCH = 64;
 
     /** Functional stuff **/
     private String mPeripheralMacAddress;
@@ -61,6 +82,14 @@ public class TalkActivity extends AppCompatActivity {
     private boolean mScanningActive = false;
     private UUID mCharacteristicUUID, mServiceUUID;
 
+    /** Connection strategy and time-to-first-read **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private String mConnectStrategy;
+    private long mOpenedAt; // when this screen started to reach the Peripheral
+    private long mStrategyStartedAt; // when the current strategy started
+    private volatile boolean mBleConnected = false;
+    private final AtomicBoolean mFirstReadReported = new AtomicBoolean(false);
+
     /** UI Stuff **/
     private MenuItem mProgressSpinner;
     private TextView mResponseText, mPeripheralBroadcastNameTV, mPeripheralAddressTV, mServiceUUIDTV;
@@ -94,8 +123,6 @@ public class TalkActivity extends AppCompatActivity {
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        mBlePeripheral = new BlePeripheral();
-
         loadUI();
     }
 
@@ -135,8 +162,16 @@ public class TalkActivity extends AppCompatActivity {
         mProgressSpinner = menu.findItem(R.id.scan_progress_item);
 
         initializeBluetooth();
-        //connect(); // when working with non-Android peripherals
-        startScan(); // when working with Android Peripherals
+        if (mBlePeripheral == null && !mScanningActive && mConnectStrategy == null) {
+            mOpenedAt = SystemClock.elapsedRealtime();
+            if (mPeripheralMacAddress == null) {
+                fallBackToScan();
+            } else if (mBleConnectionManager.isConnected(mPeripheralMacAddress)) {
+                connect(STRATEGY_ATTACH); // ConnectActivity left the link open, attach to it
+            } else {
+                connectDirect();
+            }
+        }
 
         return super.onPrepareOptionsMenu(menu);
     }
@@ -159,7 +194,8 @@ public class TalkActivity extends AppCompatActivity {
 
     public void initializeBluetooth() {
         try {
-            mBleCommManager = new BleCommManager(this);
+            mBleConnectionManager = ((BleApplication) getApplication()).getBleConnectionManager();
+            mScanMultiplexer = ScanMultiplexer.getInstance(this);
         } catch (Exception e) {
             Toast.makeText(this, "Could not initialize bluetooth", Toast.LENGTH_SHORT).show();
             Log.e(TAG, e.getMessage());
@@ -168,24 +204,81 @@ public class TalkActivity extends AppCompatActivity {
     }
 
 
-    public void connect() {
-        // grab the Peripheral Device address and attempt to connect
-        BluetoothDevice bluetoothDevice = mBleCommManager.getBluetoothAdapter().getRemoteDevice(mPeripheralMacAddress);
+    /**
+     * Connect to the Peripheral, or attach to the link if it is already open
+     *
+     * @param strategy how the Peripheral was found, for the time-to-first-read report
+     */
+    public void connect(String strategy) {
+        mConnectStrategy = strategy;
+        if (!STRATEGY_SCAN.equals(strategy)) mStrategyStartedAt = SystemClock.elapsedRealtime();
         mProgressSpinner.setVisible(true);
         try {
-            mBlePeripheral.connect(bluetoothDevice, mGattCallback, getApplicationContext());
+            mBlePeripheral = mBleConnectionManager.acquire(mPeripheralMacAddress, mGattCallback);
         } catch (Exception e) {
             mProgressSpinner.setVisible(false);
             Log.e(TAG, "Error connecting to peripheral");
         }
     }
 
+    /**
+     * Try the MAC address ConnectActivity used.  If the link is not up within
+     * DIRECT_CONNECT_TIMEOUT_MILLIS its address was random or has rotated, so look for it with a scan
+     */
+    public void connectDirect() {
+        connect(STRATEGY_DIRECT);
+        if (mBlePeripheral == null) {
+            fallBackToScan();
+        } else {
+            mHandler.postDelayed(mDirectConnectTimeout, DIRECT_CONNECT_TIMEOUT_MILLIS);
+        }
+    }
+
+    private final Runnable mDirectConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!STRATEGY_DIRECT.equals(mConnectStrategy)) return;
+            // the deadline only covers connectGatt until the link is up: the MTU and PHY
+            // negotiation that follows before mBleConnected may take longer, but the address worked
+            if (mBleConnected || (mBlePeripheral != null && mBlePeripheral.isConnected())) return;
+            Log.v(TAG, "No answer from " + mPeripheralMacAddress + " within " + DIRECT_CONNECT_TIMEOUT_MILLIS + " ms, scanning");
+            fallBackToScan();
+        }
+    };
+
+    /**
+     * Abandon the direct connection attempt and scan for the Peripheral
+     */
+    private void fallBackToScan() {
+        mHandler.removeCallbacks(mDirectConnectTimeout);
+        if (mBlePeripheral != null) {
+            mBleConnectionManager.release(mPeripheralMacAddress, mGattCallback, 0);
+            mBlePeripheral = null;
+        }
+        mConnectStrategy = STRATEGY_SCAN;
+        mStrategyStartedAt = SystemClock.elapsedRealtime();
+        startScan();
+    }
+
+    /**
+     * The first value arrived from the Characteristic, by read or notification.  Report how long it took
+     */
+    private void onFirstRead() {
+        if (!mFirstReadReported.compareAndSet(false, true)) return;
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Time to first read via " + mConnectStrategy + ": " + (now - mStrategyStartedAt)
+                + " ms, " + (now - mOpenedAt) + " ms since the screen opened");
+    }
+
     /**
      * Peripheral has connected.  Update UI
      */
     @SuppressLint("MissingPermission")
     public void onBleConnected() {
+        if (mBlePeripheral == null) return;
+        mHandler.removeCallbacks(mDirectConnectTimeout);
         BluetoothDevice bluetoothDevice = mBlePeripheral.getBluetoothDevice();
+        Log.v(TAG, "Link MTU: " + mBlePeripheral.getMtu() + ", TX PHY: " + mBlePeripheral.getTxPhy() + ", RX PHY: " + mBlePeripheral.getRxPhy());
         mPeripheralBroadcastNameTV.setText(bluetoothDevice.getName());
         mPeripheralAddressTV.setText(bluetoothDevice.getAddress());
         mProgressSpinner.setVisible(false);
@@ -213,6 +306,47 @@ public class TalkActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Characteristic supports notifications or indications.  Subscribe to them
+     */
+    public void onCharacteristicNotifiable() {
+        Log.v(TAG, "Characteristic is notifiable");
+        mResponseText.setVisibility(View.VISIBLE);
+        try {
+            mBlePeripheral.subscribe(mCharacteristic, mNotificationRingBuffer, null);
+            mSubscribed = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not subscribe to characteristic: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drain the notifications that arrived since the last frame and show them in one update
+     */
+    private final Runnable mDrainNotifications = new Runnable() {
+        @Override
+        public void run() {
+            final StringBuilder messages = new StringBuilder();
+            final ValueCodec codec = ValueCodecRegistry.getInstance().getOrDefault(mCharacteristic);
+            mNotificationRingBuffer.drain(new NotificationRingBuffer.Consumer() {
+                @Override
+                public void onNotification(byte[] value, int length, long timestampNanos) {
+                    if (messages.length() > 0) messages.append('\n');
+                    codec.format(messages, value, 0, length);
+                }
+            }, NOTIFICATION_DRAIN_BATCH);
+            if (messages.length() > 0) {
+                onFirstRead();
+                updateResponseText(messages.toString());
+            }
+
+            mNotificationDrainScheduled.set(false);
+            if (mNotificationRingBuffer.size() > 0 && mNotificationDrainScheduled.compareAndSet(false, true)) {
+                mResponseText.post(this); // more arrived than one batch, continue next frame
+            }
+        }
+    };
+
     /**
      * Update TextView when a new message is read from a Charactersitic
      * Also scroll to the bottom so that new messages are always in view
@@ -236,6 +370,9 @@ public class TalkActivity extends AppCompatActivity {
      *
      */
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        // reused for every value logged, GATT callbacks of one connection arrive one at a time
+        private final StringBuilder mLogBuilder = new StringBuilder();
+
         /**
          * Charactersitic successfully read
          *
@@ -254,15 +391,18 @@ public class TalkActivity extends AppCompatActivity {
                 System.out.println("TalkActivity BluetoothGattCallback onCharacteristicRead GATT_SUCCESS");
                 // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
                 final byte[] data = characteristic.getValue();
-                String m = "";
                 try {
-                    m = new String(data, CHARACTER_ENCODING);
-
-                    final String message = m;
-
-                    Log.v(TAG, "Characteristic read hex value: "+ DataConverter.bytesToHex(data));
-                    Log.v(TAG, "Characteristic read int value: "+ DataConverter.bytesToInt(data));
-                    Log.v(TAG, "Characteristic read text value: "+ message);
+                    mLogBuilder.setLength(0);
+                    final String message = ValueCodecRegistry.getInstance().getOrDefault(characteristic)
+                            .format(mLogBuilder, data, 0, data.length).toString();
+
+                    mLogBuilder.setLength(0);
+                    mLogBuilder.append("Characteristic read hex value: ");
+                    DataConverter.appendHex(mLogBuilder, data, 0, data.length);
+                    mLogBuilder.append(", int value: ").append(DataConverter.bytesToInt(data));
+                    Log.v(TAG, mLogBuilder.toString());
+                    Log.v(TAG, "Characteristic read decoded value: "+ message);
+                    onFirstRead();
 
                     runOnUiThread(new Runnable() {
                         @Override
@@ -271,7 +411,7 @@ public class TalkActivity extends AppCompatActivity {
                         }
                     });
                 } catch (Exception e) {
-                    Log.e(TAG, "Could not convert message byte array to String");
+                    Log.e(TAG, "Could not decode the value: " + e.getMessage());
                 }
             };
             if (status == BluetoothGatt.GATT_READ_NOT_PERMITTED) {
@@ -322,6 +462,11 @@ GATT_NOT_ENCRYPTED  0x008e (142)
          */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            // BlePeripheral has already copied the value into the ring buffer.
+            // Drain it on the UI thread, at most once per pending batch
+            if (characteristic == mCharacteristic && mNotificationDrainScheduled.compareAndSet(false, true)) {
+                runOnUiThread(mDrainNotifications);
+            }
         }
 
         /**
@@ -336,6 +481,7 @@ GATT_NOT_ENCRYPTED  0x008e (142)
 
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.v(TAG, "Connected to peripheral");
+                mBleConnected = true;
 
 
                 runOnUiThread(new Runnable() {
@@ -344,13 +490,22 @@ GATT_NOT_ENCRYPTED  0x008e (142)
                         onBleConnected();
                     }
                 });
-
-                bluetoothGatt.discoverServices();
+                // BleConnectionManager discovers the GATT profile, or already has
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.v(TAG, "Disconnected from peripheral");
+                final boolean wasConnected = mBleConnected;
+                mBleConnected = false;
 
-                disconnect();
-                mBlePeripheral.close();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!wasConnected && STRATEGY_DIRECT.equals(mConnectStrategy)) {
+                            fallBackToScan(); // the known address did not answer
+                        } else {
+                            disconnect();
+                        }
+                    }
+                });
             }
         }
 
@@ -366,23 +521,22 @@ GATT_NOT_ENCRYPTED  0x008e (142)
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // connect to a specific service
 
-                BluetoothGattService gattService = bluetoothGatt.getService(mServiceUUID);
-                // while we are here, let's ask for this service's characteristics:
-                List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    if (characteristic != null) {
-                        Log.v(TAG, "found characteristic: "+characteristic.getUuid().toString());
-
-                    }
+                // look the Characteristic up in the profile BlePeripheral indexed during discovery
+                BlePeripheral blePeripheral = mBlePeripheral;
+                if (blePeripheral == null) return; // released while the event was on its way
+                mCharacteristic = blePeripheral.getCharacteristic(mServiceUUID, mCharacteristicUUID);
+                if (mCharacteristic == null) {
+                    Log.e(TAG, "Peripheral has no characteristic " + mCharacteristicUUID + " in service " + mServiceUUID);
+                    return;
                 }
 
+                // find out how to decode the values before the first read or notification is queued
+                ValueCodecRegistry.getInstance().load(blePeripheral, mCharacteristic, null);
+
                 // determine the read/write/notify permissions of the Characterstic
                 Log.v(TAG, "desired service is: "+mServiceUUID.toString());
                 Log.v(TAG, "desired charactersitic is: "+mCharacteristicUUID.toString());
-                Log.v(TAG, "this service: "+bluetoothGatt.getService(mServiceUUID).getUuid().toString());
-                Log.v(TAG, "this characteristic: "+bluetoothGatt.getService(mServiceUUID).getCharacteristic(mCharacteristicUUID).getUuid().toString());
 
-                mCharacteristic = bluetoothGatt.getService(mServiceUUID).getCharacteristic(mCharacteristicUUID);
                 if (BlePeripheral.isCharacteristicReadable(mCharacteristic)) {
                     runOnUiThread(new Runnable() {
                         @Override
@@ -391,6 +545,14 @@ GATT_NOT_ENCRYPTED  0x008e (142)
                         }
                     });
                 }
+                if (BlePeripheral.isCharacteristicNotifiable(mCharacteristic) || BlePeripheral.isCharacteristicIndicatable(mCharacteristic)) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCharacteristicNotifiable();
+                        }
+                    });
+                }
 
 
             } else {
@@ -403,32 +565,59 @@ GATT_NOT_ENCRYPTED  0x008e (142)
 
 
     /**
-     * Disconnect
+     * Leave the Peripheral.  The link itself stays open for ConnectActivity
      */
     private void disconnect() {
         // close the Activity when disconnecting.  No actions can be done without a connection
-        mBlePeripheral.disconnect();
+        releasePeripheral();
         finish();
     }
 
+    @Override
+    protected void onDestroy() {
+        mHandler.removeCallbacks(mDirectConnectTimeout);
+        stopScan();
+        releasePeripheral();
+        super.onDestroy();
+    }
+
+    /**
+     * Stop listening to the shared Peripheral
+     */
+    private void releasePeripheral() {
+        if (mBlePeripheral == null) return;
+        if (mSubscribed && mCharacteristic != null) {
+            mBlePeripheral.unsubscribe(mCharacteristic, null);
+            mSubscribed = false;
+        }
+        mBleConnectionManager.release(mPeripheralMacAddress, mGattCallback);
+        mBlePeripheral = null;
+    }
+
 
 
 
 
     /**
      * Android-based Peripherals change MAC addresses between connections
-     * As a result we can't simply connect to the last known MAC address
+     * As a result we can't always connect to the last known MAC address
      * Instead, we must scan for matching adertised names again
      */
 
 
     /**
-     * Start scanning for Peripherals
+     * Start scanning for the Peripheral, matched by its name or the Service we want to talk to
      */
     public void startScan() {
         try {
             mScanningActive = true;
-            mBleCommManager.scanForPeripherals(mBleScanCallbackv18, mScanCallbackv21);
+            // only hear about the Peripheral we are looking for, not everything other screens are scanning for
+            BleScanFilterSet.Builder scanFilterBuilder = new BleScanFilterSet.Builder().addServiceUuid(mServiceUUID);
+            if (mBlePeripheralName != null) {
+                scanFilterBuilder.addDeviceName(mBlePeripheralName);
+            }
+            BleScanFilterSet scanFilterSet = scanFilterBuilder.build();
+            mScanMultiplexer.subscribe(scanFilterSet, ScanSettings.SCAN_MODE_LOW_LATENCY, BleCommManager.SCAN_PERIOD, mBleScanCallbackv18, mScanCallbackv21);
         } catch (Exception e) {
             Log.e(TAG, "Could not open Ble Device Scanner");
         }
@@ -439,7 +628,7 @@ GATT_NOT_ENCRYPTED  0x008e (142)
      * Stop scanning for Peripherals
      */
     public void stopScan() {
-        mBleCommManager.stopScanning(mBleScanCallbackv18, mScanCallbackv21);
+        if (mScanMultiplexer != null) mScanMultiplexer.unsubscribe(mBleScanCallbackv18, mScanCallbackv21);
     }
 
     /**
@@ -456,23 +645,22 @@ GATT_NOT_ENCRYPTED  0x008e (142)
      * Event trigger when new Peripheral is discovered
      */
     @SuppressLint("MissingPermission")
-    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi) {
+    public void onBlePeripheralDiscovered(final BluetoothDevice bluetoothDevice, int rssi) {
         Log.v(TAG, "Found "+mBlePeripheralName+": "+bluetoothDevice.getName()+", "+bluetoothDevice.getAddress());
-        // only add the peripheral if
-        // - it has a name, on
-        // - doesn't already exist in our list, or
-        // - is transmitting at a higher power (is closer) than an existing peripheral
-        /* crashes with NullPointerException
-        if (bluetoothDevice.getName().equals(mBlePeripheralName)) {
-            Log.v(TAG, "desired device found.  connecting");
-            stopScan();
-            mPeripheralMacAddress = bluetoothDevice.getAddress();
-            connect();
-        }*/
-        Log.v(TAG, "desired device found.  connecting");
-        stopScan();
-        mPeripheralMacAddress = bluetoothDevice.getAddress();
-        connect();
+        // the scan filter only lets through Peripherals advertising the wanted name or Service,
+        // so this is the Peripheral we are looking for, not just the first advertiser.
+        // onLeScan runs on a binder thread, so check and connect on the UI thread,
+        // where only the first of several results can acquire the link
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                stopScan();
+                if (mBlePeripheral != null) return; // a later result from the same scan
+                Log.v(TAG, "desired device found.  connecting");
+                mPeripheralMacAddress = bluetoothDevice.getAddress();
+                connect(STRATEGY_SCAN);
+            }
+        });
     }
 
 
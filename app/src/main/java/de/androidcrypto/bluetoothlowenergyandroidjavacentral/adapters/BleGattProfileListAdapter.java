@@ -1,35 +1,31 @@
 package de.androidcrypto.bluetoothlowenergyandroidjavacentral.adapters;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.R;
-import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BlePeripheral;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BleGattCharacteristicListItem;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BleGattProfile;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BleGattServiceListItem;
 
 /**
  * Manages the BleGattServiceListItem so that we can populate the GATT Profile List
  * Uses a BaseExpandableListAdapter to create a tree-like structure
  *
+ * The whole profile is handed over at once as an immutable BleGattProfile, built off the UI thread,
+ * so the list is notified once per discovery.  Binding a row only reads values the profile worked out.
+ *
  * @author Tony Gaitatzis backupbrain@gmail.com
  * @date 2015-12-21
  */
 public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
     private final static String TAG = BleGattProfileListAdapter.class.getSimpleName();
 
-    private ArrayList<BleGattServiceListItem> mBleGattServiceListItems = new ArrayList<>(); // list of Services
-    private Map<Integer, ArrayList<BleGattCharacteristicListItem>> mBleCharacteristicListItems = new HashMap<Integer, ArrayList<BleGattCharacteristicListItem>>(); // list of Characteristics
+    private BleGattProfile mProfile = BleGattProfile.EMPTY; // only touched on the UI thread
 
     /**
      * Instantiate the class
@@ -46,7 +42,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public BleGattServiceListItem getGroup(int groupPosition) {
-        return mBleGattServiceListItems.get(groupPosition);
+        return mProfile.getService(groupPosition);
     }
 
     /**
@@ -55,64 +51,24 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public int getGroupCount() {
-        return mBleGattServiceListItems.size();
-    }
-
-    /**
-     * Add a new Service to be listed in the ListView
-     * @param service the GATT Service to add
-     */
-    public void addService(BluetoothGattService service) {
-        int serviceItemID = mBleGattServiceListItems.size();
-        BleGattServiceListItem serviceListItem = new BleGattServiceListItem(service, serviceItemID);
-        mBleGattServiceListItems.add(serviceListItem);
-        mBleCharacteristicListItems.put(serviceItemID, new ArrayList<BleGattCharacteristicListItem>());
-        // todo new
-        //notifyDataSetChanged();
+        return mProfile.getServiceCount();
     }
 
     /**
-     * Add a new Characteristic to be listed in the ListView
+     * Show a discovered GATT profile in place of the current one
      *
-     * @param service the Service that this Characteristic belongs to
-     * @param characteristic the Gatt Characteristic to add
-     * @throws Exception if such a service does not exist
+     * @param profile the profile, built with BleGattProfile.build()
      */
-    public void addCharacteristic(BluetoothGattService service, BluetoothGattCharacteristic characteristic) throws Exception {
-        // find the Service in this listView with matching UUID from the input service
-        int serviceItemId = -1;
-        for (BleGattServiceListItem bleGattServiceListItem : mBleGattServiceListItems) {
-            //serviceItemId++;
-            if (bleGattServiceListItem.getService().getUuid().equals(service.getUuid())) {
-                Log.v(TAG, "Service found with UUID: "+service.getUuid().toString());
-                serviceItemId = bleGattServiceListItem.getItemId();
-                //break; // FIXME: this cause problems before.  Why?
-            }
-        }
-
-        // Throw an exception if no such service exists
-        if (serviceItemId < 0) throw new Exception("Service not found with UUID: "+service.getUuid().toString());
-
-        // add characterstic to the end of the sub-list for the parent service
-        if (!mBleCharacteristicListItems.containsKey(serviceItemId)) {
-            mBleCharacteristicListItems.put(serviceItemId, new ArrayList<BleGattCharacteristicListItem>());
-            notifyDataSetChanged();
-        }
-
-        int characteristicItemId = mBleCharacteristicListItems.size();
-        BleGattCharacteristicListItem characteristicListItem = new BleGattCharacteristicListItem(characteristic, characteristicItemId);
-        mBleCharacteristicListItems.get(serviceItemId).add(characteristicListItem);
-        // todo new
-        //notifyDataSetChanged();
+    public void setProfile(BleGattProfile profile) {
+        mProfile = profile;
+        notifyDataSetChanged();
     }
 
     /**
      * Clear all ListItems from ListView
      */
     public void clear() {
-        mBleGattServiceListItems.clear();
-        mBleCharacteristicListItems.clear();
-        notifyDataSetChanged();
+        setProfile(BleGattProfile.EMPTY);
     }
 
     /**
@@ -123,7 +79,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public long getGroupId(int position) {
-        return mBleGattServiceListItems.get(position).getItemId();
+        return mProfile.getService(position).getItemId();
     }
 
     /**
@@ -160,33 +116,18 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
             serviceListItemView.mUuidTV = (TextView) v.findViewById(R.id.uuid);
             serviceListItemView.mServiceTypeTV = (TextView) v.findViewById(R.id.service_type);
             v.setTag( serviceListItemView );
-            notifyDataSetChanged();
         } else {
             serviceListItemView = (GroupViewHolder) v.getTag();
         }
 
-        // if there are known Services, create a ListItem that says so
-        // otherwise, display a ListItem with Bluetooth Service information
-        if (getGroupCount() <= 0) {
-            serviceListItemView.mUuidTV.setText(R.string.peripheral_list_empty);
-            notifyDataSetChanged();
+        BleGattServiceListItem item = getGroup(position);
+        serviceListItemView.mUuidTV.setText(item.getUuidText());
+        // Is this a primary or secondary service
+        if (item.getType() == BluetoothGattService.SERVICE_TYPE_PRIMARY) {
+            serviceListItemView.mServiceTypeTV.setText(R.string.service_type_primary);
         } else {
-            BleGattServiceListItem item = getGroup(position);
-
-            serviceListItemView.mUuidTV.setText(item.getUuid().toString());
-            notifyDataSetChanged();
-            int type = item.getType();
-            // Is this a primary or secondary service
-            if (type == BluetoothGattService.SERVICE_TYPE_PRIMARY) {
-                serviceListItemView.mServiceTypeTV.setText(R.string.service_type_primary);
-                notifyDataSetChanged();
-            } else {
-                serviceListItemView.mServiceTypeTV.setText(R.string.service_type_secondary);
-                notifyDataSetChanged();
-            }
+            serviceListItemView.mServiceTypeTV.setText(R.string.service_type_secondary);
         }
-        // todo new
-        notifyDataSetChanged();
         return v;
     }
 
@@ -211,7 +152,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public BleGattCharacteristicListItem getChild(int groupPosition, int childPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).get(childPosition);
+        return mProfile.getCharacteristic(groupPosition, childPosition);
     }
 
     /**
@@ -223,7 +164,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).get(childPosition).getItemId();
+        return mProfile.getCharacteristic(groupPosition, childPosition).getItemId();
     }
 
 
@@ -235,7 +176,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public int getChildrenCount(int groupPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).size();
+        return mProfile.getCharacteristicCount(groupPosition);
     }
 
     /**
@@ -277,14 +218,11 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         View v = convertView;
         ChildViewHolder characteristicListItemView;
 
-        BleGattCharacteristicListItem item = getChild(groupPosition, childPosition);
-        BluetoothGattCharacteristic characteristic = item.getCharacteristic();
-
         // if this ListItem does not exist yet, generate it
         // otherwise, use it
         if (convertView == null) {
             LayoutInflater inflater = LayoutInflater.from(parent.getContext());
-            v = inflater.inflate(R.layout.list_item_ble_characteristic, null);
+            v = inflater.inflate(R.layout.list_item_ble_characteristic, parent, false);
 
             // match the UI stuff in the list Item to what's in the xml file
             characteristicListItemView = new ChildViewHolder();
@@ -293,51 +231,21 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
             characteristicListItemView.mPropertyWritableTV = (TextView)v.findViewById(R.id.property_write);
             characteristicListItemView.mPropertyNotifiableTV = (TextView)v.findViewById(R.id.property_notify);
             characteristicListItemView.mPropertyNoneTV = (TextView)v.findViewById(R.id.property_none);
-            notifyDataSetChanged();
+            v.setTag( characteristicListItemView );
         } else {
             characteristicListItemView = (ChildViewHolder) v.getTag();
         }
 
-        if (characteristicListItemView != null) {
-            // display the UUID of the characteristic
-            characteristicListItemView.mUuidTV.setText(characteristic.getUuid().toString());
-            notifyDataSetChanged();
-            // Display the read/write/notify attributes of the Characteristic
-            if (BlePeripheral.isCharacteristicReadable(characteristic)) {
-                characteristicListItemView.mPropertyReadableTV.setVisibility(View.VISIBLE);
-                notifyDataSetChanged();
-            } else {
-                characteristicListItemView.mPropertyReadableTV.setVisibility(View.GONE);
-                notifyDataSetChanged();
-            }
-            if (BlePeripheral.isCharacteristicWritable(characteristic)) {
-                characteristicListItemView.mPropertyWritableTV.setVisibility(View.VISIBLE);
-                notifyDataSetChanged();
-            } else {
-                characteristicListItemView.mPropertyWritableTV.setVisibility(View.GONE);
-                notifyDataSetChanged();
-            }
-            if (BlePeripheral.isCharacteristicNotifiable(characteristic)) {
-                characteristicListItemView.mPropertyNotifiableTV.setVisibility(View.VISIBLE);
-                notifyDataSetChanged();
-            } else {
-                characteristicListItemView.mPropertyNotifiableTV.setVisibility(View.GONE);
-                notifyDataSetChanged();
-            }
-            if (!BlePeripheral.isCharacteristicNotifiable(characteristic) &&
-                    !BlePeripheral.isCharacteristicWritable(characteristic) &&
-                    !BlePeripheral.isCharacteristicReadable(characteristic)) {
-                characteristicListItemView.mPropertyNoneTV.setVisibility(View.VISIBLE);
-                notifyDataSetChanged();
-            } else {
-                characteristicListItemView.mPropertyNoneTV.setVisibility(View.GONE);
-                notifyDataSetChanged();
-            }
-            notifyDataSetChanged();
-        }
-        // todo this is new
-        notifyDataSetChanged();
+        BleGattCharacteristicListItem item = getChild(groupPosition, childPosition);
+        // display the UUID of the characteristic
+        characteristicListItemView.mUuidTV.setText(item.getUuidText());
+        // Display the read/write/notify attributes of the Characteristic
+        characteristicListItemView.mPropertyReadableTV.setVisibility(item.isReadable() ? View.VISIBLE : View.GONE);
+        characteristicListItemView.mPropertyWritableTV.setVisibility(item.isWritable() ? View.VISIBLE : View.GONE);
+        characteristicListItemView.mPropertyNotifiableTV.setVisibility(item.isNotifiable() ? View.VISIBLE : View.GONE);
+        boolean noAccess = !item.isReadable() && !item.isWritable() && !item.isNotifiable();
+        characteristicListItemView.mPropertyNoneTV.setVisibility(noAccess ? View.VISIBLE : View.GONE);
         return v;
     }
 
-}
\ No newline at end of file
+}
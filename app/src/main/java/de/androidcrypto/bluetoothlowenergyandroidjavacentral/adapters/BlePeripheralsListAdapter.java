@@ -1,154 +1,122 @@
 package de.androidcrypto.bluetoothlowenergyandroidjavacentral.adapters;
 
-import android.bluetooth.BluetoothDevice;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
 
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.R;
-import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BlePeripheralListItem;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.models.BlePeripheralListRow;
 
 
 /**
- * Manages the BLEDeviceListItems so that we can populate the list
+ * Shows the Peripherals found by a scan in a RecyclerView.
+ *
+ * The list is fed immutable snapshots with submitList().  ListAdapter diffs each snapshot against
+ * the previous one on a background thread and only notifies the rows that changed.  A row whose
+ * RSSI is all that changed is rebound with PAYLOAD_RSSI, which updates a single TextView.
  *
  * @author Tony Gaitatzis backupbrain@gmail.com
  * @date 2015-12-17
  */
 
 
-public class BlePeripheralsListAdapter extends BaseAdapter {
-    private static String TAG = BlePeripheralsListAdapter.class.getSimpleName();
+public class BlePeripheralsListAdapter extends ListAdapter<BlePeripheralListRow, BlePeripheralsListAdapter.ViewHolder> {
+    private static final Object PAYLOAD_RSSI = new Object();
 
-    private ArrayList<BlePeripheralListItem> mBluetoothPeripheralListItems = new ArrayList<BlePeripheralListItem>(); // list of Peripherals
+    private final OnPeripheralClickListener mOnPeripheralClickListener;
 
     /**
-     * How many items are in the ListView
-     * @return the number of items in this ListView
+     * Notified when the user taps a Peripheral
      */
-    @Override
-    public int getCount() {
-        return mBluetoothPeripheralListItems.size();
+    public interface OnPeripheralClickListener {
+        void onPeripheralClick(BlePeripheralListRow row);
     }
 
-    /**
-     * Add a new Peripheral to the ListView
-     *
-     * @param bluetoothDevice Periheral device information
-     * @param rssi Periheral's RSSI, indicating its radio signal quality
-     */
-    public void addBluetoothPeripheral(BluetoothDevice bluetoothDevice, int rssi) {
-        // update UI stuff
-        //System.out.println("BlePeripheralsListAdapter");
-        System.out.println("BlePeripheralsListAdapter addBluetoothPeripheral");
-        int listItemId = mBluetoothPeripheralListItems.size();
-        BlePeripheralListItem listItem = new BlePeripheralListItem(bluetoothDevice);
-        listItem.setItemId(listItemId);
-        listItem.setRssi(rssi);
-
-        // add to list
-        mBluetoothPeripheralListItems.add(listItem);
-        // todo new
-        notifyDataSetChanged();
-    }
+    private static final DiffUtil.ItemCallback<BlePeripheralListRow> DIFF_CALLBACK = new DiffUtil.ItemCallback<BlePeripheralListRow>() {
+        @Override
+        public boolean areItemsTheSame(BlePeripheralListRow oldRow, BlePeripheralListRow newRow) {
+            return oldRow.getItemId() == newRow.getItemId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(BlePeripheralListRow oldRow, BlePeripheralListRow newRow) {
+            return oldRow.getRssi() == newRow.getRssi() && oldRow.hasSameLabels(newRow);
+        }
+
+        @Override
+        public Object getChangePayload(BlePeripheralListRow oldRow, BlePeripheralListRow newRow) {
+            return oldRow.hasSameLabels(newRow) ? PAYLOAD_RSSI : null;
+        }
+    };
 
     /**
-     * Get current state of ListView
-     * @return ArrayList of BlePeripheralListItems
+     * @param onPeripheralClickListener notified when the user taps a Peripheral
      */
-    public ArrayList<BlePeripheralListItem> getItems() {
-        return mBluetoothPeripheralListItems;
+    public BlePeripheralsListAdapter(OnPeripheralClickListener onPeripheralClickListener) {
+        super(DIFF_CALLBACK);
+        mOnPeripheralClickListener = onPeripheralClickListener;
+        setHasStableIds(true);
     }
 
-    /**
-     * Clear all items from the ListView
-     */
-    public void clear() {
-        mBluetoothPeripheralListItems.clear();
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getItemId();
     }
 
     /**
-     * Get the BlePeripheralListItem held at some position in the ListView
-     *
-     * @param position the position of a desired item in the list
-     * @return the BlePeripheralListItem at some position
+     * This ViewHolder represents what UI components are in each List Item
      */
-    @Override
-    public BlePeripheralListItem getItem(int position) {
-        return mBluetoothPeripheralListItems.get(position);
+    public class ViewHolder extends RecyclerView.ViewHolder {
+        public final TextView mBroadcastNameTV;
+        public final TextView mMacAddressTV;
+        public final TextView mRssiTV;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mBroadcastNameTV = (TextView) itemView.findViewById(R.id.broadcast_name);
+            mMacAddressTV = (TextView) itemView.findViewById(R.id.mac_address);
+            mRssiTV = (TextView) itemView.findViewById(R.id.power_level);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION && mOnPeripheralClickListener != null) {
+                        mOnPeripheralClickListener.onPeripheralClick(getItem(position));
+                    }
+                }
+            });
+        }
     }
 
     @Override
-    public long getItemId(int position) {
-        return mBluetoothPeripheralListItems.get(position).getItemId();
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // convert list_item_peripheral.xml to a View
+        View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item_peripheral, parent, false);
+        return new ViewHolder(v);
     }
 
-    /**
-     * This ViewHolder represents what UI components are in each List Item in the ListView
-     */
-    public static class ViewHolder{
-        public TextView mBroadcastNameTV;
-        public TextView mMacAddressTV;
-        public TextView mRssiTV;
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        BlePeripheralListRow row = getItem(position);
+        holder.mBroadcastNameTV.setText(row.getBroadcastName());
+        holder.mMacAddressTV.setText(row.getMacAddress());
+        holder.mRssiTV.setText(String.valueOf(row.getRssi()));
     }
 
-    /**
-     * Generate a new ListItem for some known position in the ListView
-     *
-     * @param position the position of the ListItem
-     * @param convertView An existing List Item
-     * @param parent The Parent ViewGroup
-     * @return The List Item
-     */
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        System.out.println("BlePeripheralsListAdapter getView");
-        View v = convertView;
-        ViewHolder peripheralListItemView;
-
-        // if this ListItem does not exist yet, generate it
-        // otherwise, use it
-        if(convertView == null) {
-            // convert list_item_peripheral.xml to a View
-            LayoutInflater inflater = LayoutInflater.from(parent.getContext());
-            v = inflater.inflate(R.layout.list_item_peripheral, null);
-
-            // match the UI stuff in the list Item to what's in the xml file
-            peripheralListItemView = new ViewHolder();
-            peripheralListItemView.mBroadcastNameTV = (TextView) v.findViewById(R.id.broadcast_name);
-            peripheralListItemView.mMacAddressTV = (TextView) v.findViewById(R.id.mac_address);
-            peripheralListItemView.mRssiTV = (TextView) v.findViewById(R.id.power_level);
-            System.out.println("BlePeripheralsListAdapter getView setTag");
-            v.setTag( peripheralListItemView );
-            notifyDataSetChanged();
-        } else {
-            System.out.println("BlePeripheralsListAdapter getView getTag");
-            peripheralListItemView = (ViewHolder) v.getTag();
-        }
-        Log.v(TAG, "ListItem size: "+ mBluetoothPeripheralListItems.size());
-        // if there are known Peripherals, create a ListItem that says so
-        // otherwise, display a ListItem with Bluetooth Periheral information
-        if (mBluetoothPeripheralListItems.size() <= 0) {
-            System.out.println("BlePeripheralsListAdapter getView mBluetoothPeripheralListItems.size() <= 0");
-            peripheralListItemView.mBroadcastNameTV.setText(R.string.peripheral_list_empty);
-            notifyDataSetChanged();
-        } else {
-            System.out.println("BlePeripheralsListAdapter getView mBluetoothPeripheralListItems.size() > 0");
-            BlePeripheralListItem item = mBluetoothPeripheralListItems.get(position);
-
-            peripheralListItemView.mBroadcastNameTV.setText(item.getBroadcastName());
-            peripheralListItemView.mMacAddressTV.setText(item.getMacAddress());
-            peripheralListItemView.mRssiTV.setText(String.valueOf(item.getRssi()));
-            notifyDataSetChanged();
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
         }
-        // todo new
-        notifyDataSetChanged();
-        return v;
+        // only ever PAYLOAD_RSSI, possibly several merged into one pass
+        holder.mRssiTV.setText(String.valueOf(getItem(position).getRssi()));
     }
-
-}
\ No newline at end of file
+}
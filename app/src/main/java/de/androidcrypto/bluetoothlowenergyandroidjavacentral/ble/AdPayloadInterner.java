@@ -0,0 +1,124 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import java.nio.charset.Charset;
+
+/**
+ * A small, fixed-size cache of advertisement payloads.
+ * Peripherals repeat the same name and manufacturer data in every advertisement,
+ * so after the first sighting the same String or byte array is handed out again
+ * instead of allocating a new copy for each advertisement.
+ *
+ * Collisions simply replace the older entry, so the cache never grows.
+ * This class is not thread safe.
+ */
+public class AdPayloadInterner {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final int mMask;
+    private final int[] mHashes;
+    private final byte[][] mPayloads;
+    private final String[] mStrings;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public AdPayloadInterner() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an interner
+     *
+     * @param capacity number of payloads to remember, rounded up to a power of two
+     */
+    public AdPayloadInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mHashes = new int[size];
+        mPayloads = new byte[size][];
+        mStrings = new String[size];
+    }
+
+    /**
+     * Get the canonical copy of a byte range.  The returned array is shared and must not be modified.
+     *
+     * @param bytes source array
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @return a byte array with the same contents as the range
+     */
+    public byte[] internBytes(byte[] bytes, int offset, int length) {
+        int slot = lookup(bytes, offset, length);
+        return mPayloads[slot];
+    }
+
+    /**
+     * Get the canonical String for a UTF-8 encoded byte range
+     *
+     * @param bytes source array
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @return the decoded String
+     */
+    public String internString(byte[] bytes, int offset, int length) {
+        int slot = lookup(bytes, offset, length);
+        String string = mStrings[slot];
+        if (string == null) {
+            string = new String(mPayloads[slot], 0, length, UTF_8);
+            mStrings[slot] = string;
+        }
+        return string;
+    }
+
+    /**
+     * @return how many lookups were served from the cache
+     */
+    public long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return how many lookups had to copy the payload
+     */
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Find the slot holding this payload, replacing the slot's contents if needed
+     */
+    private int lookup(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        int slot = (hash ^ (hash >>> 16)) & mMask;
+        byte[] payload = mPayloads[slot];
+        if (payload != null && mHashes[slot] == hash && equals(payload, bytes, offset, length)) {
+            mHits++;
+            return slot;
+        }
+
+        mMisses++;
+        payload = new byte[length];
+        System.arraycopy(bytes, offset, payload, 0, length);
+        mHashes[slot] = hash;
+        mPayloads[slot] = payload;
+        mStrings[slot] = null;
+        return slot;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static boolean equals(byte[] payload, byte[] bytes, int offset, int length) {
+        if (payload.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (payload[i] != bytes[offset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,490 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Parses the raw advertisement (scan record) of a Peripheral.
+ *
+ * An advertisement is a list of AD structures, each one a length byte,
+ * a type byte and (length - 1) bytes of data.  Instead of copying each field
+ * into Maps and Lists, this parser only remembers where each field starts
+ * inside the scan record, so parsing an advertisement does not allocate.
+ *
+ * One parser is reused for every advertisement, and its field tables only grow
+ * when an advertisement has more fields than any before it.  Values are only valid until
+ * the next call to parse(), and the parser is not thread safe.
+ */
+public class AdvertisementParser {
+    /** AD types, from the Bluetooth Assigned Numbers **/
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    public static final int TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    public static final int TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    public static final int TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    public static final int TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    public static final int TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16_BIT = 0x16;
+    public static final int TYPE_SERVICE_DATA_32_BIT = 0x20;
+    public static final int TYPE_SERVICE_DATA_128_BIT = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    // the Bluetooth Base UUID is 00000000-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // a legacy advertisement plus scan response is at most 62 bytes, so this many fields is usually plenty.
+    // Extended advertisements can be up to 1650 bytes, so the tables grow when they fill
+    private static final int INITIAL_FIELDS = 8;
+
+    private final AdPayloadInterner mInterner;
+
+    private byte[] mScanRecord;
+    private int mFlags;
+    private int mTxPowerLevel;
+    private int mLocalNameOffset, mLocalNameLength;
+    private boolean mLocalNameComplete;
+
+    // service UUID lists: offset and length of each AD structure's data, plus the width of each UUID
+    private int[] mUuidOffsets = new int[INITIAL_FIELDS];
+    private int[] mUuidLengths = new int[INITIAL_FIELDS];
+    private int[] mUuidWidths = new int[INITIAL_FIELDS];
+    private int mUuidFieldCount;
+    private int mServiceUuidCount;
+
+    private int[] mManufacturerOffsets = new int[INITIAL_FIELDS];
+    private int[] mManufacturerLengths = new int[INITIAL_FIELDS];
+    private int mManufacturerCount;
+
+    private int[] mServiceDataOffsets = new int[INITIAL_FIELDS];
+    private int[] mServiceDataLengths = new int[INITIAL_FIELDS];
+    private int[] mServiceDataUuidWidths = new int[INITIAL_FIELDS];
+    private int mServiceDataCount;
+
+    public AdvertisementParser() {
+        this(new AdPayloadInterner());
+    }
+
+    /**
+     * Create a parser that shares its payload cache
+     *
+     * @param interner cache for names and payloads seen repeatedly
+     */
+    public AdvertisementParser(AdPayloadInterner interner) {
+        mInterner = interner;
+        reset();
+    }
+
+    /**
+     * Parse a scan record
+     *
+     * @param scanRecord the raw advertisement, as delivered to onLeScan or by ScanRecord.getBytes()
+     * @return <b>true</b> if the whole record was well formed
+     */
+    public boolean parse(byte[] scanRecord) {
+        reset();
+        if (scanRecord == null) return false;
+        mScanRecord = scanRecord;
+
+        int position = 0;
+        while (position < scanRecord.length) {
+            int length = scanRecord[position] & 0xFF;
+            if (length == 0) break; // the rest of the record is zero padding
+            if (position + 1 + length > scanRecord.length) return false; // truncated structure
+
+            int type = scanRecord[position + 1] & 0xFF;
+            int dataOffset = position + 2;
+            int dataLength = length - 1;
+            onAdStructure(type, dataOffset, dataLength);
+
+            position += length + 1;
+        }
+        return true;
+    }
+
+    private void onAdStructure(int type, int offset, int length) {
+        switch (type) {
+            case TYPE_FLAGS:
+                if (length >= 1) mFlags = mScanRecord[offset] & 0xFF;
+                break;
+            case TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                addUuidField(offset, length, 2);
+                break;
+            case TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                addUuidField(offset, length, 4);
+                break;
+            case TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                addUuidField(offset, length, 16);
+                break;
+            case TYPE_LOCAL_NAME_SHORT:
+                // a complete name always wins over a shortened one
+                if (!mLocalNameComplete) {
+                    mLocalNameOffset = offset;
+                    mLocalNameLength = length;
+                }
+                break;
+            case TYPE_LOCAL_NAME_COMPLETE:
+                mLocalNameOffset = offset;
+                mLocalNameLength = length;
+                mLocalNameComplete = true;
+                break;
+            case TYPE_TX_POWER_LEVEL:
+                if (length >= 1) mTxPowerLevel = mScanRecord[offset]; // signed dBm
+                break;
+            case TYPE_SERVICE_DATA_16_BIT:
+                addServiceDataField(offset, length, 2);
+                break;
+            case TYPE_SERVICE_DATA_32_BIT:
+                addServiceDataField(offset, length, 4);
+                break;
+            case TYPE_SERVICE_DATA_128_BIT:
+                addServiceDataField(offset, length, 16);
+                break;
+            case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                if (length >= 2) {
+                    if (mManufacturerCount == mManufacturerOffsets.length) {
+                        mManufacturerOffsets = grow(mManufacturerOffsets);
+                        mManufacturerLengths = grow(mManufacturerLengths);
+                    }
+                    mManufacturerOffsets[mManufacturerCount] = offset;
+                    mManufacturerLengths[mManufacturerCount] = length;
+                    mManufacturerCount++;
+                }
+                break;
+            default:
+                // not interesting to us
+        }
+    }
+
+    private void addUuidField(int offset, int length, int width) {
+        if (mUuidFieldCount == mUuidOffsets.length) {
+            mUuidOffsets = grow(mUuidOffsets);
+            mUuidLengths = grow(mUuidLengths);
+            mUuidWidths = grow(mUuidWidths);
+        }
+        int count = length / width;
+        mUuidOffsets[mUuidFieldCount] = offset;
+        mUuidLengths[mUuidFieldCount] = count * width;
+        mUuidWidths[mUuidFieldCount] = width;
+        mUuidFieldCount++;
+        mServiceUuidCount += count;
+    }
+
+    private void addServiceDataField(int offset, int length, int width) {
+        if (length < width) return;
+        if (mServiceDataCount == mServiceDataOffsets.length) {
+            mServiceDataOffsets = grow(mServiceDataOffsets);
+            mServiceDataLengths = grow(mServiceDataLengths);
+            mServiceDataUuidWidths = grow(mServiceDataUuidWidths);
+        }
+        mServiceDataOffsets[mServiceDataCount] = offset;
+        mServiceDataLengths[mServiceDataCount] = length;
+        mServiceDataUuidWidths[mServiceDataCount] = width;
+        mServiceDataCount++;
+    }
+
+    private static int[] grow(int[] table) {
+        return Arrays.copyOf(table, table.length * 2);
+    }
+
+    private void reset() {
+        mScanRecord = null;
+        mFlags = -1;
+        mTxPowerLevel = TX_POWER_UNKNOWN;
+        mLocalNameOffset = mLocalNameLength = 0;
+        mLocalNameComplete = false;
+        mUuidFieldCount = mServiceUuidCount = 0;
+        mManufacturerCount = 0;
+        mServiceDataCount = 0;
+    }
+
+
+    /** ACCESSORS **/
+
+    /**
+     * @return the scan record currently parsed.  All offsets refer to this array.
+     */
+    public byte[] getScanRecord() {
+        return mScanRecord;
+    }
+
+    /**
+     * @return the advertising flags, or -1 if none were advertised
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return the advertised TX power level in dBm, or TX_POWER_UNKNOWN
+     */
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    public boolean hasLocalName() {
+        return mLocalNameLength > 0;
+    }
+
+    public boolean isLocalNameComplete() {
+        return mLocalNameComplete;
+    }
+
+    public int getLocalNameOffset() {
+        return mLocalNameOffset;
+    }
+
+    public int getLocalNameLength() {
+        return mLocalNameLength;
+    }
+
+    /**
+     * Get the advertised local name.  Repeated names are served from the interner.
+     *
+     * @return the local name, or <b>null</b> if none was advertised
+     */
+    public String getLocalName() {
+        if (mLocalNameLength <= 0) return null;
+        return mInterner.internString(mScanRecord, mLocalNameOffset, mLocalNameLength);
+    }
+
+    /**
+     * @return the number of advertised service UUIDs, of any width
+     */
+    public int getServiceUuidCount() {
+        return mServiceUuidCount;
+    }
+
+    /**
+     * Get the width in bytes of an advertised service UUID
+     *
+     * @param index index of the UUID, 0 to getServiceUuidCount() - 1
+     * @return 2, 4 or 16
+     */
+    public int getServiceUuidWidth(int index) {
+        return mUuidWidths[findUuidField(index)];
+    }
+
+    /**
+     * Get the offset of an advertised service UUID in the scan record.  UUIDs are little endian.
+     *
+     * @param index index of the UUID, 0 to getServiceUuidCount() - 1
+     * @return offset into getScanRecord()
+     */
+    public int getServiceUuidOffset(int index) {
+        int field = findUuidField(index);
+        for (int i = 0; i < field; i++) {
+            index -= mUuidLengths[i] / mUuidWidths[i];
+        }
+        return mUuidOffsets[field] + index * mUuidWidths[field];
+    }
+
+    /**
+     * Get the most significant bits of an advertised service UUID, expanded to 128 bits
+     *
+     * @param index index of the UUID, 0 to getServiceUuidCount() - 1
+     * @return the upper 64 bits of the UUID
+     */
+    public long getServiceUuidMostSignificantBits(int index) {
+        return uuidMsb(getServiceUuidOffset(index), getServiceUuidWidth(index));
+    }
+
+    /**
+     * Get the least significant bits of an advertised service UUID, expanded to 128 bits
+     *
+     * @param index index of the UUID, 0 to getServiceUuidCount() - 1
+     * @return the lower 64 bits of the UUID
+     */
+    public long getServiceUuidLeastSignificantBits(int index) {
+        return uuidLsb(getServiceUuidOffset(index), getServiceUuidWidth(index));
+    }
+
+    /**
+     * Get an advertised service UUID.  This allocates a UUID, so prefer hasServiceUuid() when matching
+     *
+     * @param index index of the UUID, 0 to getServiceUuidCount() - 1
+     * @return the 128-bit service UUID
+     */
+    public UUID getServiceUuid(int index) {
+        return new UUID(getServiceUuidMostSignificantBits(index), getServiceUuidLeastSignificantBits(index));
+    }
+
+    /**
+     * Check if a service UUID is advertised, without allocating
+     *
+     * @param uuid the 128-bit service UUID
+     * @return <b>true</b> if the Peripheral advertises this service
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int field = 0; field < mUuidFieldCount; field++) {
+            int width = mUuidWidths[field];
+            for (int offset = mUuidOffsets[field]; offset < mUuidOffsets[field] + mUuidLengths[field]; offset += width) {
+                if (uuidLsb(offset, width) == lsb && uuidMsb(offset, width) == msb) return true;
+            }
+        }
+        return false;
+    }
+
+    public int getManufacturerDataCount() {
+        return mManufacturerCount;
+    }
+
+    /**
+     * @param index index of the manufacturer specific data, 0 to getManufacturerDataCount() - 1
+     * @return the Bluetooth SIG company identifier
+     */
+    public int getManufacturerId(int index) {
+        return uint16(mManufacturerOffsets[index]);
+    }
+
+    /**
+     * @param index index of the manufacturer specific data, 0 to getManufacturerDataCount() - 1
+     * @return offset into getScanRecord() of the data following the company identifier
+     */
+    public int getManufacturerDataOffset(int index) {
+        return mManufacturerOffsets[index] + 2;
+    }
+
+    /**
+     * @param index index of the manufacturer specific data, 0 to getManufacturerDataCount() - 1
+     * @return length of the data following the company identifier
+     */
+    public int getManufacturerDataLength(int index) {
+        return mManufacturerLengths[index] - 2;
+    }
+
+    /**
+     * Find the manufacturer specific data of a company
+     *
+     * @param manufacturerId the Bluetooth SIG company identifier
+     * @return the index of the data, or -1 if that company's data is not advertised
+     */
+    public int findManufacturerData(int manufacturerId) {
+        for (int i = 0; i < mManufacturerCount; i++) {
+            if (getManufacturerId(i) == manufacturerId) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get a copy of some manufacturer specific data.  Repeated payloads are served from the interner,
+     * so the returned array is shared and must not be modified.
+     *
+     * @param index index of the manufacturer specific data, 0 to getManufacturerDataCount() - 1
+     * @return the data following the company identifier
+     */
+    public byte[] getManufacturerData(int index) {
+        return mInterner.internBytes(mScanRecord, getManufacturerDataOffset(index), getManufacturerDataLength(index));
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    /**
+     * @param index index of the service data, 0 to getServiceDataCount() - 1
+     * @return the upper 64 bits of the service UUID the data belongs to
+     */
+    public long getServiceDataUuidMostSignificantBits(int index) {
+        return uuidMsb(mServiceDataOffsets[index], mServiceDataUuidWidths[index]);
+    }
+
+    /**
+     * @param index index of the service data, 0 to getServiceDataCount() - 1
+     * @return the lower 64 bits of the service UUID the data belongs to
+     */
+    public long getServiceDataUuidLeastSignificantBits(int index) {
+        return uuidLsb(mServiceDataOffsets[index], mServiceDataUuidWidths[index]);
+    }
+
+    /**
+     * @param index index of the service data, 0 to getServiceDataCount() - 1
+     * @return offset into getScanRecord() of the data following the service UUID
+     */
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffsets[index] + mServiceDataUuidWidths[index];
+    }
+
+    /**
+     * @param index index of the service data, 0 to getServiceDataCount() - 1
+     * @return length of the data following the service UUID
+     */
+    public int getServiceDataLength(int index) {
+        return mServiceDataLengths[index] - mServiceDataUuidWidths[index];
+    }
+
+    /**
+     * Find the service data of a service
+     *
+     * @param uuid the 128-bit service UUID
+     * @return the index of the data, or -1 if no data is advertised for that service
+     */
+    public int findServiceData(UUID uuid) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (getServiceDataUuidLeastSignificantBits(i) == uuid.getLeastSignificantBits()
+                    && getServiceDataUuidMostSignificantBits(i) == uuid.getMostSignificantBits()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get a copy of some service data.  Repeated payloads are served from the interner,
+     * so the returned array is shared and must not be modified.
+     *
+     * @param index index of the service data, 0 to getServiceDataCount() - 1
+     * @return the data following the service UUID
+     */
+    public byte[] getServiceData(int index) {
+        return mInterner.internBytes(mScanRecord, getServiceDataOffset(index), getServiceDataLength(index));
+    }
+
+
+    /** UUID DECODING **/
+
+    private int findUuidField(int index) {
+        if (index < 0 || index >= mServiceUuidCount) {
+            throw new IndexOutOfBoundsException("No service UUID at index " + index);
+        }
+        for (int field = 0; field < mUuidFieldCount; field++) {
+            int count = mUuidLengths[field] / mUuidWidths[field];
+            if (index < count) return field;
+            index -= count;
+        }
+        throw new IndexOutOfBoundsException("No service UUID at index " + index);
+    }
+
+    private long uuidMsb(int offset, int width) {
+        if (width == 16) return littleEndianLong(offset + 8);
+        long shortUuid = width == 2 ? uint16(offset) : uint32(offset);
+        return (shortUuid << 32) | BASE_UUID_MSB;
+    }
+
+    private long uuidLsb(int offset, int width) {
+        if (width == 16) return littleEndianLong(offset);
+        return BASE_UUID_LSB;
+    }
+
+    private int uint16(int offset) {
+        return (mScanRecord[offset] & 0xFF) | ((mScanRecord[offset + 1] & 0xFF) << 8);
+    }
+
+    private long uint32(int offset) {
+        return (uint16(offset) | ((long) uint16(offset + 2) << 16)) & 0xFFFFFFFFL;
+    }
+
+    private long littleEndianLong(int offset) {
+        return uint32(offset) | (uint32(offset + 4) << 32);
+    }
+}
@@ -9,14 +9,22 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv18;
 import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv21;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.FilteredScanCallbackv18;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.FilteredScanCallbackv21;
 
 
 /**
@@ -27,13 +35,31 @@ import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleSc
  */
 public class BleCommManager {
     private static final String TAG = BleCommManager.class.getSimpleName();
-    private static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
+    public static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
 
     private BluetoothAdapter mBluetoothAdapter; // Andrdoid's Bluetooth Adapter
     private BluetoothLeScanner mBluetoothLeScanner; // Ble scanner - API >= 21
 
+    private BleScanFilterSet mScanFilterSet = null; // null reports every Peripheral
+    private long mReportDelayMillis = 0; // 0 reports every advertisement as it arrives
+    private boolean mCodedPhyScan = false;
+    private boolean mSoftwareFiltering = true; // filter in software when the controller can not
 
-    private Timer mTimer = new Timer(); // scan timer
+    // one long-lived thread starts, stops and times out the scans of every BleCommManager
+    private static final ScheduledExecutorService sScanScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BleScanScheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // keeps every BleCommManager in the process below Android's limit of 5 scan starts per 30 seconds
+    private static final ScanGovernor sScanGovernor = new ScanGovernor();
+
+    private final AtomicInteger mScanGeneration = new AtomicInteger();
+    private ScanHandle mActiveScan; // guarded by this
 
     /**
      * Initialize the BleCommManager
@@ -64,78 +90,223 @@ public class BleCommManager {
     }
 
 
+    /**
+     * Only report Peripherals matching a filter set in future scans
+     *
+     * @param scanFilterSet the Peripherals to scan for, or <b>null</b> to report every Peripheral
+     */
+    public void setScanFilters(BleScanFilterSet scanFilterSet) {
+        mScanFilterSet = scanFilterSet;
+    }
+
+    /**
+     * @return the filter set applied to future scans, or <b>null</b> if every Peripheral is reported
+     */
+    public BleScanFilterSet getScanFilters() {
+        return mScanFilterSet;
+    }
+
+    /**
+     * Choose whether future scans filter in software when the controller can not filter.
+     * Turn this off when the scan callbacks match every result themselves: the filters are then
+     * only handed to the controller, where it supports offloaded filtering.
+     *
+     * @param softwareFiltering <b>false</b> to pass every result the controller reports to the callbacks
+     */
+    public void setSoftwareFiltering(boolean softwareFiltering) {
+        mSoftwareFiltering = softwareFiltering;
+    }
+
+    /**
+     * Check if the Bluetooth controller can evaluate ScanFilters itself,
+     * so that the Android device is only woken up for matching advertisements
+     *
+     * @return <b>true</b> if filtering is offloaded to the controller
+     */
+    public boolean isOffloadedFilteringSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mBluetoothAdapter.isOffloadedFilteringSupported();
+    }
+
+    /**
+     * Deliver scan results in batches rather than one by one.
+     * The controller queues results and hands them over every reportDelayMillis
+     * through BleScanCallbackv21.onBatchScanResults().  This is ignored if the
+     * controller does not support batching.
+     *
+     * @param reportDelayMillis how long to queue results for, or 0 to report every result immediately
+     */
+    public void setReportDelay(long reportDelayMillis) {
+        if (reportDelayMillis < 0) {
+            throw new IllegalArgumentException("reportDelayMillis must be >= 0");
+        }
+        mReportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * @return the batching delay applied to future scans, 0 if results are reported immediately
+     */
+    public long getReportDelay() {
+        return mReportDelayMillis;
+    }
+
+    /**
+     * Check if the Bluetooth controller can queue scan results and deliver them in batches
+     *
+     * @return <b>true</b> if batched scanning is supported
+     */
+    public boolean isOffloadedScanBatchingSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+    }
+
+    /**
+     * Also listen for extended advertisements, including those sent on the LE Coded PHY.
+     * The Coded PHY trades data rate for roughly four times the range.
+     * This is ignored if the controller does not support it.
+     *
+     * @param codedPhyScan <b>true</b> to scan all supported PHYs, <b>false</b> for legacy advertisements on LE 1M only
+     */
+    public void setCodedPhyScan(boolean codedPhyScan) {
+        mCodedPhyScan = codedPhyScan;
+    }
+
+    /**
+     * @return <b>true</b> if future scans also listen on the Coded PHY
+     */
+    public boolean isCodedPhyScan() {
+        return mCodedPhyScan;
+    }
+
+    /**
+     * Check if the Bluetooth controller can receive extended advertisements on the LE Coded PHY
+     *
+     * @return <b>true</b> if Coded PHY scanning is supported
+     */
+    public boolean isCodedPhyScanSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && mBluetoothAdapter.isLeCodedPhySupported()
+                && mBluetoothAdapter.isLeExtendedAdvertisingSupported();
+    }
+
     /**
      * Scan for Peripherals
      *
+     * A new scan supersedes any scan this BleCommManager is still running.
+     *
      * @param bleScanCallbackv18 APIv18 compatible ScanCallback
      * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @return a handle that can cancel this scan
      * @throws Exception
      */
-    public void scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
-        // Don't proceed if there is already a scan in progress
-        mTimer.cancel();
-
-        // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            // Scan for SCAN_PERIOD milliseconds.
-            // at the end of that time, stop the scan.
-            new Thread() {
-                @SuppressLint("MissingPermission")
-                @Override
-                public void run() {
-                    mBluetoothAdapter.startLeScan(bleScanCallbackv18);
+    public ScanHandle scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
+        return scanForPeripherals(bleScanCallbackv18, bleScanCallbackv21, ScanSettings.SCAN_MODE_LOW_LATENCY, SCAN_PERIOD);
+    }
 
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                        mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Scan for Peripherals with a given scan mode and duration
+     *
+     * If the same callbacks are already scanning with the same settings, the running scan is
+     * extended instead of restarted.  Otherwise the new scan supersedes any scan this
+     * BleCommManager is still running.  Starts are deferred when the app is about to exceed
+     * Android's limit of 5 scan starts per 30 seconds.
+     *
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @param scanMode one of ScanSettings.SCAN_MODE_*.  Ignored before API 21
+     * @param scanPeriodMillis how long to scan for, or 0 to scan until stopped
+     * @return a handle that can cancel this scan
+     * @throws Exception
+     */
+    public ScanHandle scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21, int scanMode, long scanPeriodMillis) throws Exception {
+        // merge into the running scan rather than restarting the radio
+        synchronized (this) {
+            if (mActiveScan != null && mActiveScan.isSameScan(bleScanCallbackv18, bleScanCallbackv21, scanMode, mScanFilterSet, mReportDelayMillis, mCodedPhyScan)) {
+                mActiveScan.extend(scanPeriodMillis);
+                sScanGovernor.onMerged();
+                return mActiveScan;
+            }
+        }
 
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
-                }
-            }, SCAN_PERIOD);
+        final ScanHandle scanHandle = new ScanHandle(mScanGeneration.incrementAndGet(), bleScanCallbackv18, bleScanCallbackv21,
+                scanMode, mScanFilterSet, mReportDelayMillis, mCodedPhyScan);
 
+        // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // startLeScan() can not filter, so filter in software
+            if (mScanFilterSet != null && !mScanFilterSet.isEmpty() && mSoftwareFiltering) {
+                scanHandle.mRadioScanCallbackv18 = new FilteredScanCallbackv18(bleScanCallbackv18, mScanFilterSet);
+            } else {
+                scanHandle.mRadioScanCallbackv18 = bleScanCallbackv18;
+            }
 
         } else { // use BluetoothLeScanner.startScan() for API 21 (Lollipop) or greater
-            final ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .build();
-            final List<ScanFilter> filters = new ArrayList<ScanFilter>();
-            mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-
+            ScanSettings.Builder settingsBuilder = new ScanSettings.Builder()
+                    .setScanMode(scanMode);
+            if (mReportDelayMillis > 0 && isOffloadedScanBatchingSupported()) {
+                settingsBuilder.setReportDelay(mReportDelayMillis);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mCodedPhyScan && isCodedPhyScanSupported()) {
+                settingsBuilder.setLegacy(false).setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+            }
+            scanHandle.mScanSettings = settingsBuilder.build();
+            // let the controller filter advertisements if it can, otherwise filter them in software
+            if (mScanFilterSet == null || mScanFilterSet.isEmpty()) {
+                scanHandle.mScanFilters = new ArrayList<ScanFilter>();
+                scanHandle.mRadioScanCallbackv21 = bleScanCallbackv21;
+            } else if (isOffloadedFilteringSupported()) {
+                scanHandle.mScanFilters = mScanFilterSet.toScanFilters();
+                scanHandle.mRadioScanCallbackv21 = bleScanCallbackv21;
+            } else {
+                scanHandle.mScanFilters = new ArrayList<ScanFilter>();
+                scanHandle.mRadioScanCallbackv21 = mSoftwareFiltering ? new FilteredScanCallbackv21(bleScanCallbackv21, mScanFilterSet) : bleScanCallbackv21;
+            }
+        }
 
-            new Thread() {
-                @SuppressLint("MissingPermission")
-                @Override
-                public void run() {
-                    mBluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
+        final ScanHandle supersededScan;
+        synchronized (this) {
+            supersededScan = mActiveScan;
+            mActiveScan = scanHandle;
+        }
+        if (supersededScan != null) {
+            supersededScan.cancelTimeout();
+        }
 
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                        mBluetoothLeScanner.stopScan(bleScanCallbackv21);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+        // radio operations all run in order on the scan scheduler
+        sScanScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (supersededScan != null) {
+                    stopRadioScan(supersededScan);
+                    // only tell the previous caller its scan is over if it did not restart the scan itself
+                    if (supersededScan.mScanCallbackv21 != bleScanCallbackv21 || supersededScan.mScanCallbackv18 != bleScanCallbackv18) {
+                        notifyScanComplete(supersededScan.mScanCallbackv18, supersededScan.mScanCallbackv21);
                     }
                 }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
+            }
+        });
+
+        final long startAt = sScanGovernor.reserveStart();
+        final long startDelay = Math.max(0, startAt - SystemClock.elapsedRealtime());
+        if (startDelay > 0) {
+            Log.w(TAG, "Deferring scan start by " + startDelay + " ms to stay below the scan throttle");
+        }
+        sScanScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (scanHandle.isActive()) {
+                    startRadioScan(scanHandle);
+                } else {
+                    sScanGovernor.releaseStart(startAt); // cancelled before it started
                 }
-            }, SCAN_PERIOD);
+            }
+        }, startDelay, TimeUnit.MILLISECONDS);
+
+        // alert the system that BLE scanning has stopped after scanPeriodMillis milliseconds
+        synchronized (this) {
+            scanHandle.mStartAt = startAt;
+            scanHandle.extend(scanPeriodMillis);
         }
 
+        return scanHandle;
     }
 
 
@@ -145,21 +316,237 @@ public class BleCommManager {
      * @param bleScanCallbackv18 APIv18 compatible ScanCallback
      * @param bleScanCallbackv21 APIv21 compatible ScanCallback
      */
-    @SuppressLint("MissingPermission")
     public void stopScanning(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
-        mTimer.cancel();
+        final ScanHandle stoppedScan;
+        synchronized (this) {
+            if (mActiveScan != null && mActiveScan.mScanCallbackv18 == bleScanCallbackv18 && mActiveScan.mScanCallbackv21 == bleScanCallbackv21) {
+                stoppedScan = mActiveScan;
+                mActiveScan = null;
+            } else {
+                stoppedScan = null;
+            }
+        }
+        if (stoppedScan != null) {
+            stoppedScan.cancelTimeout();
+        }
+
+        sScanScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stoppedScan != null) {
+                    stopRadioScan(stoppedScan);
+                }
+                // propagate the onScanComplete through the system
+                notifyScanComplete(bleScanCallbackv18, bleScanCallbackv21);
+            }
+        });
+    }
+
+    /**
+     * Stop a scan, unless it has already been stopped or superseded by a newer scan
+     *
+     * @param scanHandle the scan to stop
+     * @return <b>true</b> if the scan was still running
+     */
+    public boolean stopScan(final ScanHandle scanHandle) {
+        synchronized (this) {
+            if (mActiveScan == null || mActiveScan.mGeneration != scanHandle.mGeneration) {
+                return false; // stale: this scan is already over
+            }
+            mActiveScan = null;
+        }
+        scanHandle.cancelTimeout();
+
+        sScanScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopRadioScan(scanHandle);
+                notifyScanComplete(scanHandle.mScanCallbackv18, scanHandle.mScanCallbackv21);
+            }
+        });
+        return true;
+    }
 
-        // propagate the onScanComplete through the system
+    /**
+     * @return how many radio scans the app has started
+     */
+    public static long getScanStartCount() {
+        return sScanGovernor.getStartCount();
+    }
+
+    /**
+     * @return how many scan starts were deferred to stay below Android's scan throttle
+     */
+    public static long getThrottledScanStartCount() {
+        return sScanGovernor.getThrottledCount();
+    }
+
+    /**
+     * @return how many scan requests were merged into an already running scan instead of restarting it
+     */
+    public static long getMergedScanStartCount() {
+        return sScanGovernor.getMergedCount();
+    }
+
+    /**
+     * @return the thread that runs all scan starts, stops and timeouts
+     */
+    static ScheduledExecutorService getScanScheduler() {
+        return sScanScheduler;
+    }
+
+    /**
+     * @return the scan currently running, or <b>null</b> if there is none
+     */
+    public synchronized ScanHandle getActiveScan() {
+        return mActiveScan;
+    }
+
+    /**
+     * Start the radio scan.  Only call this from the scan scheduler.
+     */
+    @SuppressLint("MissingPermission")
+    private void startRadioScan(ScanHandle scanHandle) {
+        try {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                mBluetoothAdapter.startLeScan(scanHandle.mRadioScanCallbackv18);
+            } else {
+                mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+                mBluetoothLeScanner.startScan(scanHandle.mScanFilters, scanHandle.mScanSettings, scanHandle.mRadioScanCallbackv21);
+            }
+            scanHandle.mRadioScanStarted = true;
+        } catch (Exception e) {
+            // Bluetooth was probably turned off
+            Log.e(TAG, "Could not start scan: " + e.getMessage());
+            stopScan(scanHandle);
+        }
+    }
+
+    /**
+     * Stop the radio scan.  Only call this from the scan scheduler.
+     */
+    @SuppressLint("MissingPermission")
+    private void stopRadioScan(ScanHandle scanHandle) {
+        if (!scanHandle.mRadioScanStarted) return;
+        scanHandle.mRadioScanStarted = false;
+        try {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                mBluetoothAdapter.stopLeScan(scanHandle.mRadioScanCallbackv18);
+            } else if (mBluetoothLeScanner != null) {
+                // deliver results still queued in the controller before stopping
+                mBluetoothLeScanner.flushPendingScanResults(scanHandle.mRadioScanCallbackv21);
+                mBluetoothLeScanner.stopScan(scanHandle.mRadioScanCallbackv21);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not stop scan: " + e.getMessage());
+        }
+    }
+
+    private static void notifyScanComplete(BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
             bleScanCallbackv18.onScanComplete();
         } else {
-            // mBluetoothLeScanner.stopScan(bleScanCallbackv21);
-            if (mBluetoothLeScanner != null) {
-                mBluetoothLeScanner.stopScan(bleScanCallbackv21);
-            }
             bleScanCallbackv21.onScanComplete();
         }
     }
-}
 
+
+    /**
+     * A single scan started by scanForPeripherals().
+     * Each scan gets a new generation number, so a late stop meant for an old scan
+     * can never stop a newer one.
+     */
+    public class ScanHandle {
+        private final int mGeneration;
+        private final BleScanCallbackv18 mScanCallbackv18;
+        private final BleScanCallbackv21 mScanCallbackv21;
+        private final int mScanMode;
+        private final BleScanFilterSet mScanFilterSet;
+        private final long mReportDelayMillis;
+        private final boolean mCodedPhyScan;
+
+        // what is registered with the radio, possibly software filters wrapping the callbacks above
+        private BleScanCallbackv18 mRadioScanCallbackv18;
+        private BleScanCallbackv21 mRadioScanCallbackv21;
+        private List<ScanFilter> mScanFilters;
+        private ScanSettings mScanSettings;
+
+        private ScheduledFuture<?> mTimeout; // guarded by BleCommManager.this
+        private long mStartAt; // when the radio scan starts, guarded by BleCommManager.this
+        private long mDeadline; // when the scan times out, guarded by BleCommManager.this
+        private boolean mRadioScanStarted = false; // only touched on the scan scheduler
+
+        private ScanHandle(int generation, BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21,
+                           int scanMode, BleScanFilterSet scanFilterSet, long reportDelayMillis, boolean codedPhyScan) {
+            mGeneration = generation;
+            mScanCallbackv18 = bleScanCallbackv18;
+            mScanCallbackv21 = bleScanCallbackv21;
+            mScanMode = scanMode;
+            mScanFilterSet = scanFilterSet;
+            mReportDelayMillis = reportDelayMillis;
+            mCodedPhyScan = codedPhyScan;
+        }
+
+        /**
+         * @return the generation number of this scan
+         */
+        public int getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * @return <b>true</b> if this scan has been neither stopped nor superseded
+         */
+        public boolean isActive() {
+            synchronized (BleCommManager.this) {
+                return mActiveScan != null && mActiveScan.mGeneration == mGeneration;
+            }
+        }
+
+        /**
+         * Stop this scan.  Does nothing if the scan is already over.
+         */
+        public void cancel() {
+            stopScan(this);
+        }
+
+        /**
+         * Check if a scan request would configure the radio exactly like this scan
+         */
+        private boolean isSameScan(BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21,
+                                   int scanMode, BleScanFilterSet scanFilterSet, long reportDelayMillis, boolean codedPhyScan) {
+            return mScanCallbackv18 == bleScanCallbackv18 && mScanCallbackv21 == bleScanCallbackv21
+                    && mScanMode == scanMode && mReportDelayMillis == reportDelayMillis && mCodedPhyScan == codedPhyScan
+                    && (mScanFilterSet == null ? scanFilterSet == null : mScanFilterSet.equals(scanFilterSet));
+        }
+
+        /**
+         * Make sure the scan runs for at least scanPeriodMillis from now.  Call with BleCommManager.this held.
+         *
+         * @param scanPeriodMillis how long to keep scanning, or 0 to scan until stopped
+         */
+        private void extend(long scanPeriodMillis) {
+            if (mDeadline == Long.MAX_VALUE) return; // already scanning until stopped
+            cancelTimeout();
+            if (scanPeriodMillis <= 0) {
+                mDeadline = Long.MAX_VALUE;
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            mDeadline = Math.max(mDeadline, Math.max(now, mStartAt) + scanPeriodMillis);
+            mTimeout = sScanScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    stopScan(ScanHandle.this);
+                }
+            }, mDeadline - now, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelTimeout() {
+            synchronized (BleCommManager.this) {
+                if (mTimeout != null) mTimeout.cancel(false);
+                mTimeout = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps GATT connections alive across Activities.
+ *
+ * Every screen that talks to a Peripheral acquires it here and releases it when it is done.
+ * The first acquire connects and discovers the GATT profile; later acquires attach to the existing
+ * link and are told about the connection and the profile straight away, without another connect or discovery.
+ * Once the last holder releases a Peripheral, the link lingers for LINGER_MILLIS so that a screen
+ * opened right after can still pick it up, then disconnects.
+ *
+ * Owned by the Application, so it outlives any single Activity.
+ */
+public class BleConnectionManager {
+    private static final String TAG = BleConnectionManager.class.getSimpleName();
+    /** How long an unused link stays up **/
+    public static final long LINGER_MILLIS = 5000;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private BleCommManager mBleCommManager;
+
+    /** Links by upper case MAC address, guarded by this **/
+    private final Map<String, Link> mLinks = new HashMap<String, Link>();
+
+    /**
+     * @param context any Context, only its Application Context is kept
+     */
+    public BleConnectionManager(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Get a connected Peripheral, connecting to it if nobody holds it yet.
+     * The callback receives onConnectionStateChange once the link is ready and
+     * onServicesDiscovered once the profile is known, even if both happened before this call
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param callback receives the Peripheral's GATT events until released
+     * @param connectionOptions how to tune a new connection, ignored when attaching to an existing one
+     * @return the shared BlePeripheral
+     * @throws Exception if Bluetooth is not available or the connection can not be started
+     */
+    public BlePeripheral acquire(String macAddress, BluetoothGattCallback callback, BleConnectionOptions connectionOptions) throws Exception {
+        String key = macAddress.toUpperCase(Locale.US);
+        Link link;
+        boolean newLink = false;
+        synchronized (this) {
+            link = mLinks.get(key);
+            if (link == null) {
+                if (mBleCommManager == null) mBleCommManager = new BleCommManager(mContext);
+                link = new Link(key);
+                mLinks.put(key, link);
+                newLink = true;
+            }
+            mHandler.removeCallbacks(link.mLingerTimeout);
+            link.mHolders.addIfAbsent(callback);
+        }
+
+        if (newLink) {
+            BluetoothDevice bluetoothDevice = mBleCommManager.getBluetoothAdapter().getRemoteDevice(key);
+            try {
+                link.mBlePeripheral.connect(bluetoothDevice, link.mFanOut, mContext, connectionOptions);
+            } catch (Exception e) {
+                synchronized (this) {
+                    mLinks.remove(key);
+                }
+                throw e;
+            }
+            Log.v(TAG, "Connecting to " + key);
+        } else {
+            Log.v(TAG, "Attaching to existing link to " + key + ", " + link.mHolders.size() + " holders");
+            link.replayTo(callback);
+        }
+        return link.mBlePeripheral;
+    }
+
+    /**
+     * Get a connected Peripheral with the default connection options
+     *
+     * @see #acquire(String, BluetoothGattCallback, BleConnectionOptions)
+     */
+    public BlePeripheral acquire(String macAddress, BluetoothGattCallback callback) throws Exception {
+        return acquire(macAddress, callback, BleConnectionOptions.getDefault());
+    }
+
+    /**
+     * Stop receiving a Peripheral's events.  The last holder to release it lets the link go after LINGER_MILLIS
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param callback the callback given to acquire
+     */
+    public void release(String macAddress, BluetoothGattCallback callback) {
+        release(macAddress, callback, LINGER_MILLIS);
+    }
+
+    /**
+     * Stop receiving a Peripheral's events
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param callback the callback given to acquire
+     * @param lingerMillis how long the link stays up if this was the last holder.
+     *                     With 0 a connection that is still being set up is abandoned right away
+     */
+    public void release(String macAddress, BluetoothGattCallback callback, long lingerMillis) {
+        String key = macAddress.toUpperCase(Locale.US);
+        Link link;
+        synchronized (this) {
+            link = mLinks.get(key);
+            if (link == null) return;
+            link.mHolders.remove(callback);
+            if (!link.mHolders.isEmpty()) return;
+            if (lingerMillis > 0) {
+                mHandler.postDelayed(link.mLingerTimeout, lingerMillis);
+                return;
+            }
+        }
+        link.mLingerTimeout.run();
+    }
+
+    /**
+     * Drop a link now, whoever holds it.  Every holder receives STATE_DISCONNECTED
+     *
+     * @param macAddress the Peripheral's MAC address
+     */
+    public void disconnect(String macAddress) {
+        Link link;
+        synchronized (this) {
+            link = mLinks.get(macAddress.toUpperCase(Locale.US));
+        }
+        if (link != null) link.mBlePeripheral.disconnect();
+    }
+
+    /**
+     * @param macAddress the Peripheral's MAC address
+     * @return <b>true</b> if the Peripheral is connected and its connection tuned
+     */
+    public synchronized boolean isConnected(String macAddress) {
+        Link link = mLinks.get(macAddress.toUpperCase(Locale.US));
+        return link != null && link.mConnected;
+    }
+
+    private synchronized void remove(Link link) {
+        if (mLinks.get(link.mMacAddress) == link) {
+            mLinks.remove(link.mMacAddress);
+        }
+        mHandler.removeCallbacks(link.mLingerTimeout);
+    }
+
+
+    /**
+     * One shared connection and the callbacks holding it
+     */
+    private class Link {
+        final String mMacAddress;
+        final BlePeripheral mBlePeripheral = new BlePeripheral();
+        final CopyOnWriteArrayList<BluetoothGattCallback> mHolders = new CopyOnWriteArrayList<BluetoothGattCallback>();
+        volatile boolean mConnected = false;
+        volatile boolean mServicesDiscovered = false;
+
+        Link(String macAddress) {
+            mMacAddress = macAddress;
+        }
+
+        /**
+         * Tell a late holder what the others already know.  Posted, so acquire() has returned
+         * the BlePeripheral before the callback runs
+         */
+        void replayTo(final BluetoothGattCallback callback) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BluetoothGatt bluetoothGatt = mBlePeripheral.getBluetoothGatt();
+                    if (!mHolders.contains(callback) || bluetoothGatt == null || !mConnected) return;
+                    callback.onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                    if (mServicesDiscovered) {
+                        callback.onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Nobody picked the link up again
+         */
+        final Runnable mLingerTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (!mHolders.isEmpty()) return;
+                Log.v(TAG, "Releasing link to " + mMacAddress);
+                remove(Link.this);
+                if (mConnected) {
+                    mBlePeripheral.disconnect();
+                } else {
+                    mBlePeripheral.close();
+                }
+            }
+        };
+
+        /**
+         * Discovers the profile once per connection and passes every event on to every holder
+         */
+        final BluetoothGattCallback mFanOut = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    mConnected = true;
+                    mBlePeripheral.discoverServices(null);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    mConnected = false;
+                    mServicesDiscovered = false;
+                    remove(Link.this);
+                    mBlePeripheral.close();
+                }
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onConnectionStateChange(gatt, status, newState);
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) mServicesDiscovered = true;
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onServicesDiscovered(gatt, status);
+                }
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onCharacteristicRead(gatt, characteristic, status);
+                }
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onCharacteristicWrite(gatt, characteristic, status);
+                }
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onCharacteristicChanged(gatt, characteristic);
+                }
+            }
+
+            @Override
+            public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onDescriptorRead(gatt, descriptor, status);
+                }
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onDescriptorWrite(gatt, descriptor, status);
+                }
+            }
+
+            @Override
+            public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onReliableWriteCompleted(gatt, status);
+                }
+            }
+
+            @Override
+            public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onReadRemoteRssi(gatt, rssi, status);
+                }
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onMtuChanged(gatt, mtu, status);
+                }
+            }
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onPhyUpdate(gatt, txPhy, rxPhy, status);
+                }
+            }
+
+            @Override
+            public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                for (BluetoothGattCallback holder : mHolders) {
+                    holder.onPhyRead(gatt, txPhy, rxPhy, status);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * How BlePeripheral tunes a connection once it is established.
+ *
+ * Before the connection is reported to the caller, the Peripheral is asked for a larger MTU,
+ * so that every later read and write carries more data per round trip.  While GATT operations are
+ * queued or notifications are arriving, the connection runs at CONNECTION_PRIORITY_HIGH;
+ * once it has been idle for a while it drops back to CONNECTION_PRIORITY_BALANCED.
+ * On Android 8.0 and later the LE 2M PHY is requested, which roughly doubles the raw data rate
+ * when both sides support it, and the PHY actually in use is read back.
+ * A profile fingerprint, for example the Peripheral's firmware revision, decides whether
+ * Android's GATT cache can be trusted or has to be refreshed before service discovery.
+ */
+public class BleConnectionOptions {
+    /** 247 bytes of ATT MTU fill one 251 byte link layer packet when data length extension is active **/
+    public static final int DEFAULT_PREFERRED_MTU = 247;
+    public static final long DEFAULT_IDLE_MILLIS = 2000;
+
+    private final int mPreferredMtu;
+    private final boolean mHighPriorityWhileBusy;
+    private final long mIdleMillis;
+    private final int mPreferredPhyMask;
+    private final int mPhyOptions;
+    private final String mProfileFingerprint;
+
+    private BleConnectionOptions(Builder builder) {
+        mPreferredMtu = builder.mPreferredMtu;
+        mHighPriorityWhileBusy = builder.mHighPriorityWhileBusy;
+        mIdleMillis = builder.mIdleMillis;
+        mPreferredPhyMask = builder.mPreferredPhyMask;
+        mPhyOptions = builder.mPhyOptions;
+        mProfileFingerprint = builder.mProfileFingerprint;
+    }
+
+    /**
+     * @return the options BlePeripheral uses when none are given
+     */
+    public static BleConnectionOptions getDefault() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return the MTU to ask for after connecting, or BlePeripheral.DEFAULT_MTU to skip the MTU exchange
+     */
+    public int getPreferredMtu() {
+        return mPreferredMtu;
+    }
+
+    /**
+     * @return <b>true</b> if the connection switches to high priority while transfers are active
+     */
+    public boolean isHighPriorityWhileBusy() {
+        return mHighPriorityWhileBusy;
+    }
+
+    /**
+     * @return how long the connection must be idle before dropping back to balanced priority, in milliseconds
+     */
+    public long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    /**
+     * @return bitmask of BluetoothDevice.PHY_LE_*_MASK to ask for in both directions, or 0 to leave the PHY alone
+     */
+    public int getPreferredPhyMask() {
+        return mPreferredPhyMask;
+    }
+
+    /**
+     * @return BluetoothDevice.PHY_OPTION_*, the coding preferred on the Coded PHY
+     */
+    public int getPhyOptions() {
+        return mPhyOptions;
+    }
+
+    /**
+     * @return the firmware or profile fingerprint expected from the Peripheral, or <b>null</b> to trust the cached profile
+     */
+    public String getProfileFingerprint() {
+        return mProfileFingerprint;
+    }
+
+
+    /**
+     * Builds BleConnectionOptions
+     */
+    public static class Builder {
+        private int mPreferredMtu = DEFAULT_PREFERRED_MTU;
+        private boolean mHighPriorityWhileBusy = true;
+        private long mIdleMillis = DEFAULT_IDLE_MILLIS;
+        private int mPreferredPhyMask = BluetoothDevice.PHY_LE_2M_MASK;
+        private int mPhyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+        private String mProfileFingerprint = null;
+
+        /**
+         * @param preferredMtu the MTU to ask for, between 23 and 517
+         */
+        public Builder setPreferredMtu(int preferredMtu) {
+            if (preferredMtu < BlePeripheral.DEFAULT_MTU || preferredMtu > 517) {
+                throw new IllegalArgumentException("MTU must be between 23 and 517");
+            }
+            mPreferredMtu = preferredMtu;
+            return this;
+        }
+
+        public Builder setHighPriorityWhileBusy(boolean highPriorityWhileBusy) {
+            mHighPriorityWhileBusy = highPriorityWhileBusy;
+            return this;
+        }
+
+        public Builder setIdleMillis(long idleMillis) {
+            mIdleMillis = idleMillis;
+            return this;
+        }
+
+        /**
+         * @param preferredPhyMask bitmask of BluetoothDevice.PHY_LE_*_MASK, or 0 to leave the PHY alone
+         * @param phyOptions BluetoothDevice.PHY_OPTION_*, only used for the Coded PHY
+         */
+        public Builder setPreferredPhy(int preferredPhyMask, int phyOptions) {
+            mPreferredPhyMask = preferredPhyMask;
+            mPhyOptions = phyOptions;
+            return this;
+        }
+
+        /**
+         * @param profileFingerprint changes whenever the Peripheral's GATT profile may have changed,
+         *                           for example its firmware revision.  <b>null</b> trusts any cached profile
+         */
+        public Builder setProfileFingerprint(String profileFingerprint) {
+            mProfileFingerprint = profileFingerprint;
+            return this;
+        }
+
+        public BleConnectionOptions build() {
+            return new BleConnectionOptions(this);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.GattOperationCallback;
+
+/**
+ * Keeps links to many Peripherals at once, for example a gateway talking to several sensors.
+ *
+ * The Bluetooth controller only holds a limited number of connections, so at most MaxConnections
+ * links are open and the other Peripherals wait their turn.  Connections are set up one at a time,
+ * because most stacks fail or stall when several connection attempts run in parallel.
+ * A link that drops goes to the back of the line and is connected again.
+ *
+ * Every link keeps its own GattOperationQueue.  Operations submitted to the pool wait in a
+ * per-link backlog and are handed to the links round robin, one per link at a time and at most
+ * MaxOperationsInFlight across the pool, so a busy Peripheral can not starve the others.
+ */
+public class BleConnectionPool {
+    private static final String TAG = BleConnectionPool.class.getSimpleName();
+    /** Most Android controllers manage 7 simultaneous LE connections; some allow more **/
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    public static final int DEFAULT_MAX_OPERATIONS_IN_FLIGHT = 4;
+    /** A direct connection attempt that takes longer than this is given up and retried later **/
+    public static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_CONNECTING = 1; // connecting, negotiating and discovering services
+    private static final int STATE_READY = 2;
+    private static final int STATE_REMOVED = 3;
+
+    private final Context mContext;
+    private final BleCommManager mBleCommManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int mMaxConnections;
+    private final int mMaxOperationsInFlight;
+    private final BleConnectionOptions mConnectionOptions;
+
+    /** Pool state, guarded by this **/
+    private final List<PooledPeripheral> mPeripherals = new ArrayList<PooledPeripheral>();
+    private final ArrayDeque<PooledPeripheral> mWaiting = new ArrayDeque<PooledPeripheral>();
+    private PooledPeripheral mConnecting;
+    private int mOpenLinks = 0;
+    private int mOperationsInFlight = 0;
+    private int mNextLink = 0; // round robin position
+
+    /**
+     * @param context any Context, only its Application Context is kept
+     * @throws Exception Bluetooth Low Energy is not supported on this Android device
+     */
+    public BleConnectionPool(Context context) throws Exception {
+        this(context, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_OPERATIONS_IN_FLIGHT, BleConnectionOptions.getDefault());
+    }
+
+    /**
+     * @param context any Context, only its Application Context is kept
+     * @param maxConnections most links open at once, at most what the controller supports
+     * @param maxOperationsInFlight most GATT operations outstanding across all links
+     * @param connectionOptions how to tune every link
+     * @throws Exception Bluetooth Low Energy is not supported on this Android device
+     */
+    public BleConnectionPool(Context context, int maxConnections, int maxOperationsInFlight, BleConnectionOptions connectionOptions) throws Exception {
+        if (maxConnections < 1 || maxOperationsInFlight < 1) {
+            throw new IllegalArgumentException("Pool needs room for at least one connection and one operation");
+        }
+        mContext = context.getApplicationContext();
+        mBleCommManager = new BleCommManager(mContext);
+        mMaxConnections = maxConnections;
+        mMaxOperationsInFlight = maxOperationsInFlight;
+        mConnectionOptions = connectionOptions;
+    }
+
+    /**
+     * Add a Peripheral to the pool.  It is connected as soon as there is room
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param callback receives the Peripheral's GATT events, may be <b>null</b>
+     * @return the pooled Peripheral, to submit operations to
+     */
+    public PooledPeripheral add(String macAddress, BluetoothGattCallback callback) {
+        PooledPeripheral peripheral = new PooledPeripheral(macAddress.toUpperCase(Locale.US), callback);
+        synchronized (this) {
+            mPeripherals.add(peripheral);
+            mWaiting.add(peripheral);
+        }
+        connectNext();
+        return peripheral;
+    }
+
+    /**
+     * Disconnect a Peripheral and drop it from the pool.  Its waiting operations complete with STATUS_DISCONNECTED
+     *
+     * @param peripheral the pooled Peripheral
+     */
+    public void remove(PooledPeripheral peripheral) {
+        boolean wasOpen;
+        synchronized (this) {
+            if (peripheral.mState == STATE_REMOVED) return;
+            wasOpen = peripheral.mState == STATE_CONNECTING || peripheral.mState == STATE_READY;
+            peripheral.mState = STATE_REMOVED;
+            mPeripherals.remove(peripheral);
+            mWaiting.remove(peripheral);
+        }
+        if (wasOpen) {
+            // close() stops all further callbacks, so the link is released here
+            peripheral.mBlePeripheral.disconnect();
+            peripheral.mBlePeripheral.close();
+            onLinkClosed(peripheral);
+        }
+    }
+
+    /**
+     * Disconnect every Peripheral
+     */
+    public void close() {
+        for (PooledPeripheral peripheral : getPeripherals()) {
+            remove(peripheral);
+        }
+    }
+
+    /**
+     * @return every Peripheral in the pool, connected or waiting
+     */
+    public synchronized List<PooledPeripheral> getPeripherals() {
+        return new ArrayList<PooledPeripheral>(mPeripherals);
+    }
+
+    /**
+     * @return how many links are open or being opened
+     */
+    public synchronized int getOpenLinkCount() {
+        return mOpenLinks;
+    }
+
+    /**
+     * @return statistics summed over every Peripheral in the pool
+     */
+    public LinkStatistics getAggregateStatistics() {
+        LinkStatistics aggregate = new LinkStatistics();
+        for (PooledPeripheral peripheral : getPeripherals()) {
+            aggregate.add(peripheral.getStatistics());
+        }
+        return aggregate;
+    }
+
+
+    /**
+     * Open the next waiting link, if there is room and no other link is being set up
+     */
+    private void connectNext() {
+        PooledPeripheral peripheral;
+        synchronized (this) {
+            if (mConnecting != null || mOpenLinks >= mMaxConnections || mWaiting.isEmpty()) return;
+            peripheral = mWaiting.poll();
+            peripheral.mState = STATE_CONNECTING;
+            peripheral.mOpen = true;
+            mConnecting = peripheral;
+            mOpenLinks++;
+        }
+
+        Log.v(TAG, "Connecting to " + peripheral.mMacAddress);
+        mHandler.postDelayed(peripheral.mConnectTimeout, CONNECT_TIMEOUT_MILLIS);
+        try {
+            BluetoothDevice bluetoothDevice = mBleCommManager.getBluetoothAdapter().getRemoteDevice(peripheral.mMacAddress);
+            peripheral.mBlePeripheral.connect(bluetoothDevice, peripheral.mGattCallback, mContext, mConnectionOptions);
+        } catch (Exception e) {
+            // a bad address never connects, so do not put it back in line
+            Log.e(TAG, "Could not connect to " + peripheral.mMacAddress + ", removing it: " + e.getMessage());
+            synchronized (this) {
+                peripheral.mState = STATE_REMOVED;
+                mPeripherals.remove(peripheral);
+            }
+            peripheral.mBlePeripheral.close();
+            onLinkClosed(peripheral);
+        }
+    }
+
+    /**
+     * A link dropped, failed to open or was removed.  Free its slot, fail its backlog
+     * and put it at the back of the line unless it was removed
+     */
+    private void onLinkClosed(PooledPeripheral peripheral) {
+        mHandler.removeCallbacks(peripheral.mConnectTimeout);
+        List<GattOperation> dropped;
+        synchronized (this) {
+            if (!peripheral.mOpen) return;
+            peripheral.mOpen = false;
+            mOpenLinks--;
+            if (mConnecting == peripheral) mConnecting = null;
+            if (peripheral.mReadyAt > 0) {
+                peripheral.mConnectedMillis += SystemClock.elapsedRealtime() - peripheral.mReadyAt;
+                peripheral.mReadyAt = 0;
+            }
+            peripheral.mDisconnectCount++;
+            dropped = new ArrayList<GattOperation>(peripheral.mBacklog);
+            peripheral.mBacklog.clear();
+            if (peripheral.mState != STATE_REMOVED) {
+                peripheral.mState = STATE_WAITING;
+                mWaiting.add(peripheral);
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (GattOperation operation : dropped) {
+            operation.complete(GattOperation.STATUS_DISCONNECTED, now);
+        }
+        connectNext();
+        dispatch();
+    }
+
+    /**
+     * Hand backlogged operations to the links, round robin
+     */
+    private void dispatch() {
+        List<PooledPeripheral> targets = new ArrayList<PooledPeripheral>();
+        List<GattOperation> operations = new ArrayList<GattOperation>();
+        synchronized (this) {
+            int linkCount = mPeripherals.size();
+            int idleLinks = 0;
+            while (linkCount > 0 && idleLinks < linkCount && mOperationsInFlight < mMaxOperationsInFlight) {
+                if (mNextLink >= linkCount) mNextLink = 0;
+                PooledPeripheral peripheral = mPeripherals.get(mNextLink++);
+                // a dropped link stays STATE_READY until the pool hears of the disconnect,
+                // which is after the Peripheral has already failed its queue
+                if (peripheral.mState != STATE_READY || !peripheral.mBlePeripheral.isConnected()
+                        || peripheral.mInFlight != null || peripheral.mBacklog.isEmpty()) {
+                    idleLinks++;
+                    continue;
+                }
+                GattOperation operation = peripheral.mBacklog.poll();
+                peripheral.mInFlight = operation;
+                mOperationsInFlight++;
+                targets.add(peripheral);
+                operations.add(operation);
+                idleLinks = 0;
+            }
+        }
+
+        for (int i = 0; i < operations.size(); i++) {
+            targets.get(i).mBlePeripheral.getOperationQueue().enqueue(operations.get(i));
+        }
+    }
+
+
+    /**
+     * A Peripheral in the pool
+     */
+    public class PooledPeripheral {
+        private final String mMacAddress;
+        private final BluetoothGattCallback mCallback;
+        private final BlePeripheral mBlePeripheral = new BlePeripheral();
+
+        /** Link state, guarded by the pool **/
+        private int mState = STATE_WAITING;
+        private boolean mOpen = false; // holds one of the pool's connection slots
+        private final ArrayDeque<GattOperation> mBacklog = new ArrayDeque<GattOperation>();
+        private GattOperation mInFlight;
+
+        /** Statistics, guarded by the pool **/
+        private long mReadyAt = 0;
+        private long mConnectedMillis = 0;
+        private int mConnectCount = 0;
+        private int mDisconnectCount = 0;
+        private long mCompletedCount = 0;
+        private long mFailedCount = 0;
+        private long mBytesTransferred = 0;
+        private long mTotalLatencyMillis = 0;
+        private long mMaxLatencyMillis = 0;
+
+        PooledPeripheral(String macAddress, BluetoothGattCallback callback) {
+            mMacAddress = macAddress;
+            mCallback = callback;
+        }
+
+        public String getMacAddress() {
+            return mMacAddress;
+        }
+
+        /**
+         * @return the Peripheral, for Characteristic lookups.  Submit operations through enqueue() to keep scheduling fair
+         */
+        public BlePeripheral getBlePeripheral() {
+            return mBlePeripheral;
+        }
+
+        /**
+         * @return <b>true</b> if the link is open and its services discovered
+         */
+        public boolean isReady() {
+            synchronized (BleConnectionPool.this) {
+                return mState == STATE_READY;
+            }
+        }
+
+        /**
+         * Submit an operation.  It waits in this Peripheral's backlog until the pool schedules it.
+         * If the link drops first, it completes with STATUS_DISCONNECTED
+         *
+         * @param operation the operation
+         * @return the operation
+         */
+        public GattOperation enqueue(GattOperation operation) {
+            operation.mSubmittedAt = SystemClock.elapsedRealtime();
+            operation.setCompletionListener(mOperationCompleted);
+            boolean rejected;
+            synchronized (BleConnectionPool.this) {
+                rejected = mState == STATE_REMOVED;
+                if (!rejected) mBacklog.add(operation);
+            }
+            if (rejected) {
+                operation.complete(GattOperation.STATUS_DISCONNECTED, SystemClock.elapsedRealtime());
+            } else {
+                dispatch();
+            }
+            return operation;
+        }
+
+        /**
+         * @return a snapshot of this Peripheral's statistics
+         */
+        public LinkStatistics getStatistics() {
+            synchronized (BleConnectionPool.this) {
+                LinkStatistics statistics = new LinkStatistics();
+                statistics.mConnectedMillis = mConnectedMillis + (mReadyAt > 0 ? SystemClock.elapsedRealtime() - mReadyAt : 0);
+                statistics.mConnectCount = mConnectCount;
+                statistics.mDisconnectCount = mDisconnectCount;
+                statistics.mCompletedCount = mCompletedCount;
+                statistics.mFailedCount = mFailedCount;
+                statistics.mBytesTransferred = mBytesTransferred;
+                statistics.mTotalLatencyMillis = mTotalLatencyMillis;
+                statistics.mMaxLatencyMillis = mMaxLatencyMillis;
+                statistics.mBacklogDepth = mBacklog.size() + (mInFlight != null ? 1 : 0);
+                return statistics;
+            }
+        }
+
+        /**
+         * Records statistics and schedules the next operation.
+         * Latency is measured from submission to the pool until completion
+         */
+        private final GattOperationCallback mOperationCompleted = new GattOperationCallback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status) {
+                synchronized (BleConnectionPool.this) {
+                    if (mInFlight == operation) {
+                        mInFlight = null;
+                        mOperationsInFlight--;
+                    }
+                    long latency = SystemClock.elapsedRealtime() - operation.mSubmittedAt;
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mCompletedCount++;
+                        byte[] value = operation.getResultValue();
+                        mBytesTransferred += operation.getValueLength() + (value != null ? value.length : 0);
+                    } else {
+                        mFailedCount++;
+                    }
+                    mTotalLatencyMillis += latency;
+                    if (latency > mMaxLatencyMillis) mMaxLatencyMillis = latency;
+                }
+                dispatch();
+            }
+        };
+
+        private final Runnable mConnectTimeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleConnectionPool.this) {
+                    if (mState != STATE_CONNECTING) return;
+                }
+                Log.w(TAG, "Connecting to " + mMacAddress + " timed out, retrying later");
+                mBlePeripheral.close();
+                onLinkClosed(PooledPeripheral.this);
+            }
+        };
+
+        /**
+         * Tracks the link's state and passes every event on to the Peripheral's callback
+         */
+        private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if (gatt != mBlePeripheral.getBluetoothGatt()) return; // from a connection closed earlier
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    synchronized (BleConnectionPool.this) {
+                        mConnectCount++;
+                    }
+                    mBlePeripheral.discoverServices(null);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    mBlePeripheral.close();
+                    onLinkClosed(PooledPeripheral.this);
+                }
+                if (mCallback != null) mCallback.onConnectionStateChange(gatt, status, newState);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                boolean ready = false;
+                synchronized (BleConnectionPool.this) {
+                    if (status == BluetoothGatt.GATT_SUCCESS && mState == STATE_CONNECTING) {
+                        mState = STATE_READY;
+                        mReadyAt = SystemClock.elapsedRealtime();
+                        if (mConnecting == PooledPeripheral.this) mConnecting = null;
+                        ready = true;
+                    }
+                }
+                if (ready) {
+                    mHandler.removeCallbacks(mConnectTimeout);
+                    Log.v(TAG, "Link to " + mMacAddress + " ready");
+                    connectNext();
+                    dispatch();
+                } else if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.e(TAG, "Service discovery on " + mMacAddress + " failed: " + status);
+                    mBlePeripheral.disconnect();
+                }
+                if (mCallback != null) mCallback.onServicesDiscovered(gatt, status);
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                if (mCallback != null) mCallback.onCharacteristicRead(gatt, characteristic, status);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                if (mCallback != null) mCallback.onCharacteristicWrite(gatt, characteristic, status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                if (mCallback != null) mCallback.onCharacteristicChanged(gatt, characteristic);
+            }
+
+            @Override
+            public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                if (mCallback != null) mCallback.onDescriptorRead(gatt, descriptor, status);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                if (mCallback != null) mCallback.onDescriptorWrite(gatt, descriptor, status);
+            }
+
+            @Override
+            public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+                if (mCallback != null) mCallback.onReadRemoteRssi(gatt, rssi, status);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                if (mCallback != null) mCallback.onMtuChanged(gatt, mtu, status);
+            }
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                if (mCallback != null) mCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            }
+
+            @Override
+            public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                if (mCallback != null) mCallback.onPhyRead(gatt, txPhy, rxPhy, status);
+            }
+        };
+    }
+
+
+    /**
+     * Throughput and latency of one Peripheral, or of the whole pool
+     */
+    public static class LinkStatistics {
+        private long mConnectedMillis;
+        private int mConnectCount;
+        private int mDisconnectCount;
+        private long mCompletedCount;
+        private long mFailedCount;
+        private long mBytesTransferred;
+        private long mTotalLatencyMillis;
+        private long mMaxLatencyMillis;
+        private int mBacklogDepth;
+
+        void add(LinkStatistics other) {
+            mConnectedMillis += other.mConnectedMillis;
+            mConnectCount += other.mConnectCount;
+            mDisconnectCount += other.mDisconnectCount;
+            mCompletedCount += other.mCompletedCount;
+            mFailedCount += other.mFailedCount;
+            mBytesTransferred += other.mBytesTransferred;
+            mTotalLatencyMillis += other.mTotalLatencyMillis;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, other.mMaxLatencyMillis);
+            mBacklogDepth += other.mBacklogDepth;
+        }
+
+        /**
+         * @return how long the link was ready, in milliseconds.  Summed over links for the pool
+         */
+        public long getConnectedMillis() {
+            return mConnectedMillis;
+        }
+
+        public int getConnectCount() {
+            return mConnectCount;
+        }
+
+        public int getDisconnectCount() {
+            return mDisconnectCount;
+        }
+
+        public long getCompletedCount() {
+            return mCompletedCount;
+        }
+
+        public long getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * @return bytes read and written by successful operations
+         */
+        public long getBytesTransferred() {
+            return mBytesTransferred;
+        }
+
+        /**
+         * @return bytes transferred per second of connected time
+         */
+        public float getBytesPerSecond() {
+            return mConnectedMillis > 0 ? mBytesTransferred * 1000f / mConnectedMillis : 0;
+        }
+
+        /**
+         * @return average time from submission to completion, in milliseconds
+         */
+        public long getAverageLatencyMillis() {
+            long operations = mCompletedCount + mFailedCount;
+            return operations > 0 ? mTotalLatencyMillis / operations : 0;
+        }
+
+        public long getMaxLatencyMillis() {
+            return mMaxLatencyMillis;
+        }
+
+        /**
+         * @return operations submitted and not completed yet
+         */
+        public int getBacklogDepth() {
+            return mBacklogDepth;
+        }
+    }
+}
@@ -6,12 +6,30 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.GattOperationCallback;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.StreamWriteCallback;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
 
 /**
  * This class represents a generic Bluetooth Peripheral
@@ -22,11 +40,44 @@ import java.util.List;
  */
 public class BlePeripheral {
     private static final String TAG = BlePeripheral.class.getSimpleName();
+    public static final int DEFAULT_MTU = 23; // the ATT MTU before any MTU exchange
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID SERVICE_CHANGED_UUID = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+    private static final int MAX_HANDLE = 0xFFFF;
+
+    /** BluetoothGatt.refresh() is hidden, look it up once **/
+    private static Method sRefreshMethod;
+    private static boolean sRefreshMethodResolved = false;
 
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
+    private BluetoothGattCallback mGattCallback;
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+    private volatile boolean mConnected = false;
+    private volatile int mMtu = DEFAULT_MTU;
+    private final ConcurrentHashMap<BluetoothGattCharacteristic, NotificationRingBuffer> mNotificationBuffers = new ConcurrentHashMap<BluetoothGattCharacteristic, NotificationRingBuffer>();
+
+    /** Link tuning **/
+    private BleConnectionOptions mConnectionOptions = BleConnectionOptions.getDefault();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile long mLastLinkActivityAt = 0;
+    private volatile int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+    /** GATT profile, indexed when services are discovered **/
+    private GattProfileCache mProfileCache;
+    private volatile Map<UUID, BluetoothGattService> mServices = Collections.emptyMap();
+    private volatile Map<UUID, Map<UUID, BluetoothGattCharacteristic>> mCharacteristics = Collections.emptyMap();
+    /** Handle range announced by Service Changed and not rediscovered yet, guarded by mProfileLock **/
+    private final Object mProfileLock = new Object();
+    private int mChangedStartHandle = 0;
+    private int mChangedEndHandle = -1;
+    private volatile boolean mServiceChangedSubscribed = false;
 
     public BlePeripheral() {
+        mOperationQueue.setActivityListener(mLinkActivityListener);
     }
 
     /**
@@ -38,14 +89,48 @@ public class BlePeripheral {
      * @return a connection to the BluetoothGatt
      * @throws Exception if no device is given
      */
-    @SuppressLint("MissingPermission")
     public BluetoothGatt connect(BluetoothDevice bluetoothDevice, BluetoothGattCallback callback, final Context context) throws Exception {
+        return connect(bluetoothDevice, callback, context, BleConnectionOptions.getDefault());
+    }
+
+    /**
+     * Connect to a Peripheral, then tune the connection before reporting it to the callback
+     *
+     * @param bluetoothDevice the Bluetooth Device
+     * @param callback The connection callback
+     * @param context The Activity that initialized the connection
+     * @param connectionOptions how to tune the connection once it is established
+     * @return a connection to the BluetoothGatt
+     * @throws Exception if no device is given
+     */
+    @SuppressLint("MissingPermission")
+    public BluetoothGatt connect(BluetoothDevice bluetoothDevice, BluetoothGattCallback callback, final Context context, BleConnectionOptions connectionOptions) throws Exception {
         if (bluetoothDevice == null) {
             throw new Exception("No bluetooth device provided");
         }
         mBluetoothDevice = bluetoothDevice;
-        mBluetoothGatt = bluetoothDevice.connectGatt(context, false, callback);
-        refreshDeviceCache();
+        mGattCallback = callback;
+        mConnectionOptions = connectionOptions;
+        mMtu = DEFAULT_MTU;
+        mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mTxPhy = mRxPhy = BluetoothDevice.PHY_LE_1M;
+        mServices = Collections.emptyMap();
+        mCharacteristics = Collections.emptyMap();
+        mServiceChangedSubscribed = false;
+        synchronized (mProfileLock) {
+            mChangedEndHandle = -1;
+        }
+        mProfileCache = GattProfileCache.getInstance(context);
+        ConnectionTimeline.getInstance().mark(bluetoothDevice.getAddress(), ConnectionTimeline.EDGE_CONNECT_GATT);
+        mBluetoothGatt = bluetoothDevice.connectGatt(context, false, mQueueingGattCallback);
+        mOperationQueue.setBluetoothGatt(mBluetoothGatt);
+        // only wipe Android's GATT cache when it is known to be stale, otherwise service discovery
+        // is answered from the cache without any round trips.  Changes made while connected
+        // are announced by the Peripheral's Service Changed indication
+        if (mProfileCache.needsRefresh(bluetoothDevice.getAddress(), connectionOptions.getProfileFingerprint())) {
+            Log.v(TAG, "Refreshing GATT cache for " + bluetoothDevice.getAddress());
+            refreshDeviceCache();
+        }
         return mBluetoothGatt;
     }
 
@@ -66,19 +151,40 @@ public class BlePeripheral {
      */
     @SuppressLint("MissingPermission")
     public void close() {
+        mConnected = false;
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close(); // close connection to Peripheral
             mBluetoothGatt = null; // release from memory
         }
+        mOperationQueue.setBluetoothGatt(null);
+        mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+        mNotificationBuffers.clear();
+        mHandler.removeCallbacks(mIdleCheck);
     }
     public BluetoothDevice getBluetoothDevice() {
         return mBluetoothDevice;
     }
 
+    /**
+     * @return <b>true</b> from onConnectionStateChange(STATE_CONNECTED) until the link drops or is closed
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * @return the connection to the Peripheral, or <b>null</b> once it is closed
+     */
+    public BluetoothGatt getBluetoothGatt() {
+        return mBluetoothGatt;
+    }
+
 
     // Android caches BLE Peripheral GATT Profiles.  This is ok when the Peripheral GATT Profile is
     // fixed, but since we are developing the Peripheral along-side the Central, we need to clear
-    // the cache so that we don't see old GATT Profiles
+    // the cache so that we don't see old GATT Profiles.  GattProfileCache remembers which Peripherals
+    // have been seen with which profile fingerprint, and which announced a Service Changed,
+    // so the cache is only cleared when it is known to be stale
     // http://stackoverflow.com/a/22709467
 
     /**
@@ -88,14 +194,201 @@ public class BlePeripheral {
      * @throws Exception
      */
     public boolean refreshDeviceCache() throws Exception {
-        Method localMethod = mBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
-        if (localMethod != null) {
-            return ((Boolean) localMethod.invoke(mBluetoothGatt, new Object[0])).booleanValue();
+        Method localMethod = getRefreshMethod();
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (localMethod != null && bluetoothGatt != null) {
+            return ((Boolean) localMethod.invoke(bluetoothGatt, new Object[0])).booleanValue();
         }
 
         return false;
     }
 
+    /**
+     * @return the hidden BluetoothGatt.refresh() method, or <b>null</b> if this Android version does not have it
+     */
+    private static synchronized Method getRefreshMethod() {
+        if (!sRefreshMethodResolved) {
+            sRefreshMethodResolved = true;
+            try {
+                sRefreshMethod = BluetoothGatt.class.getMethod("refresh", new Class[0]);
+            } catch (NoSuchMethodException e) {
+                Log.w(TAG, "BluetoothGatt.refresh() is not available");
+            }
+        }
+        return sRefreshMethod;
+    }
+
+    /**
+     * Look up a discovered Service without walking the BluetoothGatt's Service list
+     *
+     * @param serviceUuid the Service UUID
+     * @return the Service, or <b>null</b> if services are not discovered yet or the Peripheral has no such Service
+     */
+    public BluetoothGattService getService(UUID serviceUuid) {
+        return mServices.get(serviceUuid);
+    }
+
+    /**
+     * Look up a discovered Characteristic without walking the Service and Characteristic lists
+     *
+     * @param serviceUuid the Service UUID
+     * @param characteristicUuid the Characteristic UUID
+     * @return the Characteristic, or <b>null</b> if services are not discovered yet or the Peripheral has no such Characteristic
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        Map<UUID, BluetoothGattCharacteristic> characteristics = mCharacteristics.get(serviceUuid);
+        return characteristics != null ? characteristics.get(characteristicUuid) : null;
+    }
+
+    /**
+     * Index the discovered profile and remember it for the next connection.
+     * After a Service Changed, only the Services in the announced handle range are replaced;
+     * subscriptions to Characteristics outside of it carry over to the rediscovered objects
+     *
+     * @param gatt the connection the services were discovered on
+     */
+    private void onProfileDiscovered(BluetoothGatt gatt) {
+        List<BluetoothGattService> services = gatt.getServices();
+        int changedStartHandle, changedEndHandle;
+        synchronized (mProfileLock) {
+            changedStartHandle = mChangedStartHandle;
+            changedEndHandle = mChangedEndHandle;
+            mChangedEndHandle = -1;
+        }
+
+        Map<UUID, BluetoothGattService> serviceIndex = new HashMap<UUID, BluetoothGattService>();
+        Map<UUID, Map<UUID, BluetoothGattCharacteristic>> characteristicIndex = new HashMap<UUID, Map<UUID, BluetoothGattCharacteristic>>();
+        for (BluetoothGattService service : services) {
+            // with duplicate UUIDs the first one wins, like BluetoothGatt.getService()
+            if (serviceIndex.containsKey(service.getUuid())) continue;
+            serviceIndex.put(service.getUuid(), service);
+            Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (!characteristics.containsKey(characteristic.getUuid())) {
+                    characteristics.put(characteristic.getUuid(), characteristic);
+                }
+            }
+            characteristicIndex.put(service.getUuid(), characteristics);
+        }
+        if (changedEndHandle >= changedStartHandle) {
+            carryOverSubscriptions(services, changedStartHandle, changedEndHandle);
+        }
+        mServices = serviceIndex;
+        mCharacteristics = characteristicIndex;
+
+        if (mProfileCache != null) {
+            mProfileCache.put(gatt.getDevice().getAddress(), mConnectionOptions.getProfileFingerprint(), services);
+        }
+        subscribeToServiceChanged(gatt);
+    }
+
+    /**
+     * Ask the Peripheral to announce changes to its profile while connected
+     */
+    @SuppressLint("MissingPermission")
+    private void subscribeToServiceChanged(BluetoothGatt gatt) {
+        if (mServiceChangedSubscribed) return;
+        BluetoothGattCharacteristic serviceChanged = getCharacteristic(GENERIC_ATTRIBUTE_SERVICE_UUID, SERVICE_CHANGED_UUID);
+        if (serviceChanged == null || !isCharacteristicIndicatable(serviceChanged)) return;
+        BluetoothGattDescriptor descriptor = serviceChanged.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null || !gatt.setCharacteristicNotification(serviceChanged, true)) return;
+        mServiceChangedSubscribed = true;
+        writeValueToDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE, null);
+    }
+
+    /**
+     * The Peripheral changed the attributes between two handles.  Drop the affected Services
+     * from the index, so they are not used while they are rediscovered, and rediscover.
+     *
+     * @param startHandle first changed handle
+     * @param endHandle last changed handle
+     * @param stackCacheStale <b>true</b> if Android's GATT cache still holds the old profile
+     */
+    private void onProfileChanged(int startHandle, int endHandle, boolean stackCacheStale) {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (bluetoothGatt == null) return;
+        synchronized (mProfileLock) {
+            if (mChangedEndHandle < mChangedStartHandle) {
+                mChangedStartHandle = startHandle;
+                mChangedEndHandle = endHandle;
+            } else {
+                // a rediscovery is already on its way, widen it
+                mChangedStartHandle = Math.min(mChangedStartHandle, startHandle);
+                mChangedEndHandle = Math.max(mChangedEndHandle, endHandle);
+            }
+        }
+        Log.v(TAG, "Service Changed, handles " + startHandle + " to " + endHandle);
+
+        List<BluetoothGattService> services = new ArrayList<BluetoothGattService>(mServices.values());
+        Map<UUID, BluetoothGattService> serviceIndex = new HashMap<UUID, BluetoothGattService>(mServices);
+        Map<UUID, Map<UUID, BluetoothGattCharacteristic>> characteristicIndex = new HashMap<UUID, Map<UUID, BluetoothGattCharacteristic>>(mCharacteristics);
+        for (BluetoothGattService service : services) {
+            if (isServiceInRange(service, services, startHandle, endHandle)) {
+                serviceIndex.remove(service.getUuid());
+                characteristicIndex.remove(service.getUuid());
+            }
+        }
+        mServices = serviceIndex;
+        mCharacteristics = characteristicIndex;
+
+        if (mProfileCache != null) {
+            // if the connection drops before the rediscovery, the next connection has to refresh
+            mProfileCache.invalidate(bluetoothGatt.getDevice().getAddress());
+        }
+        if (stackCacheStale) {
+            try {
+                refreshDeviceCache();
+            } catch (Exception e) {
+                Log.e(TAG, "Could not refresh GATT cache: " + e.getMessage());
+            }
+        }
+        // Android can only discover the whole profile, but it replaces only what changed
+        discoverServices(null);
+    }
+
+    /**
+     * Move ring buffers from Characteristics outside the changed range to their rediscovered objects.
+     * Subscriptions inside the range are gone, the Peripheral reset them with its profile
+     */
+    private void carryOverSubscriptions(List<BluetoothGattService> services, int startHandle, int endHandle) {
+        for (BluetoothGattCharacteristic oldCharacteristic : new ArrayList<BluetoothGattCharacteristic>(mNotificationBuffers.keySet())) {
+            NotificationRingBuffer ringBuffer = mNotificationBuffers.remove(oldCharacteristic);
+            BluetoothGattCharacteristic newCharacteristic = null;
+            for (BluetoothGattService service : services) {
+                if (isServiceInRange(service, services, startHandle, endHandle)) continue;
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (characteristic.getInstanceId() == oldCharacteristic.getInstanceId()
+                            && characteristic.getUuid().equals(oldCharacteristic.getUuid())) {
+                        newCharacteristic = characteristic;
+                    }
+                }
+            }
+            if (newCharacteristic != null && ringBuffer != null) {
+                mNotificationBuffers.put(newCharacteristic, ringBuffer);
+            } else {
+                Log.w(TAG, "Subscription to " + oldCharacteristic.getUuid() + " dropped by Service Changed");
+            }
+        }
+    }
+
+    /**
+     * A Service spans from its own handle up to the handle before the next Service.
+     * Before Android 7.0 instance ids are not attribute handles, so every Service counts as changed
+     *
+     * @return <b>true</b> if any of the Service's attributes lie between the two handles
+     */
+    private static boolean isServiceInRange(BluetoothGattService service, List<BluetoothGattService> services, int startHandle, int endHandle) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return true;
+        int serviceStart = service.getInstanceId();
+        int serviceEnd = MAX_HANDLE;
+        for (BluetoothGattService other : services) {
+            int otherStart = other.getInstanceId();
+            if (otherStart > serviceStart && otherStart - 1 < serviceEnd) {
+                serviceEnd = otherStart - 1;
+            }
+        }
+        return serviceStart <= endHandle && startHandle <= serviceEnd;
+    }
 
     /**
      * Request a data/value read from a Ble Characteristic
@@ -103,18 +396,216 @@ public class BlePeripheral {
      * New in this chapter
      *
      * @param characteristic
+     * @return the queued read
+     */
+    public GattOperation readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        return readValueFromCharacteristic(characteristic, null);
+    }
+
+    /**
+     * Queue a read from a Characteristic.  The value arrives in BluetoothGattCallback.onCharacteristicRead
+     * and in the GattOperationCallback
+     *
+     * @param characteristic the Characteristic to read
+     * @param callback notified when the read completes, may be <b>null</b>
+     * @return the queued read
+     */
+    public GattOperation readValueFromCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationCallback callback) {
+        return enqueue(GattOperation.readCharacteristic(characteristic, callback));
+    }
+
+    /**
+     * Queue a write to a Characteristic
+     *
+     * @param characteristic the Characteristic to write
+     * @param value the value to write
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_*
+     * @param callback notified when the write completes, may be <b>null</b>
+     * @return the queued write
+     */
+    public GattOperation writeValueToCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType, GattOperationCallback callback) {
+        return enqueue(GattOperation.writeCharacteristic(characteristic, value, writeType, callback));
+    }
+
+    /**
+     * Queue a read from a Descriptor.  The value arrives in BluetoothGattCallback.onDescriptorRead
+     * and in the GattOperationCallback
+     *
+     * @param descriptor the Descriptor to read
+     * @param callback notified when the read completes, may be <b>null</b>
+     * @return the queued read
+     */
+    public GattOperation readValueFromDescriptor(BluetoothGattDescriptor descriptor, GattOperationCallback callback) {
+        return enqueue(GattOperation.readDescriptor(descriptor, callback));
+    }
+
+    /**
+     * Queue a write to a Descriptor
+     *
+     * @param descriptor the Descriptor to write
+     * @param value the value to write
+     * @param callback notified when the write completes, may be <b>null</b>
+     * @return the queued write
+     */
+    public GattOperation writeValueToDescriptor(BluetoothGattDescriptor descriptor, byte[] value, GattOperationCallback callback) {
+        return enqueue(GattOperation.writeDescriptor(descriptor, value, callback));
+    }
+
+    /**
+     * Queue an MTU request
+     *
+     * @param mtu the MTU to ask for
+     * @param callback notified with the negotiated MTU, may be <b>null</b>
+     * @return the queued request
+     */
+    public GattOperation requestMtu(int mtu, GattOperationCallback callback) {
+        return enqueue(GattOperation.requestMtu(mtu, callback));
+    }
+
+    /**
+     * Queue a PHY preference.  Needs Android 8.0, otherwise the operation completes with STATUS_NOT_STARTED
+     *
+     * @param txPhy bitmask of BluetoothDevice.PHY_LE_*_MASK
+     * @param rxPhy bitmask of BluetoothDevice.PHY_LE_*_MASK
+     * @param phyOptions BluetoothDevice.PHY_OPTION_*
+     * @param callback notified once Android has the preference, may be <b>null</b>.  readPhy() tells which PHYs the link settled on
+     * @return the queued request
+     */
+    public GattOperation setPreferredPhy(int txPhy, int rxPhy, int phyOptions, GattOperationCallback callback) {
+        return enqueue(GattOperation.setPreferredPhy(txPhy, rxPhy, phyOptions, callback));
+    }
+
+    /**
+     * Subscribe to a Characteristic's notifications, or its indications if it does not notify.
+     * Incoming values are copied into the returned ring buffer on the GATT callback thread;
+     * drain it from one consumer thread.  They are also still passed to BluetoothGattCallback.onCharacteristicChanged
+     *
+     * @param characteristic the Characteristic
+     * @param ringBuffer receives the values
+     * @param callback notified when the Peripheral has accepted the subscription, may be <b>null</b>
+     * @return the queued descriptor write
+     * @throws Exception if the Characteristic can not notify or indicate
      */
     @SuppressLint("MissingPermission")
-    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
-        // Reading a characteristic requires both requesting the read and handling the callback that is
-        // sent when the read is successful
-        // http://stackoverflow.com/a/20020279
-        System.out.println("*** BlePeriphal readValueFromCharacteristic");
-        System.out.println("characteristic: " + characteristic.getUuid());
-        //mBluetoothGatt.readCharacteristic(characteristic);
-        boolean success = mBluetoothGatt.readCharacteristic(characteristic);
-        System.out.println("** success ?: " + success);
-        System.out.println("** mBluetoothGatt.readCharacteristic(characteristic); ** done");
+    public GattOperation subscribe(BluetoothGattCharacteristic characteristic, NotificationRingBuffer ringBuffer, GattOperationCallback callback) throws Exception {
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null || !(isCharacteristicNotifiable(characteristic) || isCharacteristicIndicatable(characteristic))) {
+            throw new Exception("Characteristic does not support notifications or indications");
+        }
+        if (mBluetoothGatt == null || !mBluetoothGatt.setCharacteristicNotification(characteristic, true)) {
+            throw new Exception("Could not enable notifications");
+        }
+        mNotificationBuffers.put(characteristic, ringBuffer);
+        byte[] value = isCharacteristicNotifiable(characteristic)
+                ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        return writeValueToDescriptor(descriptor, value, callback);
+    }
+
+    /**
+     * Stop notifications or indications from a Characteristic
+     *
+     * @param characteristic the Characteristic
+     * @param callback notified when the Peripheral has accepted the change, may be <b>null</b>
+     * @return the queued descriptor write, or <b>null</b> if the Characteristic has no configuration descriptor
+     */
+    @SuppressLint("MissingPermission")
+    public GattOperation unsubscribe(BluetoothGattCharacteristic characteristic, GattOperationCallback callback) {
+        mNotificationBuffers.remove(characteristic);
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.setCharacteristicNotification(characteristic, false);
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null) return null;
+        return writeValueToDescriptor(descriptor, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, callback);
+    }
+
+    /**
+     * Stream a byte array into a Characteristic
+     *
+     * @param characteristic the Characteristic to write to
+     * @param data the bytes to write
+     * @param callback follows the progress, may be <b>null</b>
+     * @return the running BleStreamWriter
+     */
+    public BleStreamWriter writeStream(BluetoothGattCharacteristic characteristic, byte[] data, StreamWriteCallback callback) {
+        return writeStream(characteristic, new ByteArrayInputStream(data), callback);
+    }
+
+    /**
+     * Stream a byte source into a Characteristic, in chunks that fit the negotiated MTU.
+     * Request a larger MTU first for better throughput.
+     *
+     * @param characteristic the Characteristic to write to
+     * @param source the bytes to write.  It is read on GATT callback threads and is not closed
+     * @param callback follows the progress, may be <b>null</b>
+     * @return the running BleStreamWriter
+     */
+    public BleStreamWriter writeStream(BluetoothGattCharacteristic characteristic, InputStream source, StreamWriteCallback callback) {
+        BleStreamWriter streamWriter = new BleStreamWriter(this, characteristic, source, callback);
+        streamWriter.start();
+        return streamWriter;
+    }
+
+    /**
+     * Queue a service discovery.  The profile arrives in BluetoothGattCallback.onServicesDiscovered,
+     * after BlePeripheral has indexed it for getService() and getCharacteristic()
+     *
+     * @param callback notified when discovery completes, may be <b>null</b>
+     * @return the queued discovery
+     */
+    public GattOperation discoverServices(GattOperationCallback callback) {
+        return enqueue(GattOperation.discoverServices(callback));
+    }
+
+    /**
+     * Queue a read of the PHYs the link uses.  Needs Android 8.0, otherwise the operation completes with STATUS_NOT_STARTED
+     *
+     * @param callback notified with the PHYs in use, may be <b>null</b>
+     * @return the queued request
+     */
+    public GattOperation readPhy(GattOperationCallback callback) {
+        return enqueue(GattOperation.readPhy(callback));
+    }
+
+    /**
+     * @return the BluetoothDevice.PHY_LE_* the link transmits on
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * @return the BluetoothDevice.PHY_LE_* the link receives on
+     */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * @return the ATT MTU negotiated with the Peripheral
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the BluetoothGatt.CONNECTION_PRIORITY_* the connection was last switched to
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * @return the queue serializing this Peripheral's GATT operations, for its statistics
+     */
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    private GattOperation enqueue(GattOperation operation) {
+        mOperationQueue.enqueue(operation);
+        return operation;
     }
 
 
@@ -144,4 +635,263 @@ public class BlePeripheral {
         return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
     }
 
+    /**
+     * Check if a Characteristic supports Indications
+     *
+     * @return Returns <b>true</b> if property is supports indication
+     */
+    public static boolean isCharacteristicIndicatable(BluetoothGattCharacteristic characteristic) {
+        return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
+    }
+
+
+    /**
+     * Tune a fresh connection, then report it to the caller's callback.
+     * The stages go through the operation queue, so they run one after the other
+     * and finish before the caller can start discovering services.
+     */
+    private void negotiate(final BluetoothGatt gatt, final int status, final int newState) {
+        final AtomicInteger remainingStages = new AtomicInteger();
+        GattOperationCallback stageCallback = new GattOperationCallback() {
+            private volatile boolean mDisconnected = false;
+
+            @Override
+            public void onOperationComplete(GattOperation operation, int stageStatus) {
+                if (stageStatus == GattOperation.STATUS_DISCONNECTED) {
+                    mDisconnected = true;
+                } else if (stageStatus != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Connection negotiation stage " + operation.getType() + " failed: " + stageStatus);
+                }
+                if (remainingStages.decrementAndGet() == 0 && !mDisconnected) {
+                    Log.v(TAG, "Connection negotiated, MTU " + mMtu + ", TX PHY " + mTxPhy + ", RX PHY " + mRxPhy);
+                    ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_NEGOTIATED);
+                    mGattCallback.onConnectionStateChange(gatt, status, newState);
+                }
+            }
+        };
+
+        List<GattOperation> stages = new ArrayList<GattOperation>();
+        if (mConnectionOptions.getPreferredMtu() > DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            stages.add(GattOperation.requestMtu(mConnectionOptions.getPreferredMtu(), stageCallback));
+        }
+        if (mConnectionOptions.getPreferredPhyMask() != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phyMask = mConnectionOptions.getPreferredPhyMask();
+            stages.add(GattOperation.setPreferredPhy(phyMask, phyMask, mConnectionOptions.getPhyOptions(), stageCallback));
+            // the preference completes as soon as Android has it, because onPhyUpdate does not come
+            // if the PHY stays the same, so ask which PHY the link ended up on
+            stages.add(GattOperation.readPhy(stageCallback));
+        }
+
+        if (stages.isEmpty()) {
+            ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_NEGOTIATED);
+            mGattCallback.onConnectionStateChange(gatt, status, newState);
+            return;
+        }
+        remainingStages.set(stages.size());
+        for (GattOperation stage : stages) {
+            mOperationQueue.enqueue(stage);
+        }
+    }
+
+    /**
+     * Something is being transferred.  Switch to high priority if the connection is not there already
+     */
+    private void onLinkActivity() {
+        mLastLinkActivityAt = SystemClock.elapsedRealtime();
+        if (mConnectionOptions.isHighPriorityWhileBusy() && mConnectionPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            applyConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            scheduleIdleCheck();
+        }
+    }
+
+    private void scheduleIdleCheck() {
+        mHandler.removeCallbacks(mIdleCheck);
+        mHandler.postDelayed(mIdleCheck, mConnectionOptions.getIdleMillis());
+    }
+
+    @SuppressLint({"MissingPermission", "NewApi"})
+    private void applyConnectionPriority(int connectionPriority) {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (bluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+        if (bluetoothGatt.requestConnectionPriority(connectionPriority)) {
+            Log.v(TAG, "Connection priority: " + connectionPriority);
+            mConnectionPriority = connectionPriority;
+        }
+    }
+
+    /**
+     * Drops the connection back to balanced priority once nothing has been transferred for a while
+     */
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) return;
+            if (mOperationQueue.getDepth() > 0) return; // the queue reschedules this when it goes idle
+            long idleFor = SystemClock.elapsedRealtime() - mLastLinkActivityAt;
+            if (idleFor < mConnectionOptions.getIdleMillis()) {
+                mHandler.postDelayed(this, mConnectionOptions.getIdleMillis() - idleFor);
+                return;
+            }
+            applyConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    };
+
+    private final GattOperationQueue.ActivityListener mLinkActivityListener = new GattOperationQueue.ActivityListener() {
+        @Override
+        public void onQueueBusy() {
+            onLinkActivity();
+        }
+
+        @Override
+        public void onQueueIdle() {
+            mLastLinkActivityAt = SystemClock.elapsedRealtime();
+            scheduleIdleCheck();
+        }
+    };
+
+
+    /**
+     * Passes every GATT event on to the caller's callback, and lets the operation queue
+     * issue its next operation when an event answers the operation in flight
+     */
+    private final BluetoothGattCallback mQueueingGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
+                ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_CONNECTED);
+                negotiate(gatt, status, newState);
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // before the queue is cleared, so whoever hears of the cleared operations sees the link is down
+                mConnected = false;
+                ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_DISCONNECTED);
+                mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+                mHandler.removeCallbacks(mIdleCheck);
+                mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            }
+            mGattCallback.onConnectionStateChange(gatt, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_DISCOVER_SERVICES, null);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_SERVICES_DISCOVERED);
+                onProfileDiscovered(gatt);
+            }
+            mGattCallback.onServicesDiscovered(gatt, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onServiceChanged(BluetoothGatt gatt) {
+            // Android 12 and later handle the indication themselves and have already dropped their cache
+            onProfileChanged(1, MAX_HANDLE, false);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic);
+            if (operation != null) {
+                // the next operation may overwrite the Characteristic's value
+                operation.setResultValue(characteristic.getValue());
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                ConnectionTimeline.getInstance().mark(gatt.getDevice().getAddress(), ConnectionTimeline.EDGE_FIRST_READ);
+            }
+            mGattCallback.onCharacteristicRead(gatt, characteristic, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic);
+            mGattCallback.onCharacteristicWrite(gatt, characteristic, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            if (SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+                byte[] value = characteristic.getValue();
+                if (value != null && value.length >= 4) {
+                    int startHandle = DataConverter.readUint16Le(value, 0);
+                    int endHandle = DataConverter.readUint16Le(value, 2);
+                    onProfileChanged(startHandle, endHandle, true);
+                } else {
+                    onProfileChanged(1, MAX_HANDLE, true);
+                }
+                return;
+            }
+            NotificationRingBuffer ringBuffer = mNotificationBuffers.get(characteristic);
+            if (ringBuffer != null) {
+                ringBuffer.offer(characteristic.getValue(), SystemClock.elapsedRealtimeNanos());
+            }
+            onLinkActivity();
+            mGattCallback.onCharacteristicChanged(gatt, characteristic);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_READ_DESCRIPTOR, descriptor);
+            if (operation != null) {
+                operation.setResultValue(descriptor.getValue());
+            }
+            mGattCallback.onDescriptorRead(gatt, descriptor, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor);
+            mGattCallback.onDescriptorWrite(gatt, descriptor, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            mGattCallback.onReliableWriteCompleted(gatt, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mGattCallback.onReadRemoteRssi(gatt, rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_REQUEST_MTU, null);
+            if (operation != null) operation.setResultMtu(mtu);
+            if (status == BluetoothGatt.GATT_SUCCESS) mMtu = mtu;
+            mGattCallback.onMtuChanged(gatt, mtu, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            // also called when the Peripheral changes the PHY on its own
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+            }
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_SET_PREFERRED_PHY, null);
+            if (operation != null) operation.setResultPhy(txPhy, rxPhy);
+            mGattCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+            }
+            GattOperation operation = mOperationQueue.findAnsweredOperation(GattOperation.TYPE_READ_PHY, null);
+            if (operation != null) operation.setResultPhy(txPhy, rxPhy);
+            mGattCallback.onPhyRead(gatt, txPhy, rxPhy, status);
+            if (operation != null) mOperationQueue.finish(operation, status);
+        }
+    };
 }
@@ -0,0 +1,231 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Describes which Peripherals a scan is interested in.
+ *
+ * A Peripheral matches if it matches any one of the criteria: one of the service UUIDs,
+ * one of the names, one of the MAC addresses or one of the manufacturer data patterns.
+ * An empty filter set matches every Peripheral.
+ *
+ * The same set can be handed to the Bluetooth controller as ScanFilters, or evaluated
+ * in software against a parsed advertisement when the controller can not filter.
+ */
+public class BleScanFilterSet {
+    private final List<UUID> mServiceUuids;
+    private final List<String> mDeviceNames;
+    private final List<String> mDeviceAddresses;
+    private final List<ManufacturerDataFilter> mManufacturerDataFilters;
+
+    private BleScanFilterSet(Builder builder) {
+        mServiceUuids = Collections.unmodifiableList(new ArrayList<UUID>(builder.mServiceUuids));
+        mDeviceNames = Collections.unmodifiableList(new ArrayList<String>(builder.mDeviceNames));
+        mDeviceAddresses = Collections.unmodifiableList(new ArrayList<String>(builder.mDeviceAddresses));
+        mManufacturerDataFilters = Collections.unmodifiableList(new ArrayList<ManufacturerDataFilter>(builder.mManufacturerDataFilters));
+    }
+
+    public List<UUID> getServiceUuids() { return mServiceUuids; }
+    public List<String> getDeviceNames() { return mDeviceNames; }
+    public List<String> getDeviceAddresses() { return mDeviceAddresses; }
+    public List<ManufacturerDataFilter> getManufacturerDataFilters() { return mManufacturerDataFilters; }
+
+    /**
+     * @return <b>true</b> if this filter set matches every Peripheral
+     */
+    public boolean isEmpty() {
+        return mServiceUuids.isEmpty() && mDeviceNames.isEmpty()
+                && mDeviceAddresses.isEmpty() && mManufacturerDataFilters.isEmpty();
+    }
+
+    /**
+     * Convert to ScanFilters the Bluetooth controller can evaluate.
+     * Android combines ScanFilters with OR, so each criterion becomes its own ScanFilter.
+     *
+     * @return List of ScanFilters, empty if every Peripheral matches
+     */
+    public List<ScanFilter> toScanFilters() {
+        List<ScanFilter> scanFilters = new ArrayList<ScanFilter>();
+        for (UUID serviceUuid : mServiceUuids) {
+            scanFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(serviceUuid)).build());
+        }
+        for (String deviceName : mDeviceNames) {
+            scanFilters.add(new ScanFilter.Builder().setDeviceName(deviceName).build());
+        }
+        for (String deviceAddress : mDeviceAddresses) {
+            scanFilters.add(new ScanFilter.Builder().setDeviceAddress(deviceAddress).build());
+        }
+        for (ManufacturerDataFilter filter : mManufacturerDataFilters) {
+            scanFilters.add(new ScanFilter.Builder().setManufacturerData(filter.getManufacturerId(), filter.getData(), filter.getMask()).build());
+        }
+        return scanFilters;
+    }
+
+    /**
+     * Evaluate the filter set in software.
+     * BluetoothDevice.getName() is a binder call into the Bluetooth service, so it is only made
+     * when the set filters on names and the advertisement does not carry a local name
+     *
+     * @param bluetoothDevice the Peripheral
+     * @param advertisement the Peripheral's parsed advertisement
+     * @return <b>true</b> if the Peripheral matches any criterion
+     */
+    @SuppressLint("MissingPermission")
+    public boolean matches(BluetoothDevice bluetoothDevice, AdvertisementParser advertisement) {
+        if (isEmpty()) return true;
+
+        if (!mDeviceAddresses.isEmpty()) {
+            String macAddress = bluetoothDevice.getAddress();
+            for (int i = 0; i < mDeviceAddresses.size(); i++) {
+                if (mDeviceAddresses.get(i).equalsIgnoreCase(macAddress)) return true;
+            }
+        }
+        if (!mDeviceNames.isEmpty()) {
+            String localName = advertisement.hasLocalName() ? advertisement.getLocalName() : bluetoothDevice.getName();
+            for (int i = 0; i < mDeviceNames.size() && localName != null; i++) {
+                if (mDeviceNames.get(i).equals(localName)) return true;
+            }
+        }
+        for (int i = 0; i < mServiceUuids.size(); i++) {
+            if (advertisement.hasServiceUuid(mServiceUuids.get(i))) return true;
+        }
+        for (int i = 0; i < mManufacturerDataFilters.size(); i++) {
+            if (mManufacturerDataFilters.get(i).matches(advertisement)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BleScanFilterSet)) return false;
+        BleScanFilterSet other = (BleScanFilterSet) o;
+        return mServiceUuids.equals(other.mServiceUuids) && mDeviceNames.equals(other.mDeviceNames)
+                && mDeviceAddresses.equals(other.mDeviceAddresses)
+                && mManufacturerDataFilters.equals(other.mManufacturerDataFilters);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] { mServiceUuids, mDeviceNames, mDeviceAddresses, mManufacturerDataFilters });
+    }
+
+
+    /**
+     * Matches manufacturer specific data: the company identifier must be equal,
+     * and the advertised data must equal the filter data wherever the mask bits are set
+     */
+    public static class ManufacturerDataFilter {
+        private final int mManufacturerId;
+        private final byte[] mData;
+        private final byte[] mMask;
+
+        public ManufacturerDataFilter(int manufacturerId, byte[] data, byte[] mask) {
+            if (mask != null && mask.length != data.length) {
+                throw new IllegalArgumentException("Manufacturer data mask must be as long as the data");
+            }
+            mManufacturerId = manufacturerId;
+            mData = data.clone();
+            mMask = mask != null ? mask.clone() : null;
+        }
+
+        public int getManufacturerId() { return mManufacturerId; }
+        public byte[] getData() { return mData; }
+        public byte[] getMask() { return mMask; }
+
+        /**
+         * @param advertisement the Peripheral's parsed advertisement
+         * @return <b>true</b> if the advertisement carries matching manufacturer data
+         */
+        public boolean matches(AdvertisementParser advertisement) {
+            byte[] scanRecord = advertisement.getScanRecord();
+            for (int index = 0; index < advertisement.getManufacturerDataCount(); index++) {
+                if (advertisement.getManufacturerId(index) != mManufacturerId) continue;
+                if (advertisement.getManufacturerDataLength(index) < mData.length) continue;
+
+                int offset = advertisement.getManufacturerDataOffset(index);
+                boolean match = true;
+                for (int i = 0; i < mData.length && match; i++) {
+                    int mask = mMask != null ? mMask[i] : 0xFF;
+                    match = ((scanRecord[offset + i] ^ mData[i]) & mask) == 0;
+                }
+                if (match) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ManufacturerDataFilter)) return false;
+            ManufacturerDataFilter other = (ManufacturerDataFilter) o;
+            return mManufacturerId == other.mManufacturerId && Arrays.equals(mData, other.mData)
+                    && Arrays.equals(mMask, other.mMask);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mManufacturerId + Arrays.hashCode(mData)) + Arrays.hashCode(mMask);
+        }
+    }
+
+
+    /**
+     * Builds a BleScanFilterSet
+     */
+    public static class Builder {
+        private final List<UUID> mServiceUuids = new ArrayList<UUID>();
+        private final List<String> mDeviceNames = new ArrayList<String>();
+        private final List<String> mDeviceAddresses = new ArrayList<String>();
+        private final List<ManufacturerDataFilter> mManufacturerDataFilters = new ArrayList<ManufacturerDataFilter>();
+
+        public Builder addServiceUuid(UUID serviceUuid) {
+            mServiceUuids.add(serviceUuid);
+            return this;
+        }
+
+        public Builder addDeviceName(String deviceName) {
+            mDeviceNames.add(deviceName);
+            return this;
+        }
+
+        /**
+         * @param deviceAddress a MAC address formatted as "AA:BB:CC:DD:EE:FF"
+         */
+        public Builder addDeviceAddress(String deviceAddress) {
+            mDeviceAddresses.add(deviceAddress.toUpperCase(Locale.US)); // ScanFilter only accepts upper case
+            return this;
+        }
+
+        public Builder addDeviceAddresses(List<String> deviceAddresses) {
+            for (String deviceAddress : deviceAddresses) {
+                addDeviceAddress(deviceAddress);
+            }
+            return this;
+        }
+
+        /**
+         * @param manufacturerId the Bluetooth SIG company identifier
+         * @param data the expected data following the company identifier
+         * @param mask which bits of the data must match, or <b>null</b> to match every bit
+         */
+        public Builder addManufacturerData(int manufacturerId, byte[] data, byte[] mask) {
+            mManufacturerDataFilters.add(new ManufacturerDataFilter(manufacturerId, data, mask));
+            return this;
+        }
+
+        public BleScanFilterSet build() {
+            return new BleScanFilterSet(this);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.GattOperationCallback;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.StreamWriteCallback;
+
+/**
+ * Streams a byte source into a Characteristic.
+ *
+ * The source is cut into chunks that fit the negotiated MTU.  If the Characteristic supports it,
+ * chunks are sent as writes without response; otherwise, or once Android refuses an unacknowledged
+ * write, they are sent as acknowledged writes.
+ *
+ * Flow control is credit based: at most CREDITS chunks are in the GattOperationQueue at once, and
+ * every onCharacteristicWrite returns a credit, so the source is read only as fast as the radio
+ * drains it and other GATT operations can still get through.
+ */
+public class BleStreamWriter {
+    private static final String TAG = BleStreamWriter.class.getSimpleName();
+    public static final int CREDITS = 4;
+    private static final int ATT_HEADER_LENGTH = 3; // opcode and attribute handle
+
+    /** The byte source threw an IOException **/
+    public static final int STATUS_SOURCE_ERROR = -10;
+
+    private final BlePeripheral mBlePeripheral;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final InputStream mSource;
+    private final StreamWriteCallback mCallback;
+    private final int mChunkSize;
+
+    /** Stream state, guarded by this **/
+    private int mWriteType;
+    private final ArrayDeque<Chunk> mOutstanding = new ArrayDeque<Chunk>(); // in the queue, oldest first
+    private final ArrayDeque<byte[]> mResend = new ArrayDeque<byte[]>(); // refused chunks to send again
+    private boolean mSourceExhausted = false;
+    private boolean mFinished = false;
+    private boolean mPumping = false;
+    private boolean mPumpRequested = false;
+    private long mBytesWritten = 0;
+    private long mStartedAt;
+    private long mFinishedAt;
+
+    /**
+     * @param blePeripheral the connected Peripheral
+     * @param characteristic the Characteristic to write to
+     * @param source the bytes to write.  It is read on GATT callback threads and is not closed
+     * @param callback follows the progress, may be <b>null</b>
+     */
+    BleStreamWriter(BlePeripheral blePeripheral, BluetoothGattCharacteristic characteristic, InputStream source, StreamWriteCallback callback) {
+        mBlePeripheral = blePeripheral;
+        mCharacteristic = characteristic;
+        mSource = source;
+        mCallback = callback;
+        mChunkSize = blePeripheral.getMtu() - ATT_HEADER_LENGTH;
+        mWriteType = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    void start() {
+        synchronized (this) {
+            mStartedAt = SystemClock.elapsedRealtime();
+        }
+        pump();
+    }
+
+    /**
+     * Stop streaming.  Chunks already handed to Android are still delivered
+     */
+    public void cancel() {
+        if (finish()) {
+            notifyComplete(GattOperation.STATUS_CANCELLED);
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return <b>true</b> while chunks are sent as writes without response
+     */
+    public synchronized boolean isWritingWithoutResponse() {
+        return mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    /**
+     * @return bytes accepted so far
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return sustained throughput since the stream started, in bytes per second
+     */
+    public synchronized float getBytesPerSecond() {
+        long end = mFinished ? mFinishedAt : SystemClock.elapsedRealtime();
+        long elapsed = end - mStartedAt;
+        return elapsed > 0 ? mBytesWritten * 1000f / elapsed : 0;
+    }
+
+
+    /**
+     * Fill the queue up to CREDITS chunks.  Enqueueing can call back into this writer
+     * on the same thread, so only one pump runs at a time and a nested call just asks it to go round again.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (mPumping) {
+                mPumpRequested = true;
+                return;
+            }
+            mPumping = true;
+        }
+
+        while (true) {
+            GattOperation operation = null;
+            int completeStatus = 0;
+            boolean complete = false;
+            synchronized (this) {
+                if (!mFinished && mOutstanding.size() < CREDITS) {
+                    byte[] data = null;
+                    try {
+                        data = nextChunk();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not read stream source: " + e.getMessage());
+                        complete = finish();
+                        completeStatus = STATUS_SOURCE_ERROR;
+                    }
+                    if (data != null) {
+                        operation = GattOperation.writeCharacteristic(mCharacteristic, data, mWriteType, mChunkCallback);
+                        mOutstanding.add(new Chunk(operation, data));
+                    } else if (!complete && mSourceExhausted && mOutstanding.isEmpty()) {
+                        complete = finish();
+                        completeStatus = BluetoothGatt.GATT_SUCCESS;
+                    }
+                }
+                if (operation == null && !complete) {
+                    if (mPumpRequested) {
+                        mPumpRequested = false;
+                        continue;
+                    }
+                    mPumping = false;
+                    return;
+                }
+            }
+
+            if (complete) {
+                synchronized (this) {
+                    mPumping = false;
+                }
+                notifyComplete(completeStatus);
+                return;
+            }
+            mBlePeripheral.getOperationQueue().enqueue(operation);
+        }
+    }
+
+    /**
+     * Call with this held
+     *
+     * @return the next chunk to send, or <b>null</b> if the source has nothing more
+     */
+    private byte[] nextChunk() throws IOException {
+        if (!mResend.isEmpty()) return mResend.poll();
+        if (mSourceExhausted) return null;
+
+        byte[] buffer = new byte[mChunkSize];
+        int length = 0;
+        while (length < mChunkSize) {
+            int read = mSource.read(buffer, length, mChunkSize - length);
+            if (read < 0) {
+                mSourceExhausted = true;
+                break;
+            }
+            length += read;
+        }
+        if (length == 0) return null;
+        return length == mChunkSize ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Mark the stream finished and pull back the chunks that have not been issued yet
+     *
+     * @return <b>true</b> if this call finished the stream
+     */
+    private synchronized boolean finish() {
+        if (mFinished) return false;
+        mFinished = true;
+        mFinishedAt = SystemClock.elapsedRealtime();
+        for (Chunk chunk : mOutstanding) {
+            chunk.mOperation.cancel();
+        }
+        mOutstanding.clear();
+        mResend.clear();
+        return true;
+    }
+
+    /**
+     * The queue issues the next chunk before it reports the previous one,
+     * so reports do not always arrive oldest first.  Call with this held
+     */
+    private Chunk findOutstanding(GattOperation operation) {
+        for (Chunk chunk : mOutstanding) {
+            if (chunk.mOperation == operation) return chunk;
+        }
+        return null;
+    }
+
+    private void notifyComplete(int status) {
+        if (mCallback != null) {
+            mCallback.onStreamWriteComplete(status, getBytesWritten(), getBytesPerSecond());
+        }
+    }
+
+    /**
+     * Returns a credit for every chunk the GattOperationQueue finishes
+     */
+    private final GattOperationCallback mChunkCallback = new GattOperationCallback() {
+        @Override
+        public void onOperationComplete(GattOperation operation, int status) {
+            boolean progress = false;
+            boolean failed = false;
+            synchronized (BleStreamWriter.this) {
+                if (mFinished || status == GattOperation.STATUS_CANCELLED) return;
+                Chunk chunk = findOutstanding(operation);
+                if (chunk == null) return; // pulled back for a resend
+
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mOutstanding.remove(chunk);
+                    mBytesWritten += chunk.mData.length;
+                    progress = true;
+                } else if (status == GattOperation.STATUS_NOT_STARTED
+                        && mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                    // Android's buffer for unacknowledged writes is full.  The chunks behind this one
+                    // have not been issued yet, so pull them back and send them again, in order, acknowledged.
+                    // Chunks ahead of it were issued and report on their own.
+                    Log.w(TAG, "Write without response refused, falling back to acknowledged writes");
+                    mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+                    Chunk pulledBack;
+                    do {
+                        pulledBack = mOutstanding.pollLast();
+                        pulledBack.mOperation.cancel();
+                        mResend.addFirst(pulledBack.mData);
+                    } while (pulledBack != chunk);
+                } else {
+                    failed = finish();
+                }
+            }
+
+            if (failed) {
+                notifyComplete(status);
+                return;
+            }
+            if (progress && mCallback != null) {
+                mCallback.onStreamWriteProgress(getBytesWritten(), getBytesPerSecond());
+            }
+            pump();
+        }
+    };
+
+
+    private static class Chunk {
+        final GattOperation mOperation;
+        final byte[] mData;
+
+        Chunk(GattOperation operation, byte[] data) {
+            mOperation = operation;
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.LongHashMap;
+
+/**
+ * Times every connection from scan to first read.
+ *
+ * Each lifecycle edge is stamped with SystemClock.elapsedRealtimeNanos(), which is monotonic and
+ * keeps counting in deep sleep.  An attempt starts when connectGatt is called, and ends when it
+ * disconnects.  Scans hear far more Peripherals than the app connects to, so a sighting is only kept
+ * as a time per packed MAC address, in a bounded map, and copied into the attempt at connectGatt.
+ * The time from the previous edge to each edge, and from the start of the attempt to the first read,
+ * is recorded in per-device LatencyHistograms, which can be exported as CSV to show where connect time goes.
+ */
+public class ConnectionTimeline {
+    private static final String TAG = ConnectionTimeline.class.getSimpleName();
+
+    public static final int EDGE_SCAN_STARTED = 0;
+    public static final int EDGE_FIRST_SIGHTING = 1;
+    public static final int EDGE_CONNECT_GATT = 2;
+    public static final int EDGE_CONNECTED = 3;
+    public static final int EDGE_NEGOTIATED = 4; // MTU and PHY settled, see BleConnectionOptions
+    public static final int EDGE_SERVICES_DISCOVERED = 5;
+    public static final int EDGE_FIRST_READ = 6;
+    public static final int EDGE_DISCONNECTED = 7;
+    private static final int EDGE_COUNT = 8;
+    private static final String[] EDGE_NAMES = {
+            "scan_started", "first_sighting", "connect_gatt", "connected",
+            "negotiated", "services_discovered", "first_read", "disconnected"
+    };
+    private static final String TIME_TO_FIRST_READ = "time_to_first_read";
+    /** Sightings kept per generation; the older generation is dropped when the newer one fills **/
+    private static final int MAX_SIGHTINGS = 256;
+
+    private static final ConnectionTimeline sInstance = new ConnectionTimeline();
+
+    private volatile long mScanStartedAt = 0;
+    /** Guarded by this **/
+    private final Map<String, DeviceTimeline> mDevices = new LinkedHashMap<String, DeviceTimeline>();
+    /** First sighting since the latest scan started, per packed MAC address: long[1] holders, guarded by mSightingLock **/
+    private final Object mSightingLock = new Object();
+    private LongHashMap<long[]> mSightings = new LongHashMap<long[]>(MAX_SIGHTINGS);
+    private LongHashMap<long[]> mOlderSightings = new LongHashMap<long[]>(MAX_SIGHTINGS);
+
+    /**
+     * @return the timeline shared by the whole app
+     */
+    public static ConnectionTimeline getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * A scan started.  It is the first edge of every attempt whose Peripheral this scan sights
+     */
+    public void markScanStarted() {
+        mScanStartedAt = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * A scan heard the Peripheral.  Called for every matching advertisement, so this does not allocate
+     * for a Peripheral it has seen before, and only the first sighting since the latest scan started counts
+     *
+     * @param macAddress the Peripheral's MAC address
+     */
+    public void markSighting(String macAddress) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (macAddress == null) return;
+        long key = DataConverter.macAddressToLong(macAddress);
+        long scanStartedAt = mScanStartedAt;
+        synchronized (mSightingLock) {
+            long[] sightedAt = findSighting(key);
+            if (sightedAt == null) {
+                if (mSightings.size() >= MAX_SIGHTINGS) {
+                    // drop the older generation, so a crowded place can not grow the map without bound
+                    LongHashMap<long[]> dropped = mOlderSightings;
+                    mOlderSightings = mSightings;
+                    dropped.clear();
+                    mSightings = dropped;
+                }
+                sightedAt = new long[]{now};
+                mSightings.put(key, sightedAt);
+            } else if (sightedAt[0] < scanStartedAt) {
+                sightedAt[0] = now; // sighted in an earlier scan, time from this one
+            }
+        }
+    }
+
+    /**
+     * @return the sighting holder of a packed MAC address, or <b>null</b>.  Call with mSightingLock held
+     */
+    private long[] findSighting(long key) {
+        long[] sightedAt = mSightings.get(key);
+        if (sightedAt == null) {
+            sightedAt = mOlderSightings.get(key);
+            if (sightedAt != null) mSightings.put(key, sightedAt); // still heard, keep it in the newer generation
+        }
+        return sightedAt;
+    }
+
+    /**
+     * Stamp a lifecycle edge.  Only the first occurrence of each edge in an attempt counts
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param edge one of EDGE_*, except EDGE_SCAN_STARTED.  EDGE_FIRST_SIGHTING is the same as markSighting()
+     */
+    public void mark(String macAddress, int edge) {
+        if (edge == EDGE_FIRST_SIGHTING) {
+            markSighting(macAddress);
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (macAddress == null) return;
+        long sightedAt = 0;
+        if (edge == EDGE_CONNECT_GATT) {
+            synchronized (mSightingLock) {
+                long[] sighting = findSighting(DataConverter.macAddressToLong(macAddress));
+                if (sighting != null) sightedAt = sighting[0];
+            }
+        }
+        synchronized (this) {
+            String key = macAddress.toUpperCase(Locale.US);
+            DeviceTimeline device = mDevices.get(key);
+            if (device == null) {
+                if (edge != EDGE_CONNECT_GATT) return; // nothing to time against
+                device = new DeviceTimeline();
+                mDevices.put(key, device);
+            }
+            device.mark(edge, now, mScanStartedAt, sightedAt);
+        }
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        synchronized (this) {
+            mDevices.clear();
+        }
+        synchronized (mSightingLock) {
+            mSightings.clear();
+            mOlderSightings.clear();
+        }
+    }
+
+    /**
+     * Export one row per device and edge:
+     * address, edge, count, mean, p50, p90, p99 and max in milliseconds, then the count of every histogram bucket
+     *
+     * @param writer receives the CSV
+     * @throws IOException if the writer fails
+     */
+    public synchronized void exportCsv(Writer writer) throws IOException {
+        writer.write("address,edge,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            writer.write(",le_" + LatencyHistogram.getBucketUpperBoundMillis(bucket) + "_ms");
+        }
+        writer.write('\n');
+        for (Map.Entry<String, DeviceTimeline> entry : mDevices.entrySet()) {
+            DeviceTimeline device = entry.getValue();
+            for (int edge = EDGE_FIRST_SIGHTING; edge < EDGE_COUNT; edge++) {
+                writeRow(writer, entry.getKey(), EDGE_NAMES[edge], device.mEdgeLatencies[edge]);
+            }
+            writeRow(writer, entry.getKey(), TIME_TO_FIRST_READ, device.mTimeToFirstRead);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Export the histograms to a CSV file
+     *
+     * @param file the file to write, replaced if it exists
+     * @throws IOException if the file can not be written
+     */
+    public void exportCsv(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            exportCsv(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeRow(Writer writer, String address, String edge, LatencyHistogram histogram) throws IOException {
+        if (histogram.getCount() == 0) return;
+        writer.write(String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%d,%d", address, edge, histogram.getCount(),
+                histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(90),
+                histogram.getPercentileMillis(99), histogram.getMaxMillis()));
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            writer.write("," + histogram.getBucketCount(bucket));
+        }
+        writer.write('\n');
+    }
+
+
+    /**
+     * The current attempt and the histograms of one Peripheral
+     */
+    private static class DeviceTimeline {
+        final long[] mAttempt = new long[EDGE_COUNT]; // 0 until the edge happens
+        boolean mAttemptOpen = false;
+        final LatencyHistogram[] mEdgeLatencies = new LatencyHistogram[EDGE_COUNT];
+        final LatencyHistogram mTimeToFirstRead = new LatencyHistogram();
+
+        DeviceTimeline() {
+            for (int edge = 0; edge < EDGE_COUNT; edge++) {
+                mEdgeLatencies[edge] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * @param sightedAt when a scan first heard the Peripheral, 0 if it did not.  Only read at EDGE_CONNECT_GATT
+         */
+        void mark(int edge, long now, long scanStartedAt, long sightedAt) {
+            if (!mAttemptOpen) {
+                if (edge != EDGE_CONNECT_GATT) return; // a late event of an ended attempt
+                Arrays.fill(mAttempt, 0);
+                mAttemptOpen = true;
+                if (sightedAt > 0 && sightedAt <= now) {
+                    // backfill the scan that found the Peripheral
+                    mAttempt[EDGE_FIRST_SIGHTING] = sightedAt;
+                    if (scanStartedAt > 0 && scanStartedAt <= sightedAt) {
+                        mAttempt[EDGE_SCAN_STARTED] = scanStartedAt;
+                        mEdgeLatencies[EDGE_FIRST_SIGHTING].record((sightedAt - scanStartedAt) / 1000000);
+                    }
+                }
+            }
+            if (mAttempt[edge] != 0) return; // only the first occurrence counts
+
+            // latency since the latest edge before this one
+            long previous = 0;
+            for (int earlier = edge - 1; earlier >= 0 && previous == 0; earlier--) {
+                previous = mAttempt[earlier];
+            }
+            mAttempt[edge] = now;
+            if (previous != 0) {
+                mEdgeLatencies[edge].record((now - previous) / 1000000);
+            }
+
+            if (edge == EDGE_FIRST_READ) {
+                long start = firstStamp();
+                mTimeToFirstRead.record((now - start) / 1000000);
+                Log.v(TAG, "Time to first read: " + (now - start) / 1000000 + " ms");
+            } else if (edge == EDGE_DISCONNECTED) {
+                mAttemptOpen = false;
+            }
+        }
+
+        long firstStamp() {
+            for (long stamp : mAttempt) {
+                if (stamp != 0) return stamp;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv18;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv21;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.LongHashSet;
+
+/**
+ * Scans continuously by cycling scan windows with pauses in between.
+ *
+ * While new Peripherals keep appearing the engine scans in SCAN_MODE_LOW_LATENCY with short pauses.
+ * When the radio environment goes quiet it steps down to SCAN_MODE_BALANCED and then
+ * SCAN_MODE_LOW_POWER, with longer pauses, so that the radio is mostly off.
+ * Window starts are always at least 12 seconds apart, which keeps the engine
+ * below Android's limit of 5 scan starts per 30 seconds.
+ *
+ * The engine reports the duty cycle it achieved and how long Peripherals waited to be discovered,
+ * so the trade-off between battery and time to discovery can be tuned.
+ *
+ * The engine should have its BleCommManager to itself, since any other scan started on the
+ * same BleCommManager supersedes the current window.
+ */
+public class ContinuousScanEngine {
+    private static final String TAG = ContinuousScanEngine.class.getSimpleName();
+
+    // scan levels, from most to least battery friendly
+    private static final int[] SCAN_MODES = {
+            ScanSettings.SCAN_MODE_LOW_POWER,
+            ScanSettings.SCAN_MODE_BALANCED,
+            ScanSettings.SCAN_MODE_LOW_LATENCY
+    };
+    private static final long[] WINDOW_MILLIS = { 10000, 10000, 10000 };
+    private static final long[] PAUSE_MILLIS = { 50000, 10000, 2000 };
+
+    private static final int BURST_THRESHOLD = 3; // this many new Peripherals in one window means a busy environment
+    private static final int QUIET_WINDOWS_BEFORE_STEP_DOWN = 2;
+
+    private final BleCommManager mBleCommManager;
+    private final BleScanCallbackv18 mScanCallbackv18;
+    private final BleScanCallbackv21 mScanCallbackv21;
+
+    /** Engine state, guarded by this **/
+    private boolean mRunning = false;
+    private int mLevel = 1; // start balanced
+    private int mQuietWindows = 0;
+    private BleCommManager.ScanHandle mScanHandle;
+    private ScheduledFuture<?> mNextWindow;
+    private final LongHashSet mKnownPeripherals = new LongHashSet(); // packed MAC addresses, no boxing per sighting
+    private int mNewPeripheralsInWindow = 0;
+
+    /** Statistics, guarded by this **/
+    private long mStartedAt;
+    private long mCycleStartedAt; // start of the pause that preceded the current window
+    private long mWindowStartedAt;
+    private long mScanTimeMillis = 0;
+    private long mWindowCount = 0;
+    private long mDiscoveryCount = 0;
+    private long mTotalDiscoveryLatencyMillis = 0;
+    private long mMaxDiscoveryLatencyMillis = 0;
+
+    /**
+     * @param bleCommManager the BleCommManager to scan with
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback, receives every sighting
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback, receives every sighting
+     */
+    public ContinuousScanEngine(BleCommManager bleCommManager, BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+        mBleCommManager = bleCommManager;
+        mScanCallbackv18 = bleScanCallbackv18;
+        mScanCallbackv21 = bleScanCallbackv21;
+    }
+
+    /**
+     * Start scanning continuously.  Does nothing if the engine is already running
+     */
+    public synchronized void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mStartedAt = mCycleStartedAt = SystemClock.elapsedRealtime();
+        mScanTimeMillis = 0;
+        mWindowCount = mDiscoveryCount = 0;
+        mTotalDiscoveryLatencyMillis = mMaxDiscoveryLatencyMillis = 0;
+        mKnownPeripherals.clear();
+        startWindow();
+    }
+
+    /**
+     * Stop scanning.  The callbacks receive onScanComplete once the radio scan has stopped
+     */
+    public void stop() {
+        BleCommManager.ScanHandle scanHandle;
+        synchronized (this) {
+            if (!mRunning) return;
+            mRunning = false;
+            if (mNextWindow != null) mNextWindow.cancel(false);
+            mNextWindow = null;
+            scanHandle = mScanHandle;
+            mScanHandle = null;
+            if (scanHandle != null) {
+                mScanTimeMillis += SystemClock.elapsedRealtime() - mWindowStartedAt;
+            }
+        }
+        if (scanHandle == null || !mBleCommManager.stopScan(scanHandle)) {
+            // no window was open, so nobody else will report the end of the scan
+            notifyScanComplete();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return the ScanSettings.SCAN_MODE_* of the current or next window
+     */
+    public synchronized int getScanMode() {
+        return SCAN_MODES[mLevel];
+    }
+
+    /**
+     * @return fraction of time since start() that the radio was scanning, between 0 and 1
+     */
+    public synchronized float getDutyCycle() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mStartedAt;
+        if (elapsed <= 0) return 0;
+        long scanTime = mScanTimeMillis + (mScanHandle != null ? now - mWindowStartedAt : 0);
+        return (float) scanTime / elapsed;
+    }
+
+    /**
+     * @return how many Peripherals have been discovered since start()
+     */
+    public synchronized long getDiscoveryCount() {
+        return mDiscoveryCount;
+    }
+
+    /**
+     * Discovery latency is measured from the end of the previous scan window,
+     * so it includes the time a Peripheral waited while the radio was paused.
+     *
+     * @return mean discovery latency in milliseconds
+     */
+    public synchronized long getAverageDiscoveryLatencyMillis() {
+        return mDiscoveryCount > 0 ? mTotalDiscoveryLatencyMillis / mDiscoveryCount : 0;
+    }
+
+    /**
+     * @return worst discovery latency in milliseconds
+     */
+    public synchronized long getMaxDiscoveryLatencyMillis() {
+        return mMaxDiscoveryLatencyMillis;
+    }
+
+    /**
+     * @return how many scan windows have been opened since start()
+     */
+    public synchronized long getWindowCount() {
+        return mWindowCount;
+    }
+
+
+    /**
+     * Open a scan window at the current level
+     */
+    private synchronized void startWindow() {
+        if (!mRunning) return;
+        mNextWindow = null;
+        mNewPeripheralsInWindow = 0;
+        mWindowCount++;
+        mWindowStartedAt = SystemClock.elapsedRealtime();
+        try {
+            mScanHandle = mBleCommManager.scanForPeripherals(mInternalScanCallbackv18, mInternalScanCallbackv21, SCAN_MODES[mLevel], WINDOW_MILLIS[mLevel]);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not start scan window: " + e.getMessage());
+            mScanHandle = null;
+            scheduleNextWindow();
+        }
+    }
+
+    /**
+     * A scan window closed.  Pick the level of the next window and pause until it opens
+     */
+    private void onWindowComplete() {
+        boolean stopped;
+        synchronized (this) {
+            stopped = !mRunning;
+            if (!stopped) {
+                long now = SystemClock.elapsedRealtime();
+                mScanTimeMillis += now - mWindowStartedAt;
+                mScanHandle = null;
+                mCycleStartedAt = now;
+
+                if (mNewPeripheralsInWindow >= BURST_THRESHOLD) {
+                    mLevel = SCAN_MODES.length - 1;
+                    mQuietWindows = 0;
+                } else if (mNewPeripheralsInWindow > 0) {
+                    mLevel = Math.max(mLevel, 1);
+                    mQuietWindows = 0;
+                } else if (++mQuietWindows >= QUIET_WINDOWS_BEFORE_STEP_DOWN && mLevel > 0) {
+                    mLevel--;
+                    mQuietWindows = 0;
+                }
+                Log.v(TAG, "Window found " + mNewPeripheralsInWindow + " new peripherals, next scan mode: " + SCAN_MODES[mLevel]);
+                scheduleNextWindow();
+            }
+        }
+        if (stopped) {
+            notifyScanComplete();
+        }
+    }
+
+    private void notifyScanComplete() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mScanCallbackv18.onScanComplete();
+        } else {
+            mScanCallbackv21.onScanComplete();
+        }
+    }
+
+    private synchronized void scheduleNextWindow() {
+        mNextWindow = BleCommManager.getScanScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                startWindow();
+            }
+        }, PAUSE_MILLIS[mLevel], TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count a sighting, and measure its discovery latency if the Peripheral is new
+     */
+    private synchronized void onSighting(BluetoothDevice bluetoothDevice) {
+        if (mKnownPeripherals.add(DataConverter.macAddressToLong(bluetoothDevice.getAddress()))) {
+            long latency = SystemClock.elapsedRealtime() - mCycleStartedAt;
+            mNewPeripheralsInWindow++;
+            mDiscoveryCount++;
+            mTotalDiscoveryLatencyMillis += latency;
+            if (latency > mMaxDiscoveryLatencyMillis) mMaxDiscoveryLatencyMillis = latency;
+        }
+    }
+
+
+    /**
+     * Records sightings, then hands them to the caller's callback
+     */
+    private final BleScanCallbackv21 mInternalScanCallbackv21 = new BleScanCallbackv21() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onSighting(result.getDevice());
+            mScanCallbackv21.onScanResult(callbackType, result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onSighting(result.getDevice());
+            }
+            mScanCallbackv21.onBatchScanResults(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mScanCallbackv21.onScanFailed(errorCode);
+        }
+
+        @Override
+        public void onScanComplete() {
+            onWindowComplete();
+        }
+    };
+
+    private final BleScanCallbackv18 mInternalScanCallbackv18 = new BleScanCallbackv18() {
+        @Override
+        public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+            onSighting(bluetoothDevice);
+            mScanCallbackv18.onLeScan(bluetoothDevice, rssi, scanRecord);
+        }
+
+        @Override
+        public void onScanComplete() {
+            onWindowComplete();
+        }
+    };
+}
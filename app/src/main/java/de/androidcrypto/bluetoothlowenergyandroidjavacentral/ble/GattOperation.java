@@ -0,0 +1,356 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.GattOperationCallback;
+
+/**
+ * One GATT request waiting in a GattOperationQueue.
+ *
+ * Android only allows one outstanding GATT request per connection, so every request
+ * is wrapped in a GattOperation and issued when the previous one has completed.
+ */
+public class GattOperation {
+    public static final int TYPE_READ_CHARACTERISTIC = 1;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+    public static final int TYPE_SET_PREFERRED_PHY = 5;
+    public static final int TYPE_READ_PHY = 6;
+    public static final int TYPE_DISCOVER_SERVICES = 7;
+    public static final int TYPE_READ_DESCRIPTOR = 8;
+
+    /** Discovering a large profile over the air takes many round trips **/
+    public static final long DISCOVER_SERVICES_TIMEOUT_MILLIS = 30000;
+
+    /** Operation never reached the Peripheral: Android refused it, or it is not supported on this API level **/
+    public static final int STATUS_NOT_STARTED = -1;
+    /** Peripheral did not answer within the operation's timeout **/
+    public static final int STATUS_TIMEOUT = -2;
+    /** Connection closed before the operation completed **/
+    public static final int STATUS_DISCONNECTED = -3;
+    /** Operation was cancelled before it was issued **/
+    public static final int STATUS_CANCELLED = -4;
+
+    private final int mType;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BluetoothGattDescriptor mDescriptor;
+    private final byte[] mValue;
+    private final int mWriteType;
+    private final int mMtu;
+    private final int mTxPhy, mRxPhy, mPhyOptions;
+    private final GattOperationCallback mCallback;
+    private volatile GattOperationCallback mCompletionListener; // for whoever scheduled the operation
+    private long mTimeoutMillis = GattOperationQueue.OPERATION_TIMEOUT_MILLIS;
+
+    /** Set by the GattOperationQueue **/
+    long mEnqueuedAt;
+    /** Set by a BleConnectionPool **/
+    long mSubmittedAt;
+    long mStartedAt;
+    Runnable mTimeout;
+
+    private volatile boolean mCancelled = false;
+
+    /** Results **/
+    private volatile int mStatus;
+    private volatile byte[] mResultValue;
+    private volatile int mResultMtu;
+    private volatile int mResultTxPhy, mResultRxPhy;
+    private volatile long mCompletedAt;
+
+    private GattOperation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+                          byte[] value, int writeType, int mtu, int txPhy, int rxPhy, int phyOptions,
+                          GattOperationCallback callback) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mWriteType = writeType;
+        mMtu = mtu;
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        mPhyOptions = phyOptions;
+        mCallback = callback;
+    }
+
+    /**
+     * @param characteristic the Characteristic to read
+     * @param callback notified when the read completes, may be <b>null</b>
+     */
+    public static GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationCallback callback) {
+        return new GattOperation(TYPE_READ_CHARACTERISTIC, characteristic, null, null, 0, 0, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param characteristic the Characteristic to write
+     * @param value the value to write.  It is copied into the Characteristic when the write is issued
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_*
+     * @param callback notified when the write completes, may be <b>null</b>
+     */
+    public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType, GattOperationCallback callback) {
+        return new GattOperation(TYPE_WRITE_CHARACTERISTIC, characteristic, null, value, writeType, 0, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param descriptor the Descriptor to write
+     * @param value the value to write.  It is copied into the Descriptor when the write is issued
+     * @param callback notified when the write completes, may be <b>null</b>
+     */
+    public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, GattOperationCallback callback) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, null, descriptor, value, 0, 0, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param descriptor the Descriptor to read
+     * @param callback notified when the read completes, may be <b>null</b>
+     */
+    public static GattOperation readDescriptor(BluetoothGattDescriptor descriptor, GattOperationCallback callback) {
+        return new GattOperation(TYPE_READ_DESCRIPTOR, null, descriptor, null, 0, 0, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param mtu the MTU to ask the Peripheral for
+     * @param callback notified with the negotiated MTU, may be <b>null</b>
+     */
+    public static GattOperation requestMtu(int mtu, GattOperationCallback callback) {
+        return new GattOperation(TYPE_REQUEST_MTU, null, null, null, 0, mtu, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param txPhy bitmask of BluetoothDevice.PHY_LE_*_MASK
+     * @param rxPhy bitmask of BluetoothDevice.PHY_LE_*_MASK
+     * @param phyOptions BluetoothDevice.PHY_OPTION_*
+     * @param callback notified once the preference is handed to Android, may be <b>null</b>
+     */
+    public static GattOperation setPreferredPhy(int txPhy, int rxPhy, int phyOptions, GattOperationCallback callback) {
+        return new GattOperation(TYPE_SET_PREFERRED_PHY, null, null, null, 0, 0, txPhy, rxPhy, phyOptions, callback);
+    }
+
+    /**
+     * @param callback notified with the PHYs in use, may be <b>null</b>
+     */
+    public static GattOperation readPhy(GattOperationCallback callback) {
+        return new GattOperation(TYPE_READ_PHY, null, null, null, 0, 0, 0, 0, 0, callback);
+    }
+
+    /**
+     * @param callback notified when the services are discovered, may be <b>null</b>
+     */
+    public static GattOperation discoverServices(GattOperationCallback callback) {
+        GattOperation operation = new GattOperation(TYPE_DISCOVER_SERVICES, null, null, null, 0, 0, 0, 0, 0, callback);
+        operation.mTimeoutMillis = DISCOVER_SERVICES_TIMEOUT_MILLIS;
+        return operation;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public BluetoothGattDescriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    /**
+     * @return how long the queue waits for the Peripheral to answer, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    /**
+     * Skip this operation if it has not been issued yet.  It then completes with STATUS_CANCELLED
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the status the operation completed with
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * The attribute's value is overwritten by later operations,
+     * so a read keeps its own copy of the value it read
+     *
+     * @return the value read, or <b>null</b>
+     */
+    public byte[] getResultValue() {
+        return mResultValue;
+    }
+
+    /**
+     * @return the MTU negotiated by a TYPE_REQUEST_MTU operation
+     */
+    public int getResultMtu() {
+        return mResultMtu;
+    }
+
+    /**
+     * A TYPE_SET_PREFERRED_PHY operation completes before the PHY changes, follow it with a TYPE_READ_PHY
+     *
+     * @return the transmitter PHY in use after a TYPE_READ_PHY operation
+     */
+    public int getResultTxPhy() {
+        return mResultTxPhy;
+    }
+
+    /**
+     * @return the receiver PHY in use after a TYPE_READ_PHY operation
+     */
+    public int getResultRxPhy() {
+        return mResultRxPhy;
+    }
+
+    /**
+     * @return how long the operation waited in the queue before it was issued, in milliseconds
+     */
+    public long getWaitMillis() {
+        return mStartedAt > 0 ? mStartedAt - mEnqueuedAt : 0;
+    }
+
+    /**
+     * @return how long the Peripheral took to answer once the operation was issued, in milliseconds
+     */
+    public long getServiceMillis() {
+        return mCompletedAt > 0 && mStartedAt > 0 ? mCompletedAt - mStartedAt : 0;
+    }
+
+
+    /**
+     * Hand the request to Android
+     *
+     * @return <b>true</b> if Android accepted the request and a GATT callback will follow
+     */
+    @SuppressLint({"MissingPermission", "NewApi"})
+    boolean start(BluetoothGatt bluetoothGatt) {
+        if (bluetoothGatt == null) return false;
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return bluetoothGatt.readCharacteristic(mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                mCharacteristic.setWriteType(mWriteType);
+                mCharacteristic.setValue(mValue);
+                return bluetoothGatt.writeCharacteristic(mCharacteristic);
+            case TYPE_WRITE_DESCRIPTOR:
+                mDescriptor.setValue(mValue);
+                return bluetoothGatt.writeDescriptor(mDescriptor);
+            case TYPE_READ_DESCRIPTOR:
+                return bluetoothGatt.readDescriptor(mDescriptor);
+            case TYPE_REQUEST_MTU:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+                return bluetoothGatt.requestMtu(mMtu);
+            case TYPE_SET_PREFERRED_PHY:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+                bluetoothGatt.setPreferredPhy(mTxPhy, mRxPhy, mPhyOptions);
+                return true;
+            case TYPE_READ_PHY:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+                bluetoothGatt.readPhy();
+                return true;
+            case TYPE_DISCOVER_SERVICES:
+                return bluetoothGatt.discoverServices();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Some stacks never call onPhyUpdate when the PHY does not change, so a PHY preference
+     * is complete as soon as Android has it.  onPhyUpdate still updates the PHYs whenever it comes
+     *
+     * @return <b>true</b> if the operation completes with GATT_SUCCESS once it is issued, without waiting for a GATT callback
+     */
+    boolean isCompleteWhenIssued() {
+        return mType == TYPE_SET_PREFERRED_PHY;
+    }
+
+    /**
+     * Android refuses attribute reads and writes while one is outstanding, until its callback arrives
+     * or the link drops, even if the queue has given up on it
+     *
+     * @return <b>true</b> if Android counts this operation as outstanding until its GATT callback
+     */
+    boolean holdsGattRequestSlot() {
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+            case TYPE_WRITE_CHARACTERISTIC:
+            case TYPE_WRITE_DESCRIPTOR:
+            case TYPE_READ_DESCRIPTOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return <b>true</b> if a GATT callback of this type about this attribute answers this operation
+     */
+    boolean isAnsweredBy(int type, Object attribute) {
+        if (type != mType) return false;
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+            case TYPE_WRITE_CHARACTERISTIC:
+                return attribute == mCharacteristic;
+            case TYPE_WRITE_DESCRIPTOR:
+            case TYPE_READ_DESCRIPTOR:
+                return attribute == mDescriptor;
+            default:
+                return true;
+        }
+    }
+
+    void setResultValue(byte[] value) {
+        mResultValue = value != null ? value.clone() : null;
+    }
+
+    void setResultMtu(int mtu) {
+        mResultMtu = mtu;
+    }
+
+    void setResultPhy(int txPhy, int rxPhy) {
+        mResultTxPhy = txPhy;
+        mResultRxPhy = rxPhy;
+    }
+
+    /**
+     * @return how many bytes a write carries, 0 for other operations
+     */
+    int getValueLength() {
+        return mValue != null ? mValue.length : 0;
+    }
+
+    /**
+     * Be told when the operation completes, after its own callback
+     */
+    void setCompletionListener(GattOperationCallback completionListener) {
+        mCompletionListener = completionListener;
+    }
+
+    void complete(int status, long completedAt) {
+        mStatus = status;
+        mCompletedAt = completedAt;
+        if (mCallback != null) {
+            mCallback.onOperationComplete(this, status);
+        }
+        GattOperationCallback completionListener = mCompletionListener;
+        if (completionListener != null) {
+            completionListener.onOperationComplete(this, status);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes the GATT requests of one connection.
+ *
+ * Android silently drops a GATT request issued while another one is outstanding, so requests
+ * are queued and issued one at a time.  The operation after the one in flight is kept staged,
+ * so that it can be issued straight from the GATT callback of the operation before it,
+ * without waiting for another thread.  Operations always complete in the order they were queued.
+ *
+ * An attribute read or write that times out is completed with STATUS_TIMEOUT at once, but the
+ * queue does not move on until its late callback arrives or the link drops: Android still counts
+ * it as outstanding and would refuse every request issued in the meantime.
+ */
+public class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+    public static final long OPERATION_TIMEOUT_MILLIS = 10000;
+    /** tryStart(): the operation waits for its GATT callback, or was cleared in the meantime **/
+    private static final int STATUS_AWAITING_CALLBACK = Integer.MIN_VALUE;
+
+    private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+    private volatile ActivityListener mActivityListener;
+
+    /**
+     * Told when the queue starts and stops working, for example to speed up the connection while it is busy
+     */
+    public interface ActivityListener {
+        /** The queue was idle and received an operation **/
+        void onQueueBusy();
+
+        /** The queue finished its last operation **/
+        void onQueueIdle();
+    }
+
+    /** Queue state, guarded by this **/
+    private BluetoothGatt mBluetoothGatt;
+    private GattOperation mInFlight;
+    private GattOperation mStaged;
+    private boolean mInFlightTimedOut = false; // completed with STATUS_TIMEOUT, waiting for its late callback
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<GattOperation>();
+
+    /** Statistics, guarded by this **/
+    private int mMaxDepth = 0;
+    private long mStartedCount = 0;
+    private long mTimeoutCount = 0;
+    private long mTotalWaitMillis = 0;
+    private long mMaxWaitMillis = 0;
+
+    void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
+        synchronized (this) {
+            mBluetoothGatt = bluetoothGatt;
+        }
+    }
+
+    void setActivityListener(ActivityListener activityListener) {
+        mActivityListener = activityListener;
+    }
+
+    /**
+     * Add an operation to the end of the queue.  It is issued at once if the queue is idle
+     *
+     * @param operation the operation
+     */
+    public void enqueue(GattOperation operation) {
+        boolean issueNow = false;
+        synchronized (this) {
+            operation.mEnqueuedAt = SystemClock.elapsedRealtime();
+            if (mInFlight == null) {
+                mInFlight = operation;
+                issueNow = true;
+            } else if (mStaged == null) {
+                mStaged = operation;
+            } else {
+                mPending.add(operation);
+            }
+            mMaxDepth = Math.max(mMaxDepth, getDepthLocked());
+        }
+        if (issueNow) {
+            notifyBusy();
+            issue(operation);
+        }
+    }
+
+    /**
+     * Find the operation a GATT callback answers
+     *
+     * @param type GattOperation.TYPE_* the callback belongs to
+     * @param attribute the Characteristic or Descriptor the callback is about, or <b>null</b>
+     * @return the operation in flight, or <b>null</b> if the callback does not answer it
+     */
+    synchronized GattOperation findAnsweredOperation(int type, Object attribute) {
+        if (mInFlight == null || !mInFlight.isAnsweredBy(type, attribute)) return null;
+        return mInFlight;
+    }
+
+    /**
+     * Fail every queued operation, for example because the connection closed
+     *
+     * @param status the status to fail the operations with
+     */
+    void clear(int status) {
+        List<GattOperation> dropped = new ArrayList<GattOperation>();
+        synchronized (this) {
+            if (mInFlight != null) {
+                cancelTimeout(mInFlight);
+                if (!mInFlightTimedOut) dropped.add(mInFlight);
+            }
+            if (mStaged != null) dropped.add(mStaged);
+            dropped.addAll(mPending);
+            mInFlight = null;
+            mInFlightTimedOut = false;
+            mStaged = null;
+            mPending.clear();
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (GattOperation operation : dropped) {
+            operation.complete(status, now);
+        }
+        if (!dropped.isEmpty()) notifyIdle();
+    }
+
+    /**
+     * @return operations in flight or waiting
+     */
+    public synchronized int getDepth() {
+        return getDepthLocked();
+    }
+
+    /**
+     * @return the deepest the queue has been
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return how many operations have been issued
+     */
+    public synchronized long getStartedCount() {
+        return mStartedCount;
+    }
+
+    /**
+     * @return how many operations the Peripheral did not answer in time
+     */
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * @return mean time from enqueue to issue, in milliseconds
+     */
+    public synchronized long getAverageWaitMillis() {
+        return mStartedCount > 0 ? mTotalWaitMillis / mStartedCount : 0;
+    }
+
+    /**
+     * @return longest time from enqueue to issue, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+
+    private int getDepthLocked() {
+        return (mInFlight != null ? 1 : 0) + (mStaged != null ? 1 : 0) + mPending.size();
+    }
+
+    /**
+     * Issue an operation.  If it was cancelled, Android refuses it or it needs no GATT callback,
+     * complete it and carry on with the next one
+     */
+    private void issue(GattOperation operation) {
+        while (operation != null) {
+            int status = tryStart(operation);
+            if (status == STATUS_AWAITING_CALLBACK) return;
+            operation = completeUnanswered(operation, status);
+        }
+    }
+
+    /**
+     * Hand the operation in flight to Android, unless it was cancelled
+     *
+     * @return STATUS_AWAITING_CALLBACK if the operation is on its way or was cleared in the meantime,
+     * otherwise the status to complete it with
+     */
+    private int tryStart(GattOperation operation) {
+        BluetoothGatt bluetoothGatt;
+        synchronized (this) {
+            if (mInFlight != operation) return STATUS_AWAITING_CALLBACK; // cleared in the meantime
+            bluetoothGatt = mBluetoothGatt;
+            if (!operation.isCancelled()) {
+                long now = SystemClock.elapsedRealtime();
+                operation.mStartedAt = now;
+                long wait = now - operation.mEnqueuedAt;
+                mStartedCount++;
+                mTotalWaitMillis += wait;
+                if (wait > mMaxWaitMillis) mMaxWaitMillis = wait;
+                scheduleTimeout(operation);
+            }
+        }
+        if (operation.isCancelled()) return GattOperation.STATUS_CANCELLED;
+        if (operation.start(bluetoothGatt)) {
+            return operation.isCompleteWhenIssued() ? BluetoothGatt.GATT_SUCCESS : STATUS_AWAITING_CALLBACK;
+        }
+        Log.w(TAG, "GATT operation " + operation.getType() + " was not started");
+        return GattOperation.STATUS_NOT_STARTED;
+    }
+
+    /**
+     * Complete an operation that no GATT callback will answer, because it never reached
+     * the Peripheral or needs no answer, and move on
+     *
+     * @return the operation to issue next, or <b>null</b>
+     */
+    private GattOperation completeUnanswered(GattOperation operation, int status) {
+        GattOperation next;
+        synchronized (this) {
+            if (mInFlight != operation) return null; // cleared in the meantime
+            next = advance(operation);
+        }
+        // the next operation is not issued until this callback returns, so it can still be cancelled
+        operation.complete(status, SystemClock.elapsedRealtime());
+        if (next == null) notifyIdle();
+        return next;
+    }
+
+    /**
+     * Move the staged operation into flight.  Call with this held, and completed in flight
+     *
+     * @return the operation to issue next, or <b>null</b>
+     */
+    private synchronized GattOperation advance(GattOperation completed) {
+        cancelTimeout(completed);
+        mInFlight = mStaged;
+        mInFlightTimedOut = false;
+        mStaged = mPending.poll();
+        return mInFlight;
+    }
+
+    /**
+     * The operation in flight has finished.  Issue the staged operation first,
+     * so the radio is busy again as early as possible, then notify the finished operation's callback.
+     * If the staged operation needs no callback or Android refused it, it is only completed after the finished one,
+     * and nothing behind it is issued until its callback returns.
+     *
+     * @param completed the operation in flight
+     * @param status the status to complete the operation with
+     */
+    void finish(GattOperation completed, int status) {
+        long completedAt = SystemClock.elapsedRealtime();
+        GattOperation next;
+        boolean timedOut;
+        synchronized (this) {
+            if (mInFlight != completed) return; // already cleared
+            timedOut = mInFlightTimedOut;
+            next = advance(completed);
+        }
+        int nextStatus = next != null ? tryStart(next) : STATUS_AWAITING_CALLBACK;
+        if (!timedOut) completed.complete(status, completedAt); // a timed out operation was completed already
+        if (next == null) {
+            notifyIdle();
+        } else if (nextStatus != STATUS_AWAITING_CALLBACK) {
+            issue(completeUnanswered(next, nextStatus));
+        }
+    }
+
+    private void notifyBusy() {
+        ActivityListener activityListener = mActivityListener;
+        if (activityListener != null) activityListener.onQueueBusy();
+    }
+
+    private void notifyIdle() {
+        ActivityListener activityListener = mActivityListener;
+        if (activityListener != null) activityListener.onQueueIdle();
+    }
+
+    private void scheduleTimeout(final GattOperation operation) {
+        operation.mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattOperationQueue.this) {
+                    if (mInFlight != operation || mInFlightTimedOut) return;
+                    mTimeoutCount++;
+                    if (operation.holdsGattRequestSlot()) {
+                        // Android refuses new requests until the late callback or a disconnect, so wait for it
+                        mInFlightTimedOut = true;
+                    }
+                }
+                Log.w(TAG, "GATT operation " + operation.getType() + " timed out");
+                if (operation.holdsGattRequestSlot()) {
+                    operation.complete(GattOperation.STATUS_TIMEOUT, SystemClock.elapsedRealtime());
+                } else {
+                    finish(operation, GattOperation.STATUS_TIMEOUT);
+                }
+            }
+        };
+        mTimeoutHandler.postDelayed(operation.mTimeout, operation.getTimeoutMillis());
+    }
+
+    private void cancelTimeout(GattOperation operation) {
+        if (operation.mTimeout != null) {
+            mTimeoutHandler.removeCallbacks(operation.mTimeout);
+            operation.mTimeout = null;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Remembers the GATT profile of every Peripheral the app has connected to, on disk.
+ *
+ * Android keeps its own cache of discovered profiles, so service discovery on a known Peripheral
+ * is fast, unless the cache is wiped with BluetoothGatt.refresh().  This cache records, per MAC address,
+ * a fingerprint of the firmware or profile last seen, and whether the Peripheral announced a profile change
+ * that was never rediscovered, so that Android's cache is only wiped when it is known to be stale.
+ *
+ * Lookups never touch the disk, because they are made on the connect path, often on the UI thread.
+ * The profiles on disk are loaded in the background as soon as the cache is created.
+ */
+public class GattProfileCache {
+    private static final String TAG = GattProfileCache.class.getSimpleName();
+    private static final String DIRECTORY_NAME = "gatt_profiles";
+    private static final String FILE_EXTENSION = ".profile";
+    private static final int FILE_VERSION = 2;
+
+    private static GattProfileCache sInstance;
+
+    private final File mDirectory;
+    private final ConcurrentHashMap<String, CachedProfile> mProfiles = new ConcurrentHashMap<String, CachedProfile>();
+    /** Peripherals recorded or forgotten since the cache was created, the files loaded in the background must not override them **/
+    private final Set<String> mChangedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "GattProfileCacheWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Get the cache shared by the whole app.  Call it early, for example when the app starts,
+     * so the profiles on disk are loaded before the first connection
+     *
+     * @param context any Context, only its Application Context is kept
+     * @return the GattProfileCache
+     */
+    public static synchronized GattProfileCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GattProfileCache(new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    private GattProfileCache(File directory) {
+        mDirectory = directory;
+        // on the writer, so every write and delete queued later sees the files as loaded
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    /**
+     * Look up a cached profile.  Only the profiles in memory are searched:
+     * one still being loaded from disk is not found yet
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @return the cached profile, or <b>null</b> if the Peripheral is not cached
+     */
+    public CachedProfile get(String macAddress) {
+        return mProfiles.get(toKey(macAddress));
+    }
+
+    /**
+     * Check whether Android's GATT cache is known to be stale and has to be wiped before connecting.
+     * A Peripheral that was never cached is not: Android has nothing cached for it either, or
+     * the Peripheral announces changes with a Service Changed indication
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param expectedFingerprint the firmware or profile fingerprint expected, or <b>null</b> to trust any cached profile
+     * @return <b>true</b> if the cached profile was invalidated or its fingerprint changed
+     */
+    public boolean needsRefresh(String macAddress, String expectedFingerprint) {
+        CachedProfile profile = get(macAddress);
+        if (profile == null) return false;
+        if (profile.isStale()) return true;
+        return expectedFingerprint != null && !expectedFingerprint.equals(profile.getFingerprint());
+    }
+
+    /**
+     * Mark a Peripheral's profile stale, for example after a Service Changed indication.
+     * The next connection wipes Android's GATT cache unless the profile is rediscovered first
+     *
+     * @param macAddress the Peripheral's MAC address
+     */
+    public void invalidate(String macAddress) {
+        final String key = toKey(macAddress);
+        CachedProfile profile = get(key);
+        if (profile == null || profile.isStale()) return;
+        final CachedProfile stale = new CachedProfile(profile.getFingerprint(), profile.getProfileHash(), true, profile.getCharacteristics());
+        mChangedKeys.add(key);
+        mProfiles.put(key, stale);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(getFile(key), stale);
+            }
+        });
+    }
+
+    /**
+     * Record a freshly discovered profile.  It is written to disk in the background
+     *
+     * @param macAddress the Peripheral's MAC address
+     * @param fingerprint the firmware fingerprint, or <b>null</b> to use the hash of the profile
+     * @param services the discovered services
+     * @return the cached profile
+     */
+    public CachedProfile put(String macAddress, String fingerprint, List<BluetoothGattService> services) {
+        final String key = toKey(macAddress);
+        List<CachedCharacteristic> characteristics = new ArrayList<CachedCharacteristic>();
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                List<UUID> descriptorUuids = new ArrayList<UUID>();
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    descriptorUuids.add(descriptor.getUuid());
+                }
+                characteristics.add(new CachedCharacteristic(service.getUuid(), service.getInstanceId(),
+                        characteristic.getUuid(), characteristic.getInstanceId(), characteristic.getProperties(), descriptorUuids));
+            }
+        }
+        String profileHash = computeProfileHash(characteristics);
+        final CachedProfile profile = new CachedProfile(fingerprint != null ? fingerprint : profileHash, profileHash, false, characteristics);
+
+        mChangedKeys.add(key);
+        CachedProfile previous = mProfiles.put(key, profile);
+        if (previous != null && !previous.isStale() && previous.getProfileHash().equals(profileHash) && previous.getFingerprint().equals(profile.getFingerprint())) {
+            return profile; // nothing changed, no need to touch the disk
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(getFile(key), profile);
+            }
+        });
+        return profile;
+    }
+
+    /**
+     * Forget a Peripheral, for example because its profile changed while connected
+     *
+     * @param macAddress the Peripheral's MAC address
+     */
+    public void remove(String macAddress) {
+        final String key = toKey(macAddress);
+        mChangedKeys.add(key);
+        mProfiles.remove(key);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!getFile(key).delete()) {
+                    Log.v(TAG, "No cached profile to delete for " + key);
+                }
+            }
+        });
+    }
+
+
+    private static String toKey(String macAddress) {
+        return macAddress.toUpperCase(Locale.US);
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key.replace(':', '_') + FILE_EXTENSION);
+    }
+
+    /**
+     * Load every profile on disk into memory.  Only call this from the writer
+     */
+    private void loadAll() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return; // nothing cached yet
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_EXTENSION)) continue;
+            String key = name.substring(0, name.length() - FILE_EXTENSION.length()).replace('_', ':');
+            if (mChangedKeys.contains(key)) continue;
+            CachedProfile profile = read(file);
+            if (profile == null) continue;
+            mProfiles.putIfAbsent(key, profile);
+            // recorded or forgotten while the file was read: take back what was loaded, never the newer profile
+            if (mChangedKeys.contains(key)) mProfiles.remove(key, profile);
+        }
+        Log.v(TAG, "Loaded " + mProfiles.size() + " cached profiles");
+    }
+
+    /**
+     * @return a hex SHA-1 over every attribute's UUID, instance id and properties, in discovery order
+     */
+    private static String computeProfileHash(List<CachedCharacteristic> characteristics) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            DataOutputStream out = new DataOutputStream(new DigestOutput(digest));
+            for (CachedCharacteristic characteristic : characteristics) {
+                characteristic.writeTo(out);
+            }
+            out.flush();
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not hash GATT profile", e);
+        }
+    }
+
+    private static CachedProfile read(File file) {
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) return null;
+            String fingerprint = in.readUTF();
+            String profileHash = in.readUTF();
+            boolean stale = in.readBoolean();
+            int count = in.readInt();
+            List<CachedCharacteristic> characteristics = new ArrayList<CachedCharacteristic>(count);
+            for (int i = 0; i < count; i++) {
+                characteristics.add(CachedCharacteristic.readFrom(in));
+            }
+            return new CachedProfile(fingerprint, profileHash, stale, characteristics);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read cached profile " + file.getName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void write(File file, CachedProfile profile) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + mDirectory);
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(profile.getFingerprint());
+            out.writeUTF(profile.getProfileHash());
+            out.writeBoolean(profile.isStale());
+            out.writeInt(profile.getCharacteristics().size());
+            for (CachedCharacteristic characteristic : profile.getCharacteristics()) {
+                characteristic.writeTo(out);
+            }
+            out.close();
+            out = null;
+            // replace the old file in one step, so a crash never leaves half a profile behind
+            if (!temporary.renameTo(file)) {
+                Log.e(TAG, "Could not replace cached profile " + file.getName());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write cached profile " + file.getName() + ": " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+
+    /**
+     * A Peripheral's profile as it was last discovered
+     */
+    public static class CachedProfile {
+        private final String mFingerprint;
+        private final String mProfileHash;
+        private final boolean mStale;
+        private final List<CachedCharacteristic> mCharacteristics;
+
+        CachedProfile(String fingerprint, String profileHash, boolean stale, List<CachedCharacteristic> characteristics) {
+            mFingerprint = fingerprint;
+            mProfileHash = profileHash;
+            mStale = stale;
+            mCharacteristics = Collections.unmodifiableList(characteristics);
+        }
+
+        /**
+         * @return the firmware fingerprint given when the profile was cached, or the profile hash if there was none
+         */
+        public String getFingerprint() {
+            return mFingerprint;
+        }
+
+        /**
+         * @return hash over the discovered attributes, changes whenever the profile changes
+         */
+        public String getProfileHash() {
+            return mProfileHash;
+        }
+
+        /**
+         * @return <b>true</b> if the Peripheral announced a change to this profile that was not rediscovered yet
+         */
+        public boolean isStale() {
+            return mStale;
+        }
+
+        public List<CachedCharacteristic> getCharacteristics() {
+            return mCharacteristics;
+        }
+    }
+
+    /**
+     * One Characteristic of a cached profile, with the Service it belongs to
+     */
+    public static class CachedCharacteristic {
+        private final UUID mServiceUuid;
+        private final int mServiceInstanceId;
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final int mProperties;
+        private final List<UUID> mDescriptorUuids;
+
+        CachedCharacteristic(UUID serviceUuid, int serviceInstanceId, UUID uuid, int instanceId, int properties, List<UUID> descriptorUuids) {
+            mServiceUuid = serviceUuid;
+            mServiceInstanceId = serviceInstanceId;
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mProperties = properties;
+            mDescriptorUuids = Collections.unmodifiableList(descriptorUuids);
+        }
+
+        public UUID getServiceUuid() { return mServiceUuid; }
+        public int getServiceInstanceId() { return mServiceInstanceId; }
+        public UUID getUuid() { return mUuid; }
+        public int getInstanceId() { return mInstanceId; }
+        public int getProperties() { return mProperties; }
+        public List<UUID> getDescriptorUuids() { return mDescriptorUuids; }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeUuid(out, mServiceUuid);
+            out.writeInt(mServiceInstanceId);
+            writeUuid(out, mUuid);
+            out.writeInt(mInstanceId);
+            out.writeInt(mProperties);
+            out.writeInt(mDescriptorUuids.size());
+            for (UUID descriptorUuid : mDescriptorUuids) {
+                writeUuid(out, descriptorUuid);
+            }
+        }
+
+        static CachedCharacteristic readFrom(DataInputStream in) throws IOException {
+            UUID serviceUuid = readUuid(in);
+            int serviceInstanceId = in.readInt();
+            UUID uuid = readUuid(in);
+            int instanceId = in.readInt();
+            int properties = in.readInt();
+            int descriptorCount = in.readInt();
+            List<UUID> descriptorUuids = new ArrayList<UUID>(descriptorCount);
+            for (int i = 0; i < descriptorCount; i++) {
+                descriptorUuids.add(readUuid(in));
+            }
+            return new CachedCharacteristic(serviceUuid, serviceInstanceId, uuid, instanceId, properties, descriptorUuids);
+        }
+
+        private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+
+        private static UUID readUuid(DataInputStream in) throws IOException {
+            return new UUID(in.readLong(), in.readLong());
+        }
+    }
+
+    /**
+     * Feeds everything written to it into a MessageDigest
+     */
+    private static class DigestOutput extends java.io.OutputStream {
+        private final MessageDigest mDigest;
+
+        DigestOutput(MessageDigest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            mDigest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mDigest.update(b, off, len);
+        }
+    }
+}
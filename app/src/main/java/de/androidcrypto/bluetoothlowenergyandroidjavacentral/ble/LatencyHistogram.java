@@ -0,0 +1,83 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+/**
+ * Histogram of latencies with power-of-two millisecond buckets.
+ *
+ * Bucket 0 counts latencies under 1 ms, bucket i counts latencies from 2^(i-1) up to 2^i ms,
+ * and the last bucket counts everything longer.  Count, sum, minimum and maximum are exact;
+ * percentiles are the upper bound of the bucket they fall in.  Not thread safe.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 20; // the last bucket starts at about 4 minutes
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mSumMillis = 0;
+    private long mMinMillis = Long.MAX_VALUE;
+    private long mMaxMillis = 0;
+
+    /**
+     * @param latencyMillis the latency to record, negative values count as 0
+     */
+    public void record(long latencyMillis) {
+        if (latencyMillis < 0) latencyMillis = 0;
+        mBuckets[bucketOf(latencyMillis)]++;
+        mCount++;
+        mSumMillis += latencyMillis;
+        if (latencyMillis < mMinMillis) mMinMillis = latencyMillis;
+        if (latencyMillis > mMaxMillis) mMaxMillis = latencyMillis;
+    }
+
+    static int bucketOf(long latencyMillis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyMillis); // 0 for 0 ms, 1 for 1 ms, 2 for 2-3 ms, ...
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @param bucket the bucket
+     * @return the longest latency counted in the bucket, in milliseconds
+     */
+    public static long getBucketUpperBoundMillis(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMinMillis() {
+        return mCount > 0 ? mMinMillis : 0;
+    }
+
+    public long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    public long getMeanMillis() {
+        return mCount > 0 ? mSumMillis / mCount : 0;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @return how many latencies fell in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, capped at the maximum seen
+     */
+    public long getPercentileMillis(double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mBuckets[bucket];
+            if (seen >= rank) return Math.min(getBucketUpperBoundMillis(bucket), mMaxMillis);
+        }
+        return mMaxMillis;
+    }
+}
@@ -0,0 +1,129 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer, single-consumer ring buffer for Characteristic notifications.
+ *
+ * The GATT callback thread is the only producer: it copies each value into a preallocated slot
+ * and never blocks, so a slow consumer can not stall the Bluetooth stack.  When the buffer is full
+ * the new value is dropped and counted as an overrun.  One consumer thread drains values in batches.
+ */
+public class NotificationRingBuffer {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int MAX_VALUE_LENGTH = 512; // longest attribute value Android delivers
+
+    private final int mMask;
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+
+    // next slot to read, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // next slot to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mTruncations = new AtomicLong();
+
+    /**
+     * Receives drained values.  The value array is reused once onNotification returns,
+     * so copy anything that has to outlive the call.
+     */
+    public interface Consumer {
+        /**
+         * @param value buffer holding the value
+         * @param length length of the value in the buffer
+         * @param timestampNanos SystemClock.elapsedRealtimeNanos() when the value arrived
+         */
+        void onNotification(byte[] value, int length, long timestampNanos);
+    }
+
+    public NotificationRingBuffer() {
+        this(DEFAULT_CAPACITY, MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * @param capacity number of values the buffer holds, rounded up to a power of two
+     * @param maxValueLength longest value stored.  Longer values are truncated and counted
+     */
+    public NotificationRingBuffer(int capacity, int maxValueLength) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mSlots = new byte[size][maxValueLength];
+        mLengths = new int[size];
+        mTimestamps = new long[size];
+    }
+
+    /**
+     * Copy a value into the buffer.  Only call from the producer thread
+     *
+     * @param value the value, may be <b>null</b> for an empty value
+     * @param timestampNanos when the value arrived
+     * @return <b>false</b> if the buffer was full and the value was dropped
+     */
+    public boolean offer(byte[] value, long timestampNanos) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mOverruns.incrementAndGet();
+            return false;
+        }
+
+        int slot = (int) tail & mMask;
+        int length = value != null ? value.length : 0;
+        byte[] buffer = mSlots[slot];
+        if (length > buffer.length) {
+            length = buffer.length;
+            mTruncations.incrementAndGet();
+        }
+        if (length > 0) System.arraycopy(value, 0, buffer, 0, length);
+        mLengths[slot] = length;
+        mTimestamps[slot] = timestampNanos;
+        mTail.lazySet(tail + 1); // publishes the slot to the consumer
+        return true;
+    }
+
+    /**
+     * Hand buffered values to a consumer, oldest first.  Only call from the consumer thread
+     *
+     * @param consumer receives the values
+     * @param maxBatch most values to drain in this call
+     * @return how many values were drained
+     */
+    public int drain(Consumer consumer, int maxBatch) {
+        long head = mHead.get();
+        long available = mTail.get() - head;
+        int count = (int) Math.min(available, maxBatch);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (head + i) & mMask;
+            consumer.onNotification(mSlots[slot], mLengths[slot], mTimestamps[slot]);
+        }
+        if (count > 0) mHead.lazySet(head + count); // frees the slots for the producer
+        return count;
+    }
+
+    /**
+     * @return how many values are waiting to be drained
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return how many values were dropped because the buffer was full
+     */
+    public long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    /**
+     * @return how many values were too long for a slot and were truncated
+     */
+    public long getTruncationCount() {
+        return mTruncations.get();
+    }
+}
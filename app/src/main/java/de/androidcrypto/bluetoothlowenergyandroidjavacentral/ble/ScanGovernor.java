@@ -0,0 +1,85 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the whole app below Android's scan throttle.
+ *
+ * Android silently stops delivering results to an app that starts more than 5 scans in 30 seconds,
+ * while the scan still looks like it is running.  The governor hands out start times so that no
+ * 30 second window ever contains more than 5 starts, deferring a start if necessary.
+ * The limit applies per app, so there is one governor for every BleCommManager in the process.
+ */
+class ScanGovernor {
+    static final int MAX_STARTS = 5;
+    static final long WINDOW_MILLIS = 30000;
+    private static final long MARGIN_MILLIS = 250; // stay clear of the edge of Android's window
+
+    // planned or past start times, oldest first.  Start times are handed out in increasing order
+    private final List<Long> mStartTimes = new ArrayList<Long>();
+
+    private final AtomicLong mStartCount = new AtomicLong();
+    private final AtomicLong mThrottledCount = new AtomicLong();
+    private final AtomicLong mMergedCount = new AtomicLong();
+
+    /**
+     * Reserve the earliest start time that does not trip the throttle
+     *
+     * @return the reserved start time, on the SystemClock.elapsedRealtime() clock
+     */
+    synchronized long reserveStart() {
+        long now = SystemClock.elapsedRealtime();
+        while (!mStartTimes.isEmpty() && mStartTimes.get(0) <= now - WINDOW_MILLIS) {
+            mStartTimes.remove(0);
+        }
+
+        long startAt = now;
+        int count = mStartTimes.size();
+        if (count > 0) {
+            startAt = Math.max(startAt, mStartTimes.get(count - 1));
+        }
+        if (count >= MAX_STARTS) {
+            startAt = Math.max(startAt, mStartTimes.get(count - MAX_STARTS) + WINDOW_MILLIS + MARGIN_MILLIS);
+        }
+        if (startAt > now) {
+            mThrottledCount.incrementAndGet();
+        }
+        mStartTimes.add(startAt);
+        mStartCount.incrementAndGet();
+        return startAt;
+    }
+
+    /**
+     * Give back a reservation for a scan that was cancelled before it started
+     *
+     * @param startAt the reserved start time
+     */
+    synchronized void releaseStart(long startAt) {
+        if (mStartTimes.remove(Long.valueOf(startAt))) {
+            mStartCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Count a scan request that was merged into the scan already running
+     */
+    void onMerged() {
+        mMergedCount.incrementAndGet();
+    }
+
+    long getStartCount() {
+        return mStartCount.get();
+    }
+
+    long getThrottledCount() {
+        return mThrottledCount.get();
+    }
+
+    long getMergedCount() {
+        return mMergedCount.get();
+    }
+}
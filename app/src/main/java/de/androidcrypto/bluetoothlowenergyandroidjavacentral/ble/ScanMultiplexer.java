@@ -0,0 +1,422 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv18;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.BleScanCallbackv21;
+
+/**
+ * Shares one radio scan between every part of the app that wants scan results.
+ *
+ * Each subscriber registers its own BleScanFilterSet.  The radio scans for the union of all
+ * subscribers' filters, and each result is only delivered to the subscribers whose filters match.
+ * The radio scan is only reconfigured when the union of filters, the scan mode or the report delay
+ * actually changes.
+ */
+public class ScanMultiplexer {
+    private static final String TAG = ScanMultiplexer.class.getSimpleName();
+
+    private static ScanMultiplexer sInstance;
+
+    private final BleCommManager mBleCommManager;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser(); // guarded by itself
+
+    /** Radio state, guarded by this **/
+    private boolean mRadioScanning = false;
+    private BleScanFilterSet mRadioScanFilterSet;
+    private int mRadioScanMode;
+    private long mRadioReportDelayMillis;
+
+    /**
+     * Get the multiplexer shared by the whole app
+     *
+     * @param context any Context, only its Application Context is kept
+     * @return the ScanMultiplexer
+     * @throws Exception Bluetooth Low Energy is not supported on this Android device
+     */
+    public static synchronized ScanMultiplexer getInstance(Context context) throws Exception {
+        if (sInstance == null) {
+            sInstance = new ScanMultiplexer(new BleCommManager(context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    private ScanMultiplexer(BleCommManager bleCommManager) {
+        mBleCommManager = bleCommManager;
+        mBleCommManager.setSoftwareFiltering(false); // every result is matched per subscriber here
+    }
+
+    /**
+     * Start receiving scan results.
+     * Subscribing again with the same callbacks replaces that subscription's filters and restarts its scan period.
+     *
+     * @param scanFilterSet the Peripherals this subscriber wants, or <b>null</b> for every Peripheral
+     * @param scanMode one of ScanSettings.SCAN_MODE_*.  The radio runs at the most aggressive mode any subscriber asks for
+     * @param scanPeriodMillis how long to receive results for, or 0 until unsubscribed
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @return the Subscription, needed to unsubscribe
+     */
+    public Subscription subscribe(BleScanFilterSet scanFilterSet, int scanMode, long scanPeriodMillis,
+                                  BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+        return subscribe(scanFilterSet, scanMode, scanPeriodMillis, 0, bleScanCallbackv18, bleScanCallbackv21);
+    }
+
+    /**
+     * Start receiving scan results, batched where the controller supports it.
+     * Subscribing again with the same callbacks replaces that subscription's filters and restarts its scan period.
+     *
+     * @param scanFilterSet the Peripherals this subscriber wants, or <b>null</b> for every Peripheral
+     * @param scanMode one of ScanSettings.SCAN_MODE_*.  The radio runs at the most aggressive mode any subscriber asks for
+     * @param scanPeriodMillis how long to receive results for, or 0 until unsubscribed
+     * @param reportDelayMillis how long the controller may queue results for, or 0 to report every result immediately.
+     *                          The radio uses the smallest delay any subscriber asks for, so results may arrive sooner,
+     *                          through onScanResult rather than onBatchScanResults
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @return the Subscription, needed to unsubscribe
+     */
+    public Subscription subscribe(BleScanFilterSet scanFilterSet, int scanMode, long scanPeriodMillis, long reportDelayMillis,
+                                  BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+        if (reportDelayMillis < 0) {
+            throw new IllegalArgumentException("reportDelayMillis must be >= 0");
+        }
+        Subscription subscription;
+        synchronized (this) {
+            subscription = findSubscription(bleScanCallbackv18, bleScanCallbackv21);
+            if (subscription == null) {
+                subscription = new Subscription(bleScanCallbackv18, bleScanCallbackv21);
+                mSubscriptions.add(subscription);
+                ConnectionTimeline.getInstance().markScanStarted();
+            }
+            subscription.mScanFilterSet = scanFilterSet;
+            subscription.mScanMode = scanMode;
+            subscription.mReportDelayMillis = reportDelayMillis;
+            subscription.scheduleTimeout(scanPeriodMillis);
+            reconfigureRadio();
+        }
+        return subscription;
+    }
+
+    /**
+     * Stop receiving scan results.  The subscriber receives onScanComplete.
+     *
+     * @param subscription the Subscription returned by subscribe()
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (subscription == null) return;
+        synchronized (this) {
+            if (!mSubscriptions.remove(subscription)) return;
+            subscription.cancelTimeout();
+            reconfigureRadio();
+        }
+        subscription.notifyScanComplete();
+    }
+
+    /**
+     * Stop receiving scan results on a pair of callbacks, if they are subscribed
+     *
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     */
+    public void unsubscribe(BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+        Subscription subscription;
+        synchronized (this) {
+            subscription = findSubscription(bleScanCallbackv18, bleScanCallbackv21);
+        }
+        unsubscribe(subscription);
+    }
+
+    /**
+     * @return how many subscribers currently share the radio scan
+     */
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * @return the BleCommManager running the shared radio scan
+     */
+    public BleCommManager getBleCommManager() {
+        return mBleCommManager;
+    }
+
+    private Subscription findSubscription(BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mScanCallbackv18 == bleScanCallbackv18 && subscription.mScanCallbackv21 == bleScanCallbackv21) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bring the radio scan in line with the subscribers.  Call with this held.
+     */
+    private void reconfigureRadio() {
+        if (mSubscriptions.isEmpty()) {
+            if (mRadioScanning) {
+                mRadioScanning = false;
+                mBleCommManager.stopScanning(mRadioScanCallbackv18, mRadioScanCallbackv21);
+            }
+            return;
+        }
+
+        BleScanFilterSet unionFilterSet = unionOfFilters();
+        int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        long reportDelayMillis = Long.MAX_VALUE;
+        for (Subscription subscription : mSubscriptions) {
+            scanMode = Math.max(scanMode, subscription.mScanMode);
+            reportDelayMillis = Math.min(reportDelayMillis, subscription.mReportDelayMillis);
+        }
+
+        boolean sameFilters = unionFilterSet == null ? mRadioScanFilterSet == null : unionFilterSet.equals(mRadioScanFilterSet);
+        if (mRadioScanning && sameFilters && scanMode == mRadioScanMode && reportDelayMillis == mRadioReportDelayMillis) {
+            return; // the radio is already scanning for exactly this
+        }
+
+        Log.v(TAG, "Reconfiguring radio scan for " + mSubscriptions.size() + " subscribers");
+        mRadioScanFilterSet = unionFilterSet;
+        mRadioScanMode = scanMode;
+        mRadioReportDelayMillis = reportDelayMillis;
+        mBleCommManager.setScanFilters(unionFilterSet);
+        mBleCommManager.setReportDelay(reportDelayMillis);
+        try {
+            mBleCommManager.scanForPeripherals(mRadioScanCallbackv18, mRadioScanCallbackv21, scanMode, 0);
+            mRadioScanning = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not start shared scan: " + e.getMessage());
+            mRadioScanning = false;
+        }
+    }
+
+    /**
+     * @return a filter set that lets through everything any subscriber wants, or <b>null</b> for every Peripheral
+     */
+    private BleScanFilterSet unionOfFilters() {
+        LinkedHashSet<UUID> serviceUuids = new LinkedHashSet<UUID>();
+        LinkedHashSet<String> deviceNames = new LinkedHashSet<String>();
+        LinkedHashSet<String> deviceAddresses = new LinkedHashSet<String>();
+        LinkedHashSet<BleScanFilterSet.ManufacturerDataFilter> manufacturerDataFilters = new LinkedHashSet<BleScanFilterSet.ManufacturerDataFilter>();
+        for (Subscription subscription : mSubscriptions) {
+            BleScanFilterSet scanFilterSet = subscription.mScanFilterSet;
+            if (scanFilterSet == null || scanFilterSet.isEmpty()) return null;
+            serviceUuids.addAll(scanFilterSet.getServiceUuids());
+            deviceNames.addAll(scanFilterSet.getDeviceNames());
+            deviceAddresses.addAll(scanFilterSet.getDeviceAddresses());
+            manufacturerDataFilters.addAll(scanFilterSet.getManufacturerDataFilters());
+        }
+
+        BleScanFilterSet.Builder builder = new BleScanFilterSet.Builder();
+        for (UUID serviceUuid : serviceUuids) builder.addServiceUuid(serviceUuid);
+        for (String deviceName : deviceNames) builder.addDeviceName(deviceName);
+        for (String deviceAddress : deviceAddresses) builder.addDeviceAddress(deviceAddress);
+        for (BleScanFilterSet.ManufacturerDataFilter filter : manufacturerDataFilters) {
+            builder.addManufacturerData(filter.getManufacturerId(), filter.getData(), filter.getMask());
+        }
+        return builder.build();
+    }
+
+    /**
+     * The radio scan ended on its own, for example because Bluetooth was turned off.  End every subscription
+     */
+    private void onRadioScanEnded() {
+        List<Subscription> endedSubscriptions;
+        synchronized (this) {
+            if (!mRadioScanning || mBleCommManager.getActiveScan() != null) {
+                return; // stopped on purpose, or already restarted
+            }
+            mRadioScanning = false;
+            endedSubscriptions = new ArrayList<Subscription>(mSubscriptions);
+            mSubscriptions.clear();
+            for (Subscription subscription : endedSubscriptions) {
+                subscription.cancelTimeout();
+            }
+        }
+        for (Subscription subscription : endedSubscriptions) {
+            subscription.notifyScanComplete();
+        }
+    }
+
+    /**
+     * Check a parsed advertisement against a subscriber's filters
+     */
+    private static boolean matches(Subscription subscription, BluetoothDevice bluetoothDevice, AdvertisementParser advertisement) {
+        BleScanFilterSet scanFilterSet = subscription.mScanFilterSet;
+        return scanFilterSet == null || scanFilterSet.matches(bluetoothDevice, advertisement);
+    }
+
+
+    /**
+     * Match one advertisement against every subscriber.  Only the parsing and matching hold the parser lock,
+     * so a subscriber's callback can never block another scan callback thread
+     *
+     * @return the matching subscribers, or <b>null</b> if none match
+     */
+    private List<Subscription> findMatchingSubscriptions(BluetoothDevice bluetoothDevice, byte[] scanRecord) {
+        List<Subscription> matchingSubscriptions = null;
+        synchronized (mAdvertisementParser) {
+            mAdvertisementParser.parse(scanRecord);
+            for (Subscription subscription : mSubscriptions) {
+                if (matches(subscription, bluetoothDevice, mAdvertisementParser)) {
+                    if (matchingSubscriptions == null) matchingSubscriptions = new ArrayList<Subscription>(mSubscriptions.size());
+                    matchingSubscriptions.add(subscription);
+                }
+            }
+        }
+        return matchingSubscriptions;
+    }
+
+
+    /**
+     * Receives the results of the shared radio scan and routes them to the subscribers
+     */
+    private final BleScanCallbackv21 mRadioScanCallbackv21 = new BleScanCallbackv21() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            List<Subscription> matchingSubscriptions = findMatchingSubscriptions(result.getDevice(), getScanRecordBytes(result));
+            if (matchingSubscriptions == null) return;
+            ConnectionTimeline.getInstance().markSighting(result.getDevice().getAddress());
+            for (int i = 0; i < matchingSubscriptions.size(); i++) {
+                matchingSubscriptions.get(i).mScanCallbackv21.onScanResult(callbackType, result);
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            Subscription[] subscriptions = mSubscriptions.toArray(new Subscription[0]);
+            List<List<ScanResult>> matchingResults = new ArrayList<List<ScanResult>>(subscriptions.length);
+            for (int i = 0; i < subscriptions.length; i++) {
+                matchingResults.add(new ArrayList<ScanResult>());
+            }
+            List<ScanResult> sightedResults = new ArrayList<ScanResult>(results.size());
+            synchronized (mAdvertisementParser) {
+                for (ScanResult result : results) {
+                    mAdvertisementParser.parse(getScanRecordBytes(result));
+                    boolean sighted = false;
+                    for (int i = 0; i < subscriptions.length; i++) {
+                        if (matches(subscriptions[i], result.getDevice(), mAdvertisementParser)) {
+                            matchingResults.get(i).add(result);
+                            sighted = true;
+                        }
+                    }
+                    if (sighted) sightedResults.add(result);
+                }
+            }
+            for (int i = 0; i < sightedResults.size(); i++) {
+                ConnectionTimeline.getInstance().markSighting(sightedResults.get(i).getDevice().getAddress());
+            }
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (!matchingResults.get(i).isEmpty()) subscriptions[i].mScanCallbackv21.onBatchScanResults(matchingResults.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            List<Subscription> failedSubscriptions;
+            synchronized (ScanMultiplexer.this) {
+                mRadioScanning = false; // so the onScanComplete of the stop below is not taken for a second ending
+                mRadioScanFilterSet = null;
+                failedSubscriptions = new ArrayList<Subscription>(mSubscriptions);
+                mSubscriptions.clear();
+                for (Subscription subscription : failedSubscriptions) {
+                    subscription.cancelTimeout();
+                }
+                // the failed scan never times out on its own, drop it or the next subscribe() would merge into it
+                mBleCommManager.stopScanning(mRadioScanCallbackv18, mRadioScanCallbackv21);
+            }
+            for (Subscription subscription : failedSubscriptions) {
+                subscription.mScanCallbackv21.onScanFailed(errorCode);
+            }
+        }
+
+        @Override
+        public void onScanComplete() {
+            onRadioScanEnded();
+        }
+    };
+
+    private final BleScanCallbackv18 mRadioScanCallbackv18 = new BleScanCallbackv18() {
+        @Override
+        public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+            List<Subscription> matchingSubscriptions = findMatchingSubscriptions(bluetoothDevice, scanRecord);
+            if (matchingSubscriptions == null) return;
+            ConnectionTimeline.getInstance().markSighting(bluetoothDevice.getAddress());
+            for (int i = 0; i < matchingSubscriptions.size(); i++) {
+                matchingSubscriptions.get(i).mScanCallbackv18.onLeScan(bluetoothDevice, rssi, scanRecord);
+            }
+        }
+
+        @Override
+        public void onScanComplete() {
+            onRadioScanEnded();
+        }
+    };
+
+
+    /**
+     * One subscriber's share of the radio scan
+     */
+    public class Subscription {
+        private final BleScanCallbackv18 mScanCallbackv18;
+        private final BleScanCallbackv21 mScanCallbackv21;
+        private volatile BleScanFilterSet mScanFilterSet; // read on the scan callback thread
+        private int mScanMode;
+        private long mReportDelayMillis;
+        private ScheduledFuture<?> mTimeout; // guarded by ScanMultiplexer.this
+
+        private Subscription(BleScanCallbackv18 bleScanCallbackv18, BleScanCallbackv21 bleScanCallbackv21) {
+            mScanCallbackv18 = bleScanCallbackv18;
+            mScanCallbackv21 = bleScanCallbackv21;
+        }
+
+        public BleScanFilterSet getScanFilters() {
+            return mScanFilterSet;
+        }
+
+        /**
+         * Stop receiving scan results
+         */
+        public void cancel() {
+            unsubscribe(this);
+        }
+
+        private void scheduleTimeout(long scanPeriodMillis) {
+            cancelTimeout();
+            if (scanPeriodMillis <= 0) return;
+            mTimeout = BleCommManager.getScanScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    unsubscribe(Subscription.this);
+                }
+            }, scanPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelTimeout() {
+            if (mTimeout != null) mTimeout.cancel(false);
+            mTimeout = null;
+        }
+
+        private void notifyScanComplete() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                mScanCallbackv18.onScanComplete();
+            } else {
+                mScanCallbackv21.onScanComplete();
+            }
+        }
+    }
+}
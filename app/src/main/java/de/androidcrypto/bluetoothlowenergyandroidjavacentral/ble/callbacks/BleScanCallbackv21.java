@@ -1,8 +1,11 @@
 package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks;
 
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 
@@ -46,4 +49,35 @@ public abstract class BleScanCallbackv21 extends ScanCallback {
      */
     public abstract void onScanComplete();
 
+    /**
+     * Collapse a batch of Scan Results so that each Peripheral appears once,
+     * keeping its most recent result.  Peripherals stay in the order they first appear in the batch.
+     *
+     * @param results List: List of scan results that are previously scanned.
+     * @return List of the latest Scan Result of each Peripheral
+     */
+    public static List<ScanResult> coalesceByDevice(List<ScanResult> results) {
+        if (results.size() <= 1) return results;
+        LinkedHashMap<String, ScanResult> latestResults = new LinkedHashMap<String, ScanResult>();
+        for (ScanResult result : results) {
+            String macAddress = result.getDevice().getAddress();
+            ScanResult previousResult = latestResults.get(macAddress);
+            if (previousResult == null || previousResult.getTimestampNanos() <= result.getTimestampNanos()) {
+                latestResults.put(macAddress, result);
+            }
+        }
+        return new ArrayList<ScanResult>(latestResults.values());
+    }
+
+    /**
+     * Get the raw advertisement of a Scan Result, for parsing with the AdvertisementParser
+     *
+     * @param result a Bluetooth Low Energy Scan Result
+     * @return the raw scan record, or <b>null</b> if the result carries none
+     */
+    public static byte[] getScanRecordBytes(ScanResult result) {
+        ScanRecord scanRecord = result.getScanRecord();
+        return scanRecord != null ? scanRecord.getBytes() : null;
+    }
+
 }
@@ -0,0 +1,49 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks;
+
+import android.bluetooth.BluetoothDevice;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.AdvertisementParser;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleScanFilterSet;
+
+/**
+ * Applies a BleScanFilterSet in software for BluetoothAdapter.startLeScan(),
+ * which has no filtering of its own.  Only matching Peripherals are passed on to the wrapped callback.
+ */
+public class FilteredScanCallbackv18 extends BleScanCallbackv18 {
+    private final BleScanCallbackv18 mScanCallback;
+    private final BleScanFilterSet mScanFilterSet;
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser();
+
+    /**
+     * @param scanCallback the callback to pass matching Peripherals to
+     * @param scanFilterSet the Peripherals to let through
+     */
+    public FilteredScanCallbackv18(BleScanCallbackv18 scanCallback, BleScanFilterSet scanFilterSet) {
+        mScanCallback = scanCallback;
+        mScanFilterSet = scanFilterSet;
+    }
+
+    /**
+     * @return the callback matching Peripherals are passed to
+     */
+    public BleScanCallbackv18 getScanCallback() {
+        return mScanCallback;
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        boolean matches;
+        synchronized (this) {
+            mAdvertisementParser.parse(scanRecord);
+            matches = mScanFilterSet.matches(bluetoothDevice, mAdvertisementParser);
+        }
+        if (matches) {
+            mScanCallback.onLeScan(bluetoothDevice, rssi, scanRecord);
+        }
+    }
+
+    @Override
+    public void onScanComplete() {
+        mScanCallback.onScanComplete();
+    }
+}
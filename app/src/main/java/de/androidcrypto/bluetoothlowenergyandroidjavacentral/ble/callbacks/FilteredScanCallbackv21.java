@@ -0,0 +1,68 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.AdvertisementParser;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BleScanFilterSet;
+
+/**
+ * Applies a BleScanFilterSet in software, for Bluetooth controllers that can not filter
+ * advertisements themselves.  Only matching Scan Results are passed on to the wrapped callback.
+ */
+public class FilteredScanCallbackv21 extends BleScanCallbackv21 {
+    private final BleScanCallbackv21 mScanCallback;
+    private final BleScanFilterSet mScanFilterSet;
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser();
+
+    /**
+     * @param scanCallback the callback to pass matching Scan Results to
+     * @param scanFilterSet the Peripherals to let through
+     */
+    public FilteredScanCallbackv21(BleScanCallbackv21 scanCallback, BleScanFilterSet scanFilterSet) {
+        mScanCallback = scanCallback;
+        mScanFilterSet = scanFilterSet;
+    }
+
+    /**
+     * @return the callback matching Scan Results are passed to
+     */
+    public BleScanCallbackv21 getScanCallback() {
+        return mScanCallback;
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+        if (matches(result)) {
+            mScanCallback.onScanResult(callbackType, result);
+        }
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+        List<ScanResult> matchingResults = new ArrayList<ScanResult>(results.size());
+        for (ScanResult result : results) {
+            if (matches(result)) matchingResults.add(result);
+        }
+        if (!matchingResults.isEmpty()) {
+            mScanCallback.onBatchScanResults(matchingResults);
+        }
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        mScanCallback.onScanFailed(errorCode);
+    }
+
+    @Override
+    public void onScanComplete() {
+        mScanCallback.onScanComplete();
+    }
+
+    private synchronized boolean matches(ScanResult result) {
+        mAdvertisementParser.parse(getScanRecordBytes(result));
+        return mScanFilterSet.matches(result.getDevice(), mAdvertisementParser);
+    }
+}
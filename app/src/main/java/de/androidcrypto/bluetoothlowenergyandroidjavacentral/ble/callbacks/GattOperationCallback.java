@@ -0,0 +1,30 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.GattOperation;
+
+/**
+ * GattOperationCallback is notified when one queued GATT operation has finished.
+ *
+ * There is no single callback thread.  The thread depends on how the operation finished:
+ * <ul>
+ * <li>answered by the Peripheral: the Binder thread that delivered the GATT callback</li>
+ * <li>STATUS_TIMEOUT: the main thread, where the queue's timeouts run</li>
+ * <li>STATUS_NOT_STARTED, STATUS_CANCELLED, or GATT_SUCCESS for an operation that needs no answer:
+ * the thread that issued it, which is the thread that called enqueue() on an idle queue,
+ * or else the thread that completed the operation before it</li>
+ * <li>STATUS_DISCONNECTED: the thread that cleared the queue, which is the Binder thread that
+ * delivered the disconnect, or the thread that called BlePeripheral.close()</li>
+ * </ul>
+ * Operations still complete in the order they were queued.  Post to a Handler or an Executor
+ * before touching anything that is confined to one thread, such as the UI.
+ */
+public interface GattOperationCallback {
+
+    /**
+     * GATT operation finished.  See the interface documentation for the thread this is called on.
+     *
+     * @param operation the finished operation, carrying any value that was read
+     * @param status BluetoothGatt.GATT_SUCCESS, a GATT error, or one of GattOperation.STATUS_*
+     */
+    void onOperationComplete(GattOperation operation, int status);
+}
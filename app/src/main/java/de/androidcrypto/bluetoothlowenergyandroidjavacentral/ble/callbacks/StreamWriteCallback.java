@@ -0,0 +1,24 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks;
+
+/**
+ * StreamWriteCallback follows the progress of a BleStreamWriter
+ */
+public interface StreamWriteCallback {
+
+    /**
+     * A chunk was accepted
+     *
+     * @param bytesWritten bytes accepted so far
+     * @param bytesPerSecond sustained throughput since the stream started
+     */
+    void onStreamWriteProgress(long bytesWritten, float bytesPerSecond);
+
+    /**
+     * The stream finished, failed or was cancelled
+     *
+     * @param status BluetoothGatt.GATT_SUCCESS, a GATT error, a GattOperation.STATUS_* or BleStreamWriter.STATUS_SOURCE_ERROR
+     * @param bytesWritten bytes accepted in total
+     * @param bytesPerSecond sustained throughput over the whole stream
+     */
+    void onStreamWriteComplete(int status, long bytesWritten, float bytesPerSecond);
+}
@@ -2,6 +2,8 @@ package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BlePeripheral;
+
 /**
  * A visual representation of the characteristics available in a BLE service
  * This is paired with a list_item_ble_characteristic.xml that lists the services found by the BleCommManager
@@ -10,14 +12,25 @@ import android.bluetooth.BluetoothGattCharacteristic;
  * @date 2015-12-21
  */
 public class BleGattCharacteristicListItem {
-    private int mItemId;
-    private BluetoothGattCharacteristic mCharacteristic;
+    private final int mItemId;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    // worked out once, so binding a row does not touch the Characteristic
+    private final String mUuidText;
+    private final boolean mReadable, mWritable, mNotifiable;
 
     public BleGattCharacteristicListItem(BluetoothGattCharacteristic characteristic, int itemId) {
         mCharacteristic = characteristic;
         mItemId = itemId;
+        mUuidText = characteristic.getUuid().toString();
+        mReadable = BlePeripheral.isCharacteristicReadable(characteristic);
+        mWritable = BlePeripheral.isCharacteristicWritable(characteristic);
+        mNotifiable = BlePeripheral.isCharacteristicNotifiable(characteristic);
     }
 
     public int getItemId() { return mItemId; }
     public BluetoothGattCharacteristic getCharacteristic() { return mCharacteristic; }
+    public String getUuidText() { return mUuidText; }
+    public boolean isReadable() { return mReadable; }
+    public boolean isWritable() { return mWritable; }
+    public boolean isNotifiable() { return mNotifiable; }
 }
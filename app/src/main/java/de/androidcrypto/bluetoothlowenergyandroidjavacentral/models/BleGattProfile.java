@@ -0,0 +1,93 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of a Peripheral's GATT profile, as the profile list shows it.
+ *
+ * Built in one pass over the discovered Services, on whatever thread discovery reported on,
+ * then handed to the UI in a single post.  Services and their Characteristics are indexed by
+ * list position, so the list never searches for a Service.
+ */
+public final class BleGattProfile {
+    public static final BleGattProfile EMPTY = new BleGattProfile(
+            Collections.<BleGattServiceListItem>emptyList(),
+            Collections.<List<BleGattCharacteristicListItem>>emptyList(), 0);
+
+    private final List<BleGattServiceListItem> mServices;
+    private final List<List<BleGattCharacteristicListItem>> mCharacteristics; // by Service position
+    private final int mCharacteristicCount;
+
+    private BleGattProfile(List<BleGattServiceListItem> services, List<List<BleGattCharacteristicListItem>> characteristics,
+                           int characteristicCount) {
+        mServices = services;
+        mCharacteristics = characteristics;
+        mCharacteristicCount = characteristicCount;
+    }
+
+    /**
+     * Snapshot a discovered profile
+     *
+     * @param services the Services from BluetoothGatt.getServices()
+     * @return the profile
+     */
+    public static BleGattProfile build(List<BluetoothGattService> services) {
+        ArrayList<BleGattServiceListItem> serviceListItems = new ArrayList<BleGattServiceListItem>(services.size());
+        ArrayList<List<BleGattCharacteristicListItem>> characteristicListItems = new ArrayList<List<BleGattCharacteristicListItem>>(services.size());
+        int characteristicItemId = 0;
+        for (BluetoothGattService service : services) {
+            if (service == null) continue;
+            serviceListItems.add(new BleGattServiceListItem(service, serviceListItems.size()));
+
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            ArrayList<BleGattCharacteristicListItem> listItems = new ArrayList<BleGattCharacteristicListItem>(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                if (characteristic == null) continue;
+                // unique across the profile, so the list's ids stay stable
+                listItems.add(new BleGattCharacteristicListItem(characteristic, characteristicItemId++));
+            }
+            characteristicListItems.add(Collections.unmodifiableList(listItems));
+        }
+        return new BleGattProfile(Collections.unmodifiableList(serviceListItems),
+                Collections.unmodifiableList(characteristicListItems), characteristicItemId);
+    }
+
+    public int getServiceCount() {
+        return mServices.size();
+    }
+
+    /**
+     * @param servicePosition position of the Service, 0 to getServiceCount() - 1
+     */
+    public BleGattServiceListItem getService(int servicePosition) {
+        return mServices.get(servicePosition);
+    }
+
+    /**
+     * @param servicePosition position of the Service, 0 to getServiceCount() - 1
+     * @return the number of Characteristics in that Service
+     */
+    public int getCharacteristicCount(int servicePosition) {
+        return mCharacteristics.get(servicePosition).size();
+    }
+
+    /**
+     * @param servicePosition position of the Service, 0 to getServiceCount() - 1
+     * @param characteristicPosition position of the Characteristic within the Service
+     */
+    public BleGattCharacteristicListItem getCharacteristic(int servicePosition, int characteristicPosition) {
+        return mCharacteristics.get(servicePosition).get(characteristicPosition);
+    }
+
+    /**
+     * @return the number of Characteristics in all Services
+     */
+    public int getCharacteristicCount() {
+        return mCharacteristicCount;
+    }
+}
@@ -14,14 +14,17 @@ import java.util.UUID;
 public class BleGattServiceListItem {
     private final int mItemId;
     private final BluetoothGattService mService;
+    private final String mUuidText;
 
     public BleGattServiceListItem(BluetoothGattService gattService, int serviceItemID) {
         mItemId = serviceItemID;
         mService = gattService;
+        mUuidText = gattService.getUuid().toString();
     }
 
     public int getItemId() { return mItemId; }
     public UUID getUuid() { return mService.getUuid(); }
+    public String getUuidText() { return mUuidText; }
     public int getType() { return mService.getType(); }
     public BluetoothGattService getService() { return mService; }
 }
@@ -1,6 +1,8 @@
 package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
 
+import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
 
 /**
  * A visual representation of a Bluetooth Low Energy Device.
@@ -11,23 +13,54 @@ import android.bluetooth.BluetoothDevice;
  */
 public class BlePeripheralListItem {
     private int mItemId;
-    private int mRssi;
+    private final RssiTimeSeries mRssiHistory = new RssiTimeSeries(); // updated from scan callback threads
+    private volatile int mTxPowerLevel = Integer.MIN_VALUE; // advertised, if any
     private BluetoothDevice mBluetoothDevice;
+    private volatile String mBroadcastName; // advertised local name, or the one Android cached
 
     public BlePeripheralListItem(BluetoothDevice bluetoothDevice) {
         mBluetoothDevice = bluetoothDevice;
     }
 
     public void setItemId(int id) {  mItemId = id; }
+    public void setBroadcastName(String broadcastName) { mBroadcastName = broadcastName; }
     public void setRssi(int rssi) {
-        mRssi = rssi;
+        mRssiHistory.add(SystemClock.elapsedRealtimeNanos(), rssi);
+    }
+    /**
+     * @param timestampNanos when the Peripheral was seen, SystemClock.elapsedRealtimeNanos() or ScanResult.getTimestampNanos()
+     * @param rssi the RSSI of this sighting
+     */
+    public void addRssiSample(long timestampNanos, int rssi) {
+        mRssiHistory.add(timestampNanos, rssi);
+    }
+    /**
+     * @param txPowerLevel the advertised TX power level, or AdvertisementParser.TX_POWER_UNKNOWN
+     */
+    public void setTxPowerLevel(int txPowerLevel) {
+        if (txPowerLevel != Integer.MIN_VALUE) mTxPowerLevel = txPowerLevel;
     }
 
     public int getItemId() { return mItemId; }
-    public String getBroadcastName() { return mBluetoothDevice.getName(); }
+    @SuppressLint("MissingPermission")
+    public String getBroadcastName() {
+        if (mBroadcastName != null) return mBroadcastName;
+        // asking Android is a call into the Bluetooth service, so only do it until it knows the name
+        String name = mBluetoothDevice.getName();
+        if (name != null) mBroadcastName = name;
+        return name;
+    }
     public String getMacAddress() {
         return mBluetoothDevice.getAddress();
     }
-    public int getRssi() { return mRssi; }
+    /**
+     * @return the smoothed RSSI, steadier than any single sighting
+     */
+    public int getRssi() { return (int) Math.round(mRssiHistory.getSmoothedRssi()); }
+    public RssiTimeSeries getRssiHistory() { return mRssiHistory; }
+    /**
+     * @return the estimated distance in meters, or -1 if the Peripheral has not been seen
+     */
+    public double getDistanceMeters() { return mRssiHistory.getDistanceMeters(mTxPowerLevel); }
     public BluetoothDevice getDevice() { return mBluetoothDevice; }
 }
@@ -0,0 +1,35 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
+
+/**
+ * What one row of the Peripheral list shows, frozen at the time the list was published.
+ *
+ * BlePeripheralListItems keep changing while the scan runs, so the list is diffed on
+ * immutable rows instead: comparing an old row with a new one tells exactly what changed.
+ */
+public final class BlePeripheralListRow {
+    private final int mItemId;
+    private final String mMacAddress;
+    private final String mBroadcastName;
+    private final int mRssi;
+
+    public BlePeripheralListRow(BlePeripheralListItem listItem) {
+        mItemId = listItem.getItemId();
+        mMacAddress = listItem.getMacAddress();
+        mBroadcastName = listItem.getBroadcastName();
+        mRssi = listItem.getRssi();
+    }
+
+    public int getItemId() { return mItemId; }
+    public String getMacAddress() { return mMacAddress; }
+    public String getBroadcastName() { return mBroadcastName; }
+    public int getRssi() { return mRssi; }
+
+    /**
+     * @param other a row of the same Peripheral
+     * @return <b>true</b> if both rows show the same name and address, whatever their RSSI
+     */
+    public boolean hasSameLabels(BlePeripheralListRow other) {
+        return mMacAddress.equals(other.mMacAddress)
+                && (mBroadcastName == null ? other.mBroadcastName == null : mBroadcastName.equals(other.mBroadcastName));
+    }
+}
@@ -0,0 +1,153 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.LongHashMap;
+
+/**
+ * Keeps track of every Peripheral seen during a scan, keyed by its MAC address.
+ * Scan callbacks may insert or update from any thread; the UI only ever
+ * sees immutable snapshots of the registry.
+ *
+ * The MAC address is packed into a primitive long and looked up in a LongHashMap, so recording
+ * a sighting of a known Peripheral does not allocate.  The map is guarded by one short lock, which
+ * is uncontended in practice: Android delivers the scan results of one scan on a single thread.
+ */
+public class BlePeripheralRegistry {
+    // MAC address packed into a long -> list item, guarded by itself
+    private final LongHashMap<BlePeripheralListItem> mPeripherals = new LongHashMap<BlePeripheralListItem>();
+    private int mNextItemId = 0; // guarded by mPeripherals
+    private final AtomicLong mVersion = new AtomicLong(); // bumped whenever a Peripheral is added or removed
+
+    private volatile List<BlePeripheralListItem> mSnapshot = Collections.emptyList();
+    private long mSnapshotVersion = 0; // guarded by this
+
+    /**
+     * Insert a new Peripheral or update the RSSI of a known one
+     *
+     * @param bluetoothDevice the Peripheral device
+     * @param broadcastName the advertised name, or <b>null</b> to use the name Android cached
+     * @param rssi the Peripheral's RSSI, indicating its radio signal quality
+     * @return <b>true</b> if the Peripheral was not known before
+     */
+    public boolean addOrUpdate(BluetoothDevice bluetoothDevice, String broadcastName, int rssi) {
+        return addOrUpdate(bluetoothDevice, broadcastName, rssi, Integer.MIN_VALUE, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Insert a new Peripheral or add a sighting to the RSSI history of a known one
+     *
+     * @param bluetoothDevice the Peripheral device
+     * @param broadcastName the advertised name, or <b>null</b> to use the name Android cached
+     * @param rssi the Peripheral's RSSI, indicating its radio signal quality
+     * @param txPowerLevel the advertised TX power level, or AdvertisementParser.TX_POWER_UNKNOWN
+     * @param timestampNanos when the Peripheral was seen, in SystemClock.elapsedRealtimeNanos() time
+     * @return <b>true</b> if the Peripheral was not known before
+     */
+    public boolean addOrUpdate(BluetoothDevice bluetoothDevice, String broadcastName, int rssi, int txPowerLevel, long timestampNanos) {
+        long key = DataConverter.macAddressToLong(bluetoothDevice.getAddress());
+        BlePeripheralListItem listItem;
+        synchronized (mPeripherals) {
+            listItem = mPeripherals.get(key);
+            if (listItem == null) {
+                listItem = new BlePeripheralListItem(bluetoothDevice);
+                listItem.setItemId(mNextItemId++);
+                listItem.setBroadcastName(broadcastName);
+                // sighted before it becomes visible, so no snapshot shows it without an RSSI
+                listItem.setTxPowerLevel(txPowerLevel);
+                listItem.addRssiSample(timestampNanos, rssi);
+                mPeripherals.put(key, listItem);
+                mVersion.incrementAndGet();
+                return true;
+            }
+        }
+        listItem.setTxPowerLevel(txPowerLevel);
+        listItem.addRssiSample(timestampNanos, rssi);
+        return false;
+    }
+
+    /**
+     * Look up a Peripheral by its MAC address
+     *
+     * @param macAddress the MAC address, formatted as "AA:BB:CC:DD:EE:FF"
+     * @return the list item, or <b>null</b> if the Peripheral has not been seen
+     */
+    public BlePeripheralListItem get(String macAddress) {
+        long key = DataConverter.macAddressToLong(macAddress);
+        synchronized (mPeripherals) {
+            return mPeripherals.get(key);
+        }
+    }
+
+    /**
+     * How many Peripherals are known
+     *
+     * @return the number of Peripherals in the registry
+     */
+    public int size() {
+        synchronized (mPeripherals) {
+            return mPeripherals.size();
+        }
+    }
+
+    /**
+     * Forget all known Peripherals
+     */
+    public void clear() {
+        synchronized (mPeripherals) {
+            mPeripherals.clear();
+            mVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get an immutable view of the registry, in the order the Peripherals were discovered.
+     * The snapshot is only rebuilt when Peripherals were added or removed since the last call.
+     *
+     * @return an unmodifiable List of BlePeripheralListItems
+     */
+    public List<BlePeripheralListItem> getSnapshot() {
+        long version = mVersion.get();
+        synchronized (this) {
+            if (version != mSnapshotVersion) {
+                ArrayList<BlePeripheralListItem> listItems;
+                synchronized (mPeripherals) {
+                    listItems = mPeripherals.addValuesTo(new ArrayList<BlePeripheralListItem>(mPeripherals.size()));
+                }
+                Collections.sort(listItems, ITEM_ID_COMPARATOR);
+                mSnapshot = Collections.unmodifiableList(listItems);
+                mSnapshotVersion = version;
+            }
+            return mSnapshot;
+        }
+    }
+
+    /**
+     * Freeze what the list shows of every Peripheral, in the order they were discovered
+     *
+     * @return an unmodifiable List of immutable rows
+     */
+    public List<BlePeripheralListRow> getRows() {
+        List<BlePeripheralListItem> listItems = getSnapshot();
+        ArrayList<BlePeripheralListRow> rows = new ArrayList<BlePeripheralListRow>(listItems.size());
+        for (BlePeripheralListItem listItem : listItems) {
+            rows.add(new BlePeripheralListRow(listItem));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    private static final Comparator<BlePeripheralListItem> ITEM_ID_COMPARATOR = new Comparator<BlePeripheralListItem>() {
+        @Override
+        public int compare(BlePeripheralListItem a, BlePeripheralListItem b) {
+            return a.getItemId() < b.getItemId() ? -1 : (a.getItemId() == b.getItemId() ? 0 : 1);
+        }
+    };
+}
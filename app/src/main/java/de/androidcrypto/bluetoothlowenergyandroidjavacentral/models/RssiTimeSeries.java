@@ -0,0 +1,173 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.models;
+
+/**
+ * The recent RSSI samples of one Peripheral, with a smoothed RSSI and the distance and trend derived from it.
+ *
+ * Samples are kept in a fixed ring of primitive arrays, so recording a sighting does not allocate.
+ * Single RSSI readings jump by several dB from one advertisement to the next; a one dimensional
+ * Kalman filter smooths them.  Its process noise grows with the time between samples, so after a gap
+ * the filter trusts the new sample more, and a Peripheral that moves is followed within a few sightings.
+ *
+ * Scan callbacks may add samples from any thread while the UI reads, so every method is synchronized.
+ */
+public class RssiTimeSeries {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** Variance of a single RSSI reading, in dB^2 **/
+    private static final double MEASUREMENT_NOISE = 16.0;
+    /** How much the true RSSI may drift per second, in dB^2 **/
+    private static final double PROCESS_NOISE_PER_SECOND = 4.0;
+
+    /** Received power at 1 m when the Peripheral does not advertise its TX power, in dBm **/
+    public static final int DEFAULT_MEASURED_POWER = -59;
+    /** Path loss between the antenna and 1 m, subtracted from an advertised TX power level **/
+    private static final int PATH_LOSS_AT_ONE_METER = 41;
+    /** Path loss exponent: 2 in free space, up to 4 indoors **/
+    private static final double PATH_LOSS_EXPONENT = 2.0;
+
+    /** Slope of the smoothed RSSI, in dB per second, below which the Peripheral counts as steady **/
+    private static final double TREND_THRESHOLD_DB_PER_SECOND = 1.0;
+    public static final int TREND_RECEDING = -1;
+    public static final int TREND_STEADY = 0;
+    public static final int TREND_APPROACHING = 1;
+
+    private final long[] mTimestamps; // SystemClock.elapsedRealtimeNanos()
+    private final int[] mRssis;
+    private final double[] mSmoothedRssis;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    // Kalman filter state
+    private double mEstimate;
+    private double mErrorCovariance;
+    private long mLastTimestamp;
+
+    public RssiTimeSeries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many samples to keep, the oldest is overwritten
+     */
+    public RssiTimeSeries(int capacity) {
+        mTimestamps = new long[capacity];
+        mRssis = new int[capacity];
+        mSmoothedRssis = new double[capacity];
+    }
+
+    /**
+     * Record a sighting
+     *
+     * @param timestampNanos when the Peripheral was seen, SystemClock.elapsedRealtimeNanos() or ScanResult.getTimestampNanos()
+     * @param rssi the RSSI, in dBm
+     */
+    public synchronized void add(long timestampNanos, int rssi) {
+        if (mSize == 0) {
+            mEstimate = rssi;
+            mErrorCovariance = MEASUREMENT_NOISE;
+        } else {
+            // predict: the longer since the last sample, the less the old estimate is worth
+            double elapsedSeconds = Math.max(0, timestampNanos - mLastTimestamp) / 1e9;
+            mErrorCovariance += PROCESS_NOISE_PER_SECOND * elapsedSeconds;
+            // update
+            double gain = mErrorCovariance / (mErrorCovariance + MEASUREMENT_NOISE);
+            mEstimate += gain * (rssi - mEstimate);
+            mErrorCovariance *= 1 - gain;
+        }
+        mLastTimestamp = Math.max(mLastTimestamp, timestampNanos); // batched results may arrive out of order
+
+        mTimestamps[mNext] = timestampNanos;
+        mRssis[mNext] = rssi;
+        mSmoothedRssis[mNext] = mEstimate;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length) mSize++;
+    }
+
+    /**
+     * @return how many samples are kept, at most the capacity
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index 0 for the oldest kept sample, size() - 1 for the latest
+     * @return when the sample was taken, in nanoseconds
+     */
+    public synchronized long getTimestampNanos(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    /**
+     * @param index 0 for the oldest kept sample, size() - 1 for the latest
+     * @return the raw RSSI of the sample, in dBm
+     */
+    public synchronized int getRssi(int index) {
+        return mRssis[slot(index)];
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException("Sample " + index + " of " + mSize);
+        return (mNext - mSize + index + mTimestamps.length) % mTimestamps.length;
+    }
+
+    /**
+     * @return the latest raw RSSI in dBm, 0 if there is none
+     */
+    public synchronized int getLatestRssi() {
+        return mSize > 0 ? mRssis[slot(mSize - 1)] : 0;
+    }
+
+    /**
+     * @return the smoothed RSSI in dBm, 0 if there are no samples
+     */
+    public synchronized double getSmoothedRssi() {
+        return mSize > 0 ? mEstimate : 0;
+    }
+
+    /**
+     * Estimate the distance from the smoothed RSSI with the log-distance path loss model.
+     * Walls, bodies and antenna orientation easily double or halve it, so treat it as near, far or in between
+     *
+     * @param txPowerLevel the advertised TX power level in dBm, or AdvertisementParser.TX_POWER_UNKNOWN
+     * @return the estimated distance in meters, or -1 if there are no samples
+     */
+    public synchronized double getDistanceMeters(int txPowerLevel) {
+        if (mSize == 0) return -1;
+        int measuredPower = txPowerLevel == Integer.MIN_VALUE ? DEFAULT_MEASURED_POWER : txPowerLevel - PATH_LOSS_AT_ONE_METER;
+        return Math.pow(10, (measuredPower - mEstimate) / (10 * PATH_LOSS_EXPONENT));
+    }
+
+    /**
+     * Fit a line through the smoothed RSSI of the kept samples
+     *
+     * @return how fast the smoothed RSSI changes, in dB per second, positive when the Peripheral comes closer
+     */
+    public synchronized double getTrendDbPerSecond() {
+        if (mSize < 2) return 0;
+        long origin = mTimestamps[slot(0)];
+        double sumT = 0, sumR = 0, sumTT = 0, sumTR = 0;
+        for (int index = 0; index < mSize; index++) {
+            int slot = slot(index);
+            double t = (mTimestamps[slot] - origin) / 1e9;
+            double r = mSmoothedRssis[slot];
+            sumT += t;
+            sumR += r;
+            sumTT += t * t;
+            sumTR += t * r;
+        }
+        double denominator = mSize * sumTT - sumT * sumT;
+        if (denominator <= 0) return 0; // all samples at the same time
+        return (mSize * sumTR - sumT * sumR) / denominator;
+    }
+
+    /**
+     * @return TREND_APPROACHING, TREND_RECEDING or TREND_STEADY
+     */
+    public int getTrend() {
+        double slope = getTrendDbPerSecond();
+        if (slope > TREND_THRESHOLD_DB_PER_SECOND) return TREND_APPROACHING;
+        if (slope < -TREND_THRESHOLD_DB_PER_SECOND) return TREND_RECEDING;
+        return TREND_STEADY;
+    }
+}
@@ -10,6 +10,9 @@ import java.nio.ByteBuffer;
  */
 
 public class DataConverter {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    /** Each byte is written as two hex digits followed by a space **/
+    public static final int HEX_CHARS_PER_BYTE = 3;
 
     /**
      * convert bytes to hexadecimal for debugging purposes
@@ -19,51 +22,219 @@ public class DataConverter {
      */
     public static String bytesToHex(byte[] bytes) {
         if (bytes.length <=0) return "";
-        char[] hexArray = "0123456789ABCDEF".toCharArray();
-        char[] hexChars = new char[bytes.length * 3];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 3] = hexArray[v >>> 4];
-            hexChars[j * 3 + 1] = hexArray[v & 0x0F];
-            hexChars[j * 3 + 2] = 0x20; // space
-        }
+        char[] hexChars = new char[bytes.length * HEX_CHARS_PER_BYTE];
+        bytesToHex(bytes, 0, bytes.length, hexChars, 0);
         return new String(hexChars);
     }
 
     /**
-     * convert bytes to an integer in Little Endian for debugging purposes
+     * Write bytes as hexadecimal into a caller supplied array, without allocating
+     *
+     * @param bytes a byte array
+     * @param offset index of the first byte to convert
+     * @param length how many bytes to convert
+     * @param target receives HEX_CHARS_PER_BYTE characters per byte
+     * @param targetOffset where in target to start writing
+     * @return the number of characters written
+     */
+    public static int bytesToHex(byte[] bytes, int offset, int length, char[] target, int targetOffset) {
+        int position = targetOffset;
+        for (int i = offset; i < offset + length; i++) {
+            int v = bytes[i] & 0xFF;
+            target[position++] = HEX_DIGITS[v >>> 4];
+            target[position++] = HEX_DIGITS[v & 0x0F];
+            target[position++] = ' ';
+        }
+        return position - targetOffset;
+    }
+
+    /**
+     * Append bytes as hexadecimal to a caller supplied StringBuilder, which can be reused for every value
      *
+     * @param target the StringBuilder to append to
      * @param bytes a byte array
-     * @return int integer representation of byte array
+     * @param offset index of the first byte to convert
+     * @param length how many bytes to convert
+     * @return target
+     */
+    public static StringBuilder appendHex(StringBuilder target, byte[] bytes, int offset, int length) {
+        target.ensureCapacity(target.length() + length * HEX_CHARS_PER_BYTE);
+        for (int i = offset; i < offset + length; i++) {
+            int v = bytes[i] & 0xFF;
+            target.append(HEX_DIGITS[v >>> 4]).append(HEX_DIGITS[v & 0x0F]).append(' ');
+        }
+        return target;
+    }
+
+    /**
+     * Append the remaining bytes of a ByteBuffer as hexadecimal.  The buffer's position is not changed
+     *
+     * @param target the StringBuilder to append to
+     * @param buffer the bytes from its position to its limit are converted
+     * @return target
+     */
+    public static StringBuilder appendHex(StringBuilder target, ByteBuffer buffer) {
+        target.ensureCapacity(target.length() + buffer.remaining() * HEX_CHARS_PER_BYTE);
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            int v = buffer.get(i) & 0xFF;
+            target.append(HEX_DIGITS[v >>> 4]).append(HEX_DIGITS[v & 0x0F]).append(' ');
+        }
+        return target;
+    }
+
+    /**
+     * convert up to the first 4 bytes to an integer in Little Endian for debugging purposes
+     *
+     * @param bytes a byte array
+     * @return int integer representation of byte array, 0 if it is empty
      */
     public static int bytesToInt(byte[] bytes) {
-        if ((bytes.length % 2) == 1) {
-            return ByteBuffer.wrap(bytes).getInt();
-        } else {
-            return 0;
+        int val = 0;
+        for (int i = Math.min(bytes.length, 4) - 1; i >= 0; i--) {
+            val = (val << 8) | (bytes[i] & 0xFF);
         }
+        return val;
     }
 
     /**
-     * convert bytes to a Float
+     * convert the first 4 bytes to a Float in Big Endian
      * @param bytes
      * @return float
+     * @throws ArrayIndexOutOfBoundsException if there are less than 4 bytes
      */
     public static float bytesToFloat(byte[] bytes) {
-        return ByteBuffer.wrap(bytes).getFloat();
+        return readFloat32Be(bytes, 0);
     }
 
     /**
-     * convert bytes to an integer in Little Endian for debugging purposes
+     * convert up to the first 8 bytes to a long in Little Endian for debugging purposes
      *
      * @param bytes a byte array
-     * @return integer integer representation of byte array
+     * @return long integer representation of byte array, 0 if it is empty
      */
-    //
     public static long bytesToLong(byte[] bytes) {
         long val = 0;
-        for (int i=0; i < bytes.length; i++) {
-            val += ((bytes[i] & 0xff) << (8*i));
+        for (int i = Math.min(bytes.length, 8) - 1; i >= 0; i--) {
+            val = (val << 8) | (bytes[i] & 0xFF);
+        }
+        return val;
+    }
+
+    /*
+     * Decoders for fixed width values inside a larger array, such as one field of a notification.
+     * They read at an offset without copying and throw ArrayIndexOutOfBoundsException
+     * if the value does not fit in the array.
+     * Bluetooth transmits multi-byte values in Little Endian unless a profile says otherwise.
+     */
+
+    public static int readUint8(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF;
+    }
+
+    public static int readInt8(byte[] bytes, int offset) {
+        return bytes[offset];
+    }
+
+    public static int readUint16Le(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    public static int readUint16Be(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF);
+    }
+
+    public static int readInt16Le(byte[] bytes, int offset) {
+        return (short) readUint16Le(bytes, offset);
+    }
+
+    public static int readInt16Be(byte[] bytes, int offset) {
+        return (short) readUint16Be(bytes, offset);
+    }
+
+    public static int readUint24Le(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16;
+    }
+
+    public static int readUint24Be(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 16 | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF);
+    }
+
+    public static int readInt24Le(byte[] bytes, int offset) {
+        return readUint24Le(bytes, offset) << 8 >> 8; // sign extend bit 23
+    }
+
+    public static int readInt24Be(byte[] bytes, int offset) {
+        return readUint24Be(bytes, offset) << 8 >> 8;
+    }
+
+    public static int readInt32Le(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    public static int readInt32Be(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    public static long readUint32Le(byte[] bytes, int offset) {
+        return readInt32Le(bytes, offset) & 0xFFFFFFFFL;
+    }
+
+    public static long readUint32Be(byte[] bytes, int offset) {
+        return readInt32Be(bytes, offset) & 0xFFFFFFFFL;
+    }
+
+    public static long readInt64Le(byte[] bytes, int offset) {
+        return (readInt32Le(bytes, offset) & 0xFFFFFFFFL) | (long) readInt32Le(bytes, offset + 4) << 32;
+    }
+
+    public static long readInt64Be(byte[] bytes, int offset) {
+        return (long) readInt32Be(bytes, offset) << 32 | (readInt32Be(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Java has no unsigned long, so the 64 bits are returned as they are.
+     * Use Long.toUnsignedString() and Long.compareUnsigned() to treat them as unsigned
+     */
+    public static long readUint64Le(byte[] bytes, int offset) {
+        return readInt64Le(bytes, offset);
+    }
+
+    /**
+     * @see #readUint64Le(byte[], int)
+     */
+    public static long readUint64Be(byte[] bytes, int offset) {
+        return readInt64Be(bytes, offset);
+    }
+
+    public static float readFloat32Le(byte[] bytes, int offset) {
+        return Float.intBitsToFloat(readInt32Le(bytes, offset));
+    }
+
+    public static float readFloat32Be(byte[] bytes, int offset) {
+        return Float.intBitsToFloat(readInt32Be(bytes, offset));
+    }
+
+    /**
+     * Pack a MAC address into the lower 48 bits of a long
+     *
+     * @param macAddress a MAC address formatted as "AA:BB:CC:DD:EE:FF"
+     * @return long representation of the MAC address
+     * @throws IllegalArgumentException if the MAC address is malformed
+     */
+    public static long macAddressToLong(String macAddress) {
+        if (macAddress == null || macAddress.length() != 17) {
+            throw new IllegalArgumentException("Invalid MAC address: " + macAddress);
+        }
+        long val = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(macAddress.charAt(i), 16);
+            int low = Character.digit(macAddress.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && macAddress.charAt(i + 2) != ':')) {
+                throw new IllegalArgumentException("Invalid MAC address: " + macAddress);
+            }
+            val = (val << 8) | (high << 4) | low;
         }
         return val;
     }
@@ -0,0 +1,124 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A hash map from primitive long keys to values, for lookups that must not allocate.
+ *
+ * java.util maps box every long key into a Long, and Long only caches -128 to 127, so each
+ * lookup of a MAC address packed into a long would allocate.  This map keeps its keys in a long[]
+ * and resolves collisions by linear probing.  Every key is valid, including 0; <b>null</b> values
+ * are not.  Entries can only be removed all at once, with clear().
+ *
+ * Not thread safe: guard every call with one lock.
+ *
+ * @param <V> the value type
+ */
+public class LongHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L; // spreads keys that differ in their top bits
+
+    private long[] mKeys;
+    private Object[] mValues; // null marks an empty slot
+    private int mSize = 0;
+    private int mMask;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize how many entries the map should hold before it has to grow
+     */
+    public LongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1; // at most half full
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @param key the key
+     * @return the value mapped to key, or <b>null</b> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int slot = slot(key); mValues[slot] != null; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) return (V) mValues[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Map a key to a value, replacing any value it was mapped to
+     *
+     * @param key the key
+     * @param value the value, not <b>null</b>
+     * @return the value key was mapped to before, or <b>null</b> if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) throw new NullPointerException("LongHashMap does not hold null values");
+        int slot = slot(key);
+        for (; mValues[slot] != null; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) {
+                V previous = (V) mValues[slot];
+                mValues[slot] = value;
+                return previous;
+            }
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize * 2 > mValues.length) grow();
+        return null;
+    }
+
+    /**
+     * @return how many keys are mapped
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Remove every entry, keeping the capacity
+     */
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * Add every value to a collection, in no particular order
+     *
+     * @param target the collection to add to
+     * @return target
+     */
+    @SuppressWarnings("unchecked")
+    public <C extends Collection<? super V>> C addValuesTo(C target) {
+        for (Object value : mValues) {
+            if (value != null) target.add((V) value);
+        }
+        return target;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * GOLDEN_RATIO) >>> 32) & mMask;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        mKeys = new long[keys.length * 2];
+        mValues = new Object[values.length * 2];
+        mMask = mValues.length - 1;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) continue;
+            int slot = slot(keys[i]);
+            while (mValues[slot] != null) slot = (slot + 1) & mMask;
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+        }
+    }
+}
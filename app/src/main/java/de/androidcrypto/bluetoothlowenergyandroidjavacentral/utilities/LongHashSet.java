@@ -0,0 +1,99 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of primitive longs, the set counterpart of LongHashMap.
+ *
+ * java.util sets box every long into a Long, so each lookup of a packed MAC address would
+ * allocate.  This set keeps its keys in a long[], marks used slots in a boolean[] so that
+ * every key is valid, including 0, and resolves collisions by linear probing.
+ * Keys can only be removed all at once, with clear().
+ *
+ * Not thread safe: guard every call with one lock.
+ */
+public class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L; // spreads keys that differ in their top bits
+
+    private long[] mKeys;
+    private boolean[] mUsed;
+    private int mSize = 0;
+    private int mMask;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize how many keys the set should hold before it has to grow
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1; // at most half full
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @param key the key
+     * @return <b>true</b> if the set holds key
+     */
+    public boolean contains(long key) {
+        for (int slot = slot(key); mUsed[slot]; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add a key to the set
+     *
+     * @param key the key
+     * @return <b>true</b> if the set did not hold key before
+     */
+    public boolean add(long key) {
+        int slot = slot(key);
+        for (; mUsed[slot]; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) return false;
+        }
+        mKeys[slot] = key;
+        mUsed[slot] = true;
+        if (++mSize * 2 > mUsed.length) grow();
+        return true;
+    }
+
+    /**
+     * @return how many keys the set holds
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Remove every key, keeping the capacity
+     */
+    public void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * GOLDEN_RATIO) >>> 32) & mMask;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        boolean[] used = mUsed;
+        mKeys = new long[keys.length * 2];
+        mUsed = new boolean[used.length * 2];
+        mMask = mUsed.length - 1;
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) continue;
+            int slot = slot(keys[i]);
+            while (mUsed[slot]) slot = (slot + 1) & mMask;
+            mKeys[slot] = keys[i];
+            mUsed[slot] = true;
+        }
+    }
+}
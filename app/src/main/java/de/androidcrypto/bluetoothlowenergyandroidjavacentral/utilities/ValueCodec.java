@@ -0,0 +1,350 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the values of one Characteristic, as described by its Characteristic Presentation Format (0x2904) Descriptor.
+ *
+ * A codec is compiled once from the Descriptor: the format, the decimal exponent and the unit are
+ * resolved up front, so decoding a value is a switch and a few shifts.  Numeric values decode straight
+ * into a long or a double at an offset, without copying or allocating.
+ * Codecs are immutable and can be shared between Characteristics and threads.
+ */
+public final class ValueCodec {
+    /** Formats, from the Bluetooth Assigned Numbers **/
+    public static final int FORMAT_BOOLEAN = 0x01;
+    public static final int FORMAT_UINT2 = 0x02;
+    public static final int FORMAT_UINT4 = 0x03;
+    public static final int FORMAT_UINT8 = 0x04;
+    public static final int FORMAT_UINT12 = 0x05;
+    public static final int FORMAT_UINT16 = 0x06;
+    public static final int FORMAT_UINT24 = 0x07;
+    public static final int FORMAT_UINT32 = 0x08;
+    public static final int FORMAT_UINT48 = 0x09;
+    public static final int FORMAT_UINT64 = 0x0A;
+    public static final int FORMAT_UINT128 = 0x0B;
+    public static final int FORMAT_SINT8 = 0x0C;
+    public static final int FORMAT_SINT12 = 0x0D;
+    public static final int FORMAT_SINT16 = 0x0E;
+    public static final int FORMAT_SINT24 = 0x0F;
+    public static final int FORMAT_SINT32 = 0x10;
+    public static final int FORMAT_SINT48 = 0x11;
+    public static final int FORMAT_SINT64 = 0x12;
+    public static final int FORMAT_SINT128 = 0x13;
+    public static final int FORMAT_FLOAT32 = 0x14;
+    public static final int FORMAT_FLOAT64 = 0x15;
+    public static final int FORMAT_SFLOAT = 0x16; // IEEE 11073 16 bit
+    public static final int FORMAT_FLOAT = 0x17; // IEEE 11073 32 bit
+    public static final int FORMAT_DUINT16 = 0x18;
+    public static final int FORMAT_UTF8S = 0x19;
+    public static final int FORMAT_UTF16S = 0x1A;
+    public static final int FORMAT_STRUCT = 0x1B;
+
+    /** Units, the 16 bit UUIDs from the Bluetooth Assigned Numbers **/
+    public static final int UNIT_UNITLESS = 0x2700;
+
+    /** Length of a Characteristic Presentation Format value **/
+    public static final int PRESENTATION_FORMAT_LENGTH = 7;
+
+    /** Text without a Presentation Format Descriptor **/
+    public static final ValueCodec UTF8 = new ValueCodec(FORMAT_UTF8S, 0, UNIT_UNITLESS);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private final int mFormat;
+    private final int mExponent;
+    private final int mUnit;
+    private final int mSize; // bytes per value, 0 if variable
+    private final boolean mNumeric;
+    private final double mPowerOfTen; // 10^|exponent|
+    private final String mUnitSymbol;
+
+    /**
+     * @param format one of FORMAT_*
+     * @param exponent decimal exponent of integer formats, the value is the integer times 10^exponent
+     * @param unit the unit's 16 bit UUID, UNIT_UNITLESS if there is none
+     */
+    public ValueCodec(int format, int exponent, int unit) {
+        mFormat = format;
+        mExponent = exponent;
+        mUnit = unit;
+        mSize = sizeOf(format);
+        mNumeric = isNumeric(format);
+        mPowerOfTen = Math.pow(10, Math.abs(exponent));
+        mUnitSymbol = unitSymbol(unit);
+    }
+
+    /**
+     * Compile a codec from a Characteristic Presentation Format Descriptor value:
+     * format, exponent, unit (2 bytes), name space and description (2 bytes)
+     *
+     * @param presentationFormat the Descriptor's value
+     * @return the codec
+     * @throws IllegalArgumentException if the value is too short
+     */
+    public static ValueCodec fromPresentationFormat(byte[] presentationFormat) {
+        if (presentationFormat == null || presentationFormat.length < PRESENTATION_FORMAT_LENGTH) {
+            throw new IllegalArgumentException("Presentation Format must be " + PRESENTATION_FORMAT_LENGTH + " bytes");
+        }
+        return new ValueCodec(DataConverter.readUint8(presentationFormat, 0),
+                DataConverter.readInt8(presentationFormat, 1),
+                DataConverter.readUint16Le(presentationFormat, 2));
+    }
+
+    private static int sizeOf(int format) {
+        switch (format) {
+            case FORMAT_BOOLEAN:
+            case FORMAT_UINT2:
+            case FORMAT_UINT4:
+            case FORMAT_UINT8:
+            case FORMAT_SINT8:
+                return 1;
+            case FORMAT_UINT12:
+            case FORMAT_UINT16:
+            case FORMAT_SINT12:
+            case FORMAT_SINT16:
+            case FORMAT_SFLOAT:
+                return 2;
+            case FORMAT_UINT24:
+            case FORMAT_SINT24:
+                return 3;
+            case FORMAT_UINT32:
+            case FORMAT_SINT32:
+            case FORMAT_FLOAT32:
+            case FORMAT_FLOAT:
+            case FORMAT_DUINT16:
+                return 4;
+            case FORMAT_UINT48:
+            case FORMAT_SINT48:
+                return 6;
+            case FORMAT_UINT64:
+            case FORMAT_SINT64:
+            case FORMAT_FLOAT64:
+                return 8;
+            case FORMAT_UINT128:
+            case FORMAT_SINT128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isNumeric(int format) {
+        return (format >= FORMAT_BOOLEAN && format <= FORMAT_UINT64)
+                || (format >= FORMAT_SINT8 && format <= FORMAT_SINT64)
+                || (format >= FORMAT_FLOAT32 && format <= FORMAT_FLOAT);
+    }
+
+    private static String unitSymbol(int unit) {
+        switch (unit) {
+            case 0x2701: return "m";
+            case 0x2702: return "kg";
+            case 0x2703: return "s";
+            case 0x2704: return "A";
+            case 0x2705: return "K";
+            case 0x2722: return "Hz";
+            case 0x2724: return "Pa";
+            case 0x2726: return "W";
+            case 0x2728: return "V";
+            case 0x272F: return "\u00B0C";
+            case 0x27AD: return "%";
+            default: return null;
+        }
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getExponent() {
+        return mExponent;
+    }
+
+    /**
+     * @return the unit's 16 bit UUID
+     */
+    public int getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * @return how many bytes one value takes, 0 for strings and structs
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return <b>true</b> if values decode to numbers
+     */
+    public boolean isNumeric() {
+        return mNumeric;
+    }
+
+    /**
+     * Decode the raw integer, without applying the exponent.  uint64 values are returned as their 64 bits
+     *
+     * @param value the Characteristic's value
+     * @param offset where the value starts
+     * @return the integer
+     * @throws UnsupportedOperationException if the format is not an integer format
+     * @throws ArrayIndexOutOfBoundsException if the value is too short
+     */
+    public long decodeLong(byte[] value, int offset) {
+        switch (mFormat) {
+            case FORMAT_BOOLEAN:
+                return value[offset] & 0x01;
+            case FORMAT_UINT2:
+                return value[offset] & 0x03;
+            case FORMAT_UINT4:
+                return value[offset] & 0x0F;
+            case FORMAT_UINT8:
+                return DataConverter.readUint8(value, offset);
+            case FORMAT_UINT12:
+                return DataConverter.readUint16Le(value, offset) & 0x0FFF;
+            case FORMAT_UINT16:
+                return DataConverter.readUint16Le(value, offset);
+            case FORMAT_UINT24:
+                return DataConverter.readUint24Le(value, offset);
+            case FORMAT_UINT32:
+                return DataConverter.readUint32Le(value, offset);
+            case FORMAT_UINT48:
+                return DataConverter.readUint32Le(value, offset) | (long) DataConverter.readUint16Le(value, offset + 4) << 32;
+            case FORMAT_UINT64:
+                return DataConverter.readUint64Le(value, offset);
+            case FORMAT_SINT8:
+                return DataConverter.readInt8(value, offset);
+            case FORMAT_SINT12:
+                return DataConverter.readUint16Le(value, offset) << 20 >> 20; // sign extend bit 11
+            case FORMAT_SINT16:
+                return DataConverter.readInt16Le(value, offset);
+            case FORMAT_SINT24:
+                return DataConverter.readInt24Le(value, offset);
+            case FORMAT_SINT32:
+                return DataConverter.readInt32Le(value, offset);
+            case FORMAT_SINT48:
+                return (DataConverter.readUint32Le(value, offset) | (long) DataConverter.readUint16Le(value, offset + 4) << 32) << 16 >> 16;
+            case FORMAT_SINT64:
+                return DataConverter.readInt64Le(value, offset);
+            default:
+                throw new UnsupportedOperationException("Format 0x" + Integer.toHexString(mFormat) + " is not an integer");
+        }
+    }
+
+    /**
+     * Decode a number with the exponent applied.  SFLOAT and FLOAT values that are NaN,
+     * not at this resolution or reserved decode to NaN
+     *
+     * @param value the Characteristic's value
+     * @param offset where the value starts
+     * @return the number
+     * @throws UnsupportedOperationException if the format is not numeric
+     * @throws ArrayIndexOutOfBoundsException if the value is too short
+     */
+    public double decodeDouble(byte[] value, int offset) {
+        switch (mFormat) {
+            case FORMAT_FLOAT32:
+                return DataConverter.readFloat32Le(value, offset);
+            case FORMAT_FLOAT64:
+                return Double.longBitsToDouble(DataConverter.readInt64Le(value, offset));
+            case FORMAT_SFLOAT:
+                return decodeSfloat(DataConverter.readUint16Le(value, offset));
+            case FORMAT_FLOAT:
+                return decodeFloat(DataConverter.readInt32Le(value, offset));
+            default:
+                long raw = decodeLong(value, offset);
+                double number = raw;
+                if (mFormat == FORMAT_UINT64 && raw < 0) number += 18446744073709551616.0; // 2^64
+                if (mExponent == 0) return number;
+                // dividing keeps 2345 * 10^-2 at 23.45, multiplying by 0.01 would not
+                return mExponent > 0 ? number * mPowerOfTen : number / mPowerOfTen;
+        }
+    }
+
+    private static double decodeSfloat(int bits) {
+        int mantissa = bits << 20 >> 20; // 12 bit signed
+        int exponent = bits << 16 >> 28; // 4 bit signed
+        switch (mantissa) {
+            case 0x07FE: return Double.POSITIVE_INFINITY;
+            case -0x07FE: return Double.NEGATIVE_INFINITY;
+            case 0x07FF: // NaN
+            case -0x0800: // not at this resolution
+            case -0x07FF: // reserved
+                return Double.NaN;
+        }
+        return scale(mantissa, exponent);
+    }
+
+    private static double decodeFloat(int bits) {
+        int mantissa = bits << 8 >> 8; // 24 bit signed
+        int exponent = bits >> 24; // 8 bit signed
+        switch (mantissa) {
+            case 0x7FFFFE: return Double.POSITIVE_INFINITY;
+            case -0x7FFFFE: return Double.NEGATIVE_INFINITY;
+            case 0x7FFFFF:
+            case -0x800000:
+            case -0x7FFFFF:
+                return Double.NaN;
+        }
+        return scale(mantissa, exponent);
+    }
+
+    private static double scale(int mantissa, int exponent) {
+        if (exponent == 0) return mantissa;
+        return exponent > 0 ? mantissa * Math.pow(10, exponent) : mantissa / Math.pow(10, -exponent);
+    }
+
+    /**
+     * Decode a string format
+     *
+     * @param value the Characteristic's value
+     * @param offset where the string starts
+     * @param length how many bytes the string takes
+     * @return the string
+     * @throws UnsupportedOperationException if the format is not a string format
+     */
+    public String decodeString(byte[] value, int offset, int length) {
+        switch (mFormat) {
+            case FORMAT_UTF8S:
+                return new String(value, offset, length, UTF_8);
+            case FORMAT_UTF16S:
+                return new String(value, offset, length, UTF_16LE);
+            default:
+                throw new UnsupportedOperationException("Format 0x" + Integer.toHexString(mFormat) + " is not a string");
+        }
+    }
+
+    /**
+     * Append a value in human readable form: numbers with their unit, strings as they are
+     * and anything else in hexadecimal
+     *
+     * @param target the StringBuilder to append to
+     * @param value the Characteristic's value
+     * @param offset where the value starts
+     * @param length how many bytes the value takes
+     * @return target
+     */
+    public StringBuilder format(StringBuilder target, byte[] value, int offset, int length) {
+        if (mFormat == FORMAT_UTF8S || mFormat == FORMAT_UTF16S) {
+            return target.append(decodeString(value, offset, length));
+        }
+        if (!mNumeric || length < mSize) {
+            return DataConverter.appendHex(target, value, offset, length);
+        }
+        if (mFormat <= FORMAT_SINT64 && mExponent == 0) {
+            long raw = decodeLong(value, offset);
+            if (mFormat == FORMAT_UINT64 && raw < 0) {
+                // unsigned: print all digits but the last, then the last
+                long quotient = (raw >>> 1) / 5;
+                target.append(quotient).append(raw - quotient * 10);
+            } else {
+                target.append(raw);
+            }
+        } else {
+            target.append(decodeDouble(value, offset));
+        }
+        if (mUnitSymbol != null) target.append(' ').append(mUnitSymbol);
+        return target;
+    }
+}
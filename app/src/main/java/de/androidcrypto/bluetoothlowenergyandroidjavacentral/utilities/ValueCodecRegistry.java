@@ -0,0 +1,137 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.BlePeripheral;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.GattOperation;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.callbacks.GattOperationCallback;
+
+/**
+ * Finds the ValueCodec of each Characteristic.
+ *
+ * The Characteristic Presentation Format Descriptor is read once per Characteristic, and the codec
+ * compiled from it is kept for as long as the Characteristic object lives.  Characteristics with
+ * the same format share one codec.  A Characteristic without the Descriptor is decoded as UTF-8 text.
+ */
+public class ValueCodecRegistry {
+    private static final String TAG = ValueCodecRegistry.class.getSimpleName();
+
+    public static final UUID CHARACTERISTIC_PRESENTATION_FORMAT_UUID = UUID.fromString("00002904-0000-1000-8000-00805f9b34fb");
+
+    private static final ValueCodecRegistry sInstance = new ValueCodecRegistry();
+
+    /** Codec per Characteristic, dropped with the Characteristic when the profile is discovered again **/
+    private final Map<BluetoothGattCharacteristic, ValueCodec> mCodecs =
+            Collections.synchronizedMap(new WeakHashMap<BluetoothGattCharacteristic, ValueCodec>());
+    /** Compiled codecs by format, exponent and unit **/
+    private final ConcurrentHashMap<Long, ValueCodec> mCompiledCodecs = new ConcurrentHashMap<Long, ValueCodec>();
+
+    /**
+     * Notified once a Characteristic's codec is known
+     */
+    public interface OnCodecReadyListener {
+        /**
+         * Called on the thread that completed the Descriptor read, or on the caller's thread if no read was needed
+         *
+         * @param characteristic the Characteristic
+         * @param codec decodes its values
+         */
+        void onCodecReady(BluetoothGattCharacteristic characteristic, ValueCodec codec);
+    }
+
+    /**
+     * @return the registry shared by the whole app
+     */
+    public static ValueCodecRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param characteristic a Characteristic
+     * @return its codec, or <b>null</b> if it has not been loaded yet
+     */
+    public ValueCodec get(BluetoothGattCharacteristic characteristic) {
+        return mCodecs.get(characteristic);
+    }
+
+    /**
+     * @param characteristic a Characteristic
+     * @return its codec, or ValueCodec.UTF8 if it has not been loaded yet
+     */
+    public ValueCodec getOrDefault(BluetoothGattCharacteristic characteristic) {
+        ValueCodec codec = mCodecs.get(characteristic);
+        return codec != null ? codec : ValueCodec.UTF8;
+    }
+
+    /**
+     * Find a Characteristic's codec, reading its Presentation Format Descriptor if it has not been read before
+     *
+     * @param blePeripheral the connected Peripheral the Characteristic belongs to
+     * @param characteristic the Characteristic
+     * @param listener notified with the codec, may be <b>null</b>
+     */
+    public void load(BlePeripheral blePeripheral, final BluetoothGattCharacteristic characteristic, final OnCodecReadyListener listener) {
+        ValueCodec codec = mCodecs.get(characteristic);
+        if (codec != null) {
+            if (listener != null) listener.onCodecReady(characteristic, codec);
+            return;
+        }
+
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CHARACTERISTIC_PRESENTATION_FORMAT_UUID);
+        if (descriptor == null) {
+            mCodecs.put(characteristic, ValueCodec.UTF8);
+            if (listener != null) listener.onCodecReady(characteristic, ValueCodec.UTF8);
+            return;
+        }
+
+        blePeripheral.readValueFromDescriptor(descriptor, new GattOperationCallback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status) {
+                ValueCodec codec = ValueCodec.UTF8;
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    try {
+                        codec = compile(operation.getResultValue());
+                        mCodecs.put(characteristic, codec);
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "Malformed Presentation Format of " + characteristic.getUuid() + ": " + e.getMessage());
+                    }
+                } else {
+                    // not cached, so the next load tries again
+                    Log.e(TAG, "Could not read Presentation Format of " + characteristic.getUuid() + ", status " + status);
+                }
+                if (listener != null) listener.onCodecReady(characteristic, codec);
+            }
+        });
+    }
+
+    /**
+     * Get the codec for a Presentation Format Descriptor value, compiling it only the first time the format is seen
+     *
+     * @param presentationFormat the Descriptor's value
+     * @return the codec
+     * @throws IllegalArgumentException if the value is too short
+     */
+    public ValueCodec compile(byte[] presentationFormat) {
+        if (presentationFormat == null || presentationFormat.length < ValueCodec.PRESENTATION_FORMAT_LENGTH) {
+            throw new IllegalArgumentException("Presentation Format must be " + ValueCodec.PRESENTATION_FORMAT_LENGTH + " bytes");
+        }
+        // format, exponent and unit are the first 4 bytes, name space and description do not change decoding
+        long key = DataConverter.readUint32Le(presentationFormat, 0);
+        ValueCodec codec = mCompiledCodecs.get(key);
+        if (codec == null) {
+            codec = ValueCodec.fromPresentationFormat(presentationFormat);
+            ValueCodec existingCodec = mCompiledCodecs.putIfAbsent(key, codec);
+            if (existingCodec != null) codec = existingCodec;
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,153 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scan record parsing, see AdvertisementParser
+ */
+public class AdvertisementParserTest {
+    private static final UUID HEART_RATE_SERVICE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID LONG_SHORT_SERVICE = UUID.fromString("1234abcd-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    private static byte[] record(int... bytes) {
+        byte[] record = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) record[i] = (byte) bytes[i];
+        return record;
+    }
+
+    @Test
+    public void stopsAtZeroPadding() {
+        byte[] scanRecord = record(
+                0x02, 0x01, 0x06,
+                0x00, 0x00, 0x00,
+                0x03, 0x09, 'a', 'b' // after the padding, must be ignored
+        );
+        assertTrue(mParser.parse(scanRecord));
+        assertEquals(0x06, mParser.getFlags());
+        assertFalse(mParser.hasLocalName());
+    }
+
+    @Test
+    public void rejectsTruncatedStructures() {
+        byte[] scanRecord = record(
+                0x02, 0x01, 0x06,
+                0x05, 0x09, 'a', 'b' // claims 4 bytes of name, has 2
+        );
+        assertFalse(mParser.parse(scanRecord));
+        assertEquals(0x06, mParser.getFlags()); // the structures before it are still parsed
+        assertFalse(mParser.hasLocalName());
+        assertFalse(mParser.parse(null));
+    }
+
+    @Test
+    public void completeNameOverridesShortenedName() {
+        assertTrue(mParser.parse(record(0x04, 0x09, 'A', 'B', 'C', 0x03, 0x08, 'A', 'B')));
+        assertEquals("ABC", mParser.getLocalName());
+        assertTrue(mParser.isLocalNameComplete());
+
+        assertTrue(mParser.parse(record(0x03, 0x08, 'A', 'B', 0x04, 0x09, 'A', 'B', 'C')));
+        assertEquals("ABC", mParser.getLocalName());
+        assertTrue(mParser.isLocalNameComplete());
+
+        assertTrue(mParser.parse(record(0x03, 0x08, 'A', 'B')));
+        assertEquals("AB", mParser.getLocalName());
+        assertFalse(mParser.isLocalNameComplete());
+    }
+
+    @Test
+    public void matchesUuidsOfEveryWidthAgainstTheBaseUuid() {
+        byte[] scanRecord = record(
+                0x03, 0x03, 0x0D, 0x18,
+                0x05, 0x05, 0xCD, 0xAB, 0x34, 0x12,
+                0x11, 0x07, 0x9E, 0xCA, 0xDC, 0x24, 0x0E, 0xE5, 0xA9, 0xE0,
+                0x93, 0xF3, 0xA3, 0xB5, 0x01, 0x00, 0x40, 0x6E
+        );
+        assertTrue(mParser.parse(scanRecord));
+        assertEquals(3, mParser.getServiceUuidCount());
+        assertTrue(mParser.hasServiceUuid(HEART_RATE_SERVICE));
+        assertTrue(mParser.hasServiceUuid(LONG_SHORT_SERVICE));
+        assertTrue(mParser.hasServiceUuid(CUSTOM_SERVICE));
+        assertFalse(mParser.hasServiceUuid(UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb")));
+
+        assertEquals(HEART_RATE_SERVICE, mParser.getServiceUuid(0));
+        assertEquals(2, mParser.getServiceUuidWidth(0));
+        assertEquals(LONG_SHORT_SERVICE, mParser.getServiceUuid(1));
+        assertEquals(4, mParser.getServiceUuidWidth(1));
+        assertEquals(CUSTOM_SERVICE, mParser.getServiceUuid(2));
+        assertEquals(16, mParser.getServiceUuidWidth(2));
+    }
+
+    @Test
+    public void extractsManufacturerData() {
+        byte[] scanRecord = record(
+                0x02, 0x01, 0x06,
+                0x06, 0xFF, 0x4C, 0x00, 0x01, 0x02, 0x03
+        );
+        assertTrue(mParser.parse(scanRecord));
+        assertEquals(1, mParser.getManufacturerDataCount());
+        assertEquals(0x004C, mParser.getManufacturerId(0));
+        assertEquals(7, mParser.getManufacturerDataOffset(0));
+        assertEquals(3, mParser.getManufacturerDataLength(0));
+        assertArrayEquals(record(0x01, 0x02, 0x03), mParser.getManufacturerData(0));
+        assertEquals(0, mParser.findManufacturerData(0x004C));
+        assertEquals(-1, mParser.findManufacturerData(0x0059));
+    }
+
+    @Test
+    public void readsTxPowerAsSigned() {
+        assertTrue(mParser.parse(record(0x02, 0x0A, 0xF4)));
+        assertEquals(-12, mParser.getTxPowerLevel());
+
+        assertTrue(mParser.parse(record(0x02, 0x0A, 0x04)));
+        assertEquals(4, mParser.getTxPowerLevel());
+
+        assertTrue(mParser.parse(record(0x02, 0x01, 0x06)));
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, mParser.getTxPowerLevel());
+    }
+
+    @Test
+    public void keepsEveryFieldOfALongAdvertisement() {
+        int fields = 40;
+        byte[] scanRecord = new byte[fields * 3 * 5];
+        int position = 0;
+        for (int i = 0; i < fields; i++) {
+            scanRecord[position++] = 0x03;
+            scanRecord[position++] = 0x03;
+            scanRecord[position++] = (byte) i;
+            scanRecord[position++] = 0x18;
+            scanRecord[position++] = 0x04;
+            scanRecord[position++] = (byte) 0xFF;
+            scanRecord[position++] = (byte) i;
+            scanRecord[position++] = 0x00;
+            scanRecord[position++] = 0x2A;
+            scanRecord[position++] = 0x04;
+            scanRecord[position++] = 0x16;
+            scanRecord[position++] = (byte) i;
+            scanRecord[position++] = 0x18;
+            scanRecord[position++] = 0x2B;
+        }
+        scanRecord = Arrays.copyOf(scanRecord, position);
+
+        for (int pass = 0; pass < 2; pass++) { // the second pass reuses the grown tables
+            assertTrue(mParser.parse(scanRecord));
+            assertEquals(fields, mParser.getServiceUuidCount());
+            assertEquals(fields, mParser.getManufacturerDataCount());
+            assertEquals(fields, mParser.getServiceDataCount());
+            for (int i = 0; i < fields; i++) {
+                assertEquals(0x1800 + i, mParser.getServiceUuidMostSignificantBits(i) >>> 32);
+                assertEquals(i, mParser.getManufacturerId(i));
+                assertEquals(0x2A, mParser.getScanRecord()[mParser.getManufacturerDataOffset(i)]);
+                assertEquals(1, mParser.getServiceDataLength(i));
+                assertEquals(0x2B, mParser.getScanRecord()[mParser.getServiceDataOffset(i)]);
+            }
+        }
+    }
+}
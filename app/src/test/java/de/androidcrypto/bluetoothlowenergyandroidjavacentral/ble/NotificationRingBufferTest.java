@@ -0,0 +1,123 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single-producer, single-consumer buffering of notifications, see NotificationRingBuffer
+ */
+public class NotificationRingBufferTest {
+
+    /**
+     * Keeps a copy of every drained value, since the buffer reuses its slots
+     */
+    private static class RecordingConsumer implements NotificationRingBuffer.Consumer {
+        final List<byte[]> mValues = new ArrayList<byte[]>();
+        final List<Long> mTimestamps = new ArrayList<Long>();
+
+        @Override
+        public void onNotification(byte[] value, int length, long timestampNanos) {
+            mValues.add(Arrays.copyOf(value, length));
+            mTimestamps.add(timestampNanos);
+        }
+    }
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(2, new NotificationRingBuffer(1, 4).getCapacity());
+        assertEquals(2, new NotificationRingBuffer(2, 4).getCapacity());
+        assertEquals(256, new NotificationRingBuffer(255, 4).getCapacity());
+        assertEquals(256, new NotificationRingBuffer(256, 4).getCapacity());
+        assertEquals(512, new NotificationRingBuffer(257, 4).getCapacity());
+        assertEquals(NotificationRingBuffer.DEFAULT_CAPACITY, new NotificationRingBuffer().getCapacity());
+    }
+
+    @Test
+    public void drainsInOrderAcrossTheWrap() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, 4);
+        RecordingConsumer consumer = new RecordingConsumer();
+        for (int value = 0; value < 11; value++) { // wraps the 4 slots more than twice
+            assertTrue(buffer.offer(new byte[]{(byte) value}, 100 + value));
+            if (value % 3 == 2) buffer.drain(consumer, Integer.MAX_VALUE);
+        }
+        buffer.drain(consumer, Integer.MAX_VALUE);
+
+        assertEquals(11, consumer.mValues.size());
+        for (int value = 0; value < 11; value++) {
+            assertArrayEquals(new byte[]{(byte) value}, consumer.mValues.get(value));
+            assertEquals(100L + value, (long) consumer.mTimestamps.get(value));
+        }
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getOverrunCount());
+    }
+
+    @Test
+    public void countsOverrunsWhenFull() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, 4);
+        for (int value = 0; value < 4; value++) {
+            assertTrue(buffer.offer(new byte[]{(byte) value}, value));
+        }
+        assertFalse(buffer.offer(new byte[]{4}, 4));
+        assertFalse(buffer.offer(new byte[]{5}, 5));
+        assertEquals(2, buffer.getOverrunCount());
+        assertEquals(4, buffer.size());
+
+        // the dropped values are lost, the buffered ones are kept
+        RecordingConsumer consumer = new RecordingConsumer();
+        assertEquals(4, buffer.drain(consumer, Integer.MAX_VALUE));
+        assertArrayEquals(new byte[]{3}, consumer.mValues.get(3));
+        assertTrue(buffer.offer(new byte[]{6}, 6));
+        assertEquals(2, buffer.getOverrunCount());
+    }
+
+    @Test
+    public void truncatesValuesLongerThanASlot() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2, 3);
+        assertTrue(buffer.offer(new byte[]{1, 2, 3, 4, 5}, 0));
+        assertTrue(buffer.offer(new byte[]{1, 2, 3}, 1));
+        assertEquals(1, buffer.getTruncationCount());
+
+        RecordingConsumer consumer = new RecordingConsumer();
+        buffer.drain(consumer, Integer.MAX_VALUE);
+        assertArrayEquals(new byte[]{1, 2, 3}, consumer.mValues.get(0));
+        assertArrayEquals(new byte[]{1, 2, 3}, consumer.mValues.get(1));
+    }
+
+    @Test
+    public void storesNullAsAnEmptyValue() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2, 4);
+        assertTrue(buffer.offer(new byte[]{7, 7}, 0));
+        RecordingConsumer consumer = new RecordingConsumer();
+        buffer.drain(consumer, Integer.MAX_VALUE);
+
+        assertTrue(buffer.offer(null, 1));
+        buffer.drain(consumer, Integer.MAX_VALUE);
+        assertEquals(0, consumer.mValues.get(1).length); // not the stale bytes of the reused slot
+        assertEquals(0, buffer.getTruncationCount());
+    }
+
+    @Test
+    public void drainsAtMostMaxBatch() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(8, 4);
+        for (int value = 0; value < 5; value++) {
+            buffer.offer(new byte[]{(byte) value}, value);
+        }
+        RecordingConsumer consumer = new RecordingConsumer();
+        assertEquals(2, buffer.drain(consumer, 2));
+        assertEquals(3, buffer.size());
+        assertEquals(2, buffer.drain(consumer, 2));
+        assertEquals(1, buffer.drain(consumer, 2));
+        assertEquals(0, buffer.drain(consumer, 2));
+        assertEquals(0, buffer.drain(consumer, 0));
+
+        assertEquals(5, consumer.mValues.size());
+        for (int value = 0; value < 5; value++) {
+            assertArrayEquals(new byte[]{(byte) value}, consumer.mValues.get(value));
+        }
+    }
+}
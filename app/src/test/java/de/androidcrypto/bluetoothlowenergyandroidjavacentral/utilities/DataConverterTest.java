@@ -0,0 +1,120 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of multi-byte values, see DataConverter
+ */
+public class DataConverterTest {
+    private static final byte[] BYTES = {(byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04,
+            (byte) 0x05, (byte) 0x06, (byte) 0x07, (byte) 0x08};
+
+    @Test
+    public void bytesToInt_isLittleEndian() {
+        assertEquals(0, DataConverter.bytesToInt(new byte[0]));
+        assertEquals(0x01, DataConverter.bytesToInt(new byte[]{0x01}));
+        assertEquals(0x0201, DataConverter.bytesToInt(new byte[]{0x01, 0x02})); // was 0 for even lengths
+        assertEquals(0x030201, DataConverter.bytesToInt(new byte[]{0x01, 0x02, 0x03}));
+        assertEquals(0x04030201, DataConverter.bytesToInt(new byte[]{0x01, 0x02, 0x03, 0x04}));
+        assertEquals(0x04030201, DataConverter.bytesToInt(BYTES)); // only the first 4 bytes
+        assertEquals(0xFF, DataConverter.bytesToInt(new byte[]{(byte) 0xFF})); // not sign extended
+    }
+
+    @Test
+    public void bytesToLong_isLittleEndian() {
+        assertEquals(0L, DataConverter.bytesToLong(new byte[0]));
+        assertEquals(0x01L, DataConverter.bytesToLong(new byte[]{0x01}));
+        assertEquals(0x0201L, DataConverter.bytesToLong(new byte[]{0x01, 0x02}));
+        assertEquals(0x030201L, DataConverter.bytesToLong(new byte[]{0x01, 0x02, 0x03}));
+        assertEquals(0x04030201L, DataConverter.bytesToLong(new byte[]{0x01, 0x02, 0x03, 0x04}));
+        assertEquals(0x0807060504030201L, DataConverter.bytesToLong(BYTES)); // overflowed after 4 bytes
+        assertEquals(0xFFFFFFFFL, DataConverter.bytesToLong(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}));
+    }
+
+    @Test
+    public void readInt8_signExtends() {
+        byte[] bytes = {(byte) 0x7F, (byte) 0x80};
+        assertEquals(0x7F, DataConverter.readUint8(bytes, 0));
+        assertEquals(0x80, DataConverter.readUint8(bytes, 1));
+        assertEquals(127, DataConverter.readInt8(bytes, 0));
+        assertEquals(-128, DataConverter.readInt8(bytes, 1));
+    }
+
+    @Test
+    public void read16_atOffset() {
+        byte[] bytes = {0x00, (byte) 0x34, (byte) 0xF2};
+        assertEquals(0xF234, DataConverter.readUint16Le(bytes, 1));
+        assertEquals(0x34F2, DataConverter.readUint16Be(bytes, 1));
+        assertEquals((short) 0xF234, DataConverter.readInt16Le(bytes, 1));
+        assertEquals(0x34F2, DataConverter.readInt16Be(bytes, 1));
+    }
+
+    @Test
+    public void readInt24_signExtends() {
+        byte[] negative = {(byte) 0xFE, (byte) 0xFF, (byte) 0xFF}; // -2 in Little Endian
+        assertEquals(0xFFFFFE, DataConverter.readUint24Le(negative, 0));
+        assertEquals(-2, DataConverter.readInt24Le(negative, 0));
+        assertEquals(0xFEFFFF, DataConverter.readUint24Be(negative, 0));
+        assertEquals(-0x010001, DataConverter.readInt24Be(negative, 0));
+
+        byte[] smallest = {(byte) 0x80, 0x00, 0x00};
+        assertEquals(-0x800000, DataConverter.readInt24Be(smallest, 0));
+        assertEquals(0x80, DataConverter.readInt24Le(smallest, 0));
+
+        byte[] largest = {(byte) 0xFF, (byte) 0xFF, (byte) 0x7F};
+        assertEquals(0x7FFFFF, DataConverter.readInt24Le(largest, 0));
+        assertEquals(-0x000081, DataConverter.readInt24Be(largest, 0));
+    }
+
+    @Test
+    public void read32_atOffset() {
+        assertEquals(0x05040302, DataConverter.readInt32Le(BYTES, 1));
+        assertEquals(0x02030405, DataConverter.readInt32Be(BYTES, 1));
+    }
+
+    @Test
+    public void readUint32_above2To31() {
+        byte[] bytes = {(byte) 0x01, 0x00, 0x00, (byte) 0x80};
+        assertEquals(0x80000001L, DataConverter.readUint32Le(bytes, 0));
+        assertEquals(0x01000080L, DataConverter.readUint32Be(bytes, 0));
+        assertEquals(Integer.MIN_VALUE + 1, DataConverter.readInt32Le(bytes, 0));
+
+        byte[] max = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertEquals(4294967295L, DataConverter.readUint32Le(max, 0));
+        assertEquals(4294967295L, DataConverter.readUint32Be(max, 0));
+        assertEquals(-1, DataConverter.readInt32Be(max, 0));
+    }
+
+    @Test
+    public void read64() {
+        assertEquals(0x0807060504030201L, DataConverter.readInt64Le(BYTES, 0));
+        assertEquals(0x0102030405060708L, DataConverter.readInt64Be(BYTES, 0));
+
+        byte[] topBitSet = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertEquals(-1L, DataConverter.readInt64Le(topBitSet, 0));
+        assertEquals("18446744073709551615", Long.toUnsignedString(DataConverter.readUint64Le(topBitSet, 0)));
+        assertEquals("18446744073709551615", Long.toUnsignedString(DataConverter.readUint64Be(topBitSet, 0)));
+    }
+
+    @Test
+    public void readFloat32() {
+        byte[] littleEndian = {0x00, 0x00, (byte) 0xC0, (byte) 0x3F}; // 1.5f
+        assertEquals(1.5f, DataConverter.readFloat32Le(littleEndian, 0), 0f);
+        byte[] bigEndian = {(byte) 0x3F, (byte) 0xC0, 0x00, 0x00};
+        assertEquals(1.5f, DataConverter.readFloat32Be(bigEndian, 0), 0f);
+        assertEquals(1.5f, DataConverter.bytesToFloat(bigEndian), 0f);
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void read_pastEndThrows() {
+        DataConverter.readUint16Le(new byte[]{0x01}, 0);
+    }
+
+    @Test
+    public void bytesToHex() {
+        assertEquals("", DataConverter.bytesToHex(new byte[0]));
+        assertEquals("01 AB FF ", DataConverter.bytesToHex(new byte[]{0x01, (byte) 0xAB, (byte) 0xFF}));
+    }
+}
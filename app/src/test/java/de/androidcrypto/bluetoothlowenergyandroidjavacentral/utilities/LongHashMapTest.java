@@ -0,0 +1,86 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Primitive keyed lookups, see LongHashMap
+ */
+public class LongHashMapTest {
+
+    @Test
+    public void putAndGet() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        assertNull(map.get(1L));
+        assertNull(map.put(1L, "one"));
+        assertNull(map.put(0L, "zero")); // 0 is a valid key
+        assertNull(map.put(-1L, "minus one"));
+        assertEquals("one", map.get(1L));
+        assertEquals("zero", map.get(0L));
+        assertEquals("minus one", map.get(-1L));
+        assertEquals(3, map.size());
+
+        assertEquals("one", map.put(1L, "uno"));
+        assertEquals("uno", map.get(1L));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void growsPastItsCapacity() {
+        LongHashMap<Long> map = new LongHashMap<Long>(4);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            long key = random.nextLong() & 0xFFFFFFFFFFFFL; // a MAC address
+            map.put(key, key);
+            expected.put(key, key);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void collidingKeys() {
+        // keys that only differ above the bits a small table would index by
+        LongHashMap<Integer> map = new LongHashMap<Integer>(4);
+        for (int i = 0; i < 100; i++) {
+            map.put((long) i << 40, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), map.get((long) i << 40));
+        }
+        assertNull(map.get(100L << 40));
+    }
+
+    @Test
+    public void clearAndValues() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(0xAABBCCDDEEFFL, "a");
+        map.put(0x112233445566L, "b");
+        List<String> values = map.addValuesTo(new ArrayList<String>());
+        Collections.sort(values);
+        assertEquals("[a, b]", values.toString());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(0xAABBCCDDEEFFL));
+        assertTrue(map.addValuesTo(new ArrayList<String>()).isEmpty());
+        map.put(0xAABBCCDDEEFFL, "c");
+        assertEquals("c", map.get(0xAABBCCDDEEFFL));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        new LongHashMap<String>().put(1L, null);
+    }
+}
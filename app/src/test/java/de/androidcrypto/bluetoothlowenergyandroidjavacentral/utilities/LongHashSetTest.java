@@ -0,0 +1,56 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Primitive membership checks, see LongHashSet
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void addAndContains() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(1L));
+        assertTrue(set.add(1L));
+        assertTrue(set.add(0L)); // 0 is a valid key
+        assertTrue(set.add(-1L));
+        assertFalse(set.add(1L));
+        assertTrue(set.contains(1L));
+        assertTrue(set.contains(0L));
+        assertTrue(set.contains(-1L));
+        assertFalse(set.contains(2L));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void growsPastItsCapacity() {
+        LongHashSet set = new LongHashSet(4);
+        Set<Long> expected = new HashSet<Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            long key = random.nextLong() & 0xFFFFFFFFFFFFL; // packed MAC addresses are 48 bits
+            assertEquals(expected.add(key), set.add(key));
+        }
+        assertEquals(expected.size(), set.size());
+        for (Long key : expected) {
+            assertTrue(set.contains(key));
+        }
+    }
+
+    @Test
+    public void clearRemovesEveryKey() {
+        LongHashSet set = new LongHashSet();
+        set.add(DataConverter.macAddressToLong("AA:BB:CC:DD:EE:FF"));
+        set.add(0L);
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0L));
+        assertTrue(set.add(DataConverter.macAddressToLong("AA:BB:CC:DD:EE:FF")));
+    }
+}
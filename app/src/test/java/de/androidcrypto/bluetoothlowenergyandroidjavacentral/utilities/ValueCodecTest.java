@@ -0,0 +1,143 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of Characteristic values by their Presentation Format, see ValueCodec
+ */
+public class ValueCodecTest {
+    private static final ValueCodec SFLOAT = new ValueCodec(ValueCodec.FORMAT_SFLOAT, 0, ValueCodec.UNIT_UNITLESS);
+    private static final ValueCodec FLOAT = new ValueCodec(ValueCodec.FORMAT_FLOAT, 0, ValueCodec.UNIT_UNITLESS);
+    private static final int UNIT_CELSIUS = 0x272F;
+
+    private static byte[] uint16Le(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8)};
+    }
+
+    private static byte[] uint32Le(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+    }
+
+    private static String format(ValueCodec codec, byte[] value) {
+        return codec.format(new StringBuilder(), value, 0, value.length).toString();
+    }
+
+    @Test
+    public void sfloat_specialValues() {
+        assertTrue(Double.isNaN(SFLOAT.decodeDouble(uint16Le(0x07FF), 0))); // NaN
+        assertTrue(Double.isNaN(SFLOAT.decodeDouble(uint16Le(0x0800), 0))); // not at this resolution
+        assertTrue(Double.isNaN(SFLOAT.decodeDouble(uint16Le(0x0801), 0))); // reserved
+        assertEquals(Double.POSITIVE_INFINITY, SFLOAT.decodeDouble(uint16Le(0x07FE), 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, SFLOAT.decodeDouble(uint16Le(0x0802), 0), 0);
+    }
+
+    @Test
+    public void sfloat_values() {
+        assertEquals(11.4, SFLOAT.decodeDouble(uint16Le(0xF072), 0), 0); // 114 * 10^-1
+        assertEquals(12.34, SFLOAT.decodeDouble(uint16Le(0xE4D2), 0), 0); // 1234 * 10^-2
+        assertEquals(-1.0, SFLOAT.decodeDouble(uint16Le(0x0FFF), 0), 0); // mantissa -1
+        assertEquals(2000.0, SFLOAT.decodeDouble(uint16Le(0x3002), 0), 0); // 2 * 10^3
+        assertEquals(0.0, SFLOAT.decodeDouble(uint16Le(0x0000), 0), 0);
+    }
+
+    @Test
+    public void float_specialValues() {
+        assertTrue(Double.isNaN(FLOAT.decodeDouble(uint32Le(0x007FFFFF), 0))); // NaN
+        assertTrue(Double.isNaN(FLOAT.decodeDouble(uint32Le(0x00800000), 0))); // not at this resolution
+        assertTrue(Double.isNaN(FLOAT.decodeDouble(uint32Le(0x00800001), 0))); // reserved
+        assertEquals(Double.POSITIVE_INFINITY, FLOAT.decodeDouble(uint32Le(0x007FFFFE), 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, FLOAT.decodeDouble(uint32Le(0x00800002), 0), 0);
+    }
+
+    @Test
+    public void float_values() {
+        assertEquals(36.4, FLOAT.decodeDouble(uint32Le(0xFF00016C), 0), 0); // 364 * 10^-1
+        assertEquals(23.45, FLOAT.decodeDouble(uint32Le(0xFE000929), 0), 0); // 2345 * 10^-2
+        assertEquals(-5.0, FLOAT.decodeDouble(uint32Le(0x00FFFFFB), 0), 0); // mantissa -5
+        assertEquals(7000.0, FLOAT.decodeDouble(uint32Le(0x03000007), 0), 0);
+    }
+
+    @Test
+    public void negativeExponent_isExact() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_UINT16, -2, ValueCodec.UNIT_UNITLESS);
+        assertEquals(2345, codec.decodeLong(uint16Le(2345), 0));
+        assertEquals(23.45, codec.decodeDouble(uint16Le(2345), 0), 0);
+        assertEquals("23.45", format(codec, uint16Le(2345)));
+
+        ValueCodec celsius = new ValueCodec(ValueCodec.FORMAT_SINT16, -2, UNIT_CELSIUS);
+        assertEquals(-23.45, celsius.decodeDouble(uint16Le(-2345), 0), 0);
+        assertEquals("-23.45 \u00B0C", format(celsius, uint16Le(-2345)));
+    }
+
+    @Test
+    public void positiveExponent() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_UINT8, 3, ValueCodec.UNIT_UNITLESS);
+        assertEquals(42000.0, codec.decodeDouble(new byte[]{42}, 0), 0);
+    }
+
+    @Test
+    public void sint12_signExtends() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_SINT12, 0, ValueCodec.UNIT_UNITLESS);
+        assertEquals(2047, codec.decodeLong(uint16Le(0x07FF), 0));
+        assertEquals(-2048, codec.decodeLong(uint16Le(0x0800), 0));
+        assertEquals(-1, codec.decodeLong(uint16Le(0x0FFF), 0));
+        assertEquals(-1, codec.decodeLong(uint16Le(0xFFFF), 0)); // bits above the 12 are ignored
+        assertEquals(5, codec.decodeLong(uint16Le(0xF005), 0));
+    }
+
+    @Test
+    public void sint48_signExtends() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_SINT48, 0, ValueCodec.UNIT_UNITLESS);
+        byte[] minusTwo = {(byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertEquals(-2L, codec.decodeLong(minusTwo, 0));
+        byte[] smallest = {0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x80};
+        assertEquals(-(1L << 47), codec.decodeLong(smallest, 0));
+        byte[] largest = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F};
+        assertEquals((1L << 47) - 1, codec.decodeLong(largest, 0));
+
+        ValueCodec unsigned = new ValueCodec(ValueCodec.FORMAT_UINT48, 0, ValueCodec.UNIT_UNITLESS);
+        assertEquals((1L << 48) - 2, unsigned.decodeLong(minusTwo, 0));
+    }
+
+    @Test
+    public void uint64_topBitSet() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_UINT64, 0, ValueCodec.UNIT_UNITLESS);
+        byte[] max = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertEquals(-1L, codec.decodeLong(max, 0)); // the raw 64 bits
+        assertEquals("18446744073709551615", format(codec, max));
+        assertEquals(18446744073709551615.0, codec.decodeDouble(max, 0), 0);
+
+        byte[] topBitOnly = {0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x80};
+        assertEquals("9223372036854775808", format(codec, topBitOnly));
+        byte[] topBitAndTen = {0x0A, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x80};
+        assertEquals("9223372036854775818", format(codec, topBitAndTen));
+
+        ValueCodec signed = new ValueCodec(ValueCodec.FORMAT_SINT64, 0, ValueCodec.UNIT_UNITLESS);
+        assertEquals("-1", format(signed, max));
+    }
+
+    @Test
+    public void presentationFormat() {
+        // sint16, exponent -2, degrees Celsius, name space and description
+        byte[] descriptor = {0x0E, (byte) 0xFE, 0x2F, 0x27, 0x01, 0x00, 0x00};
+        ValueCodec codec = ValueCodec.fromPresentationFormat(descriptor);
+        assertEquals(ValueCodec.FORMAT_SINT16, codec.getFormat());
+        assertEquals(-2, codec.getExponent());
+        assertEquals(UNIT_CELSIUS, codec.getUnit());
+        assertEquals(2, codec.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void presentationFormat_tooShort() {
+        ValueCodec.fromPresentationFormat(new byte[]{0x0E, 0x00});
+    }
+
+    @Test
+    public void format_shortOrUnknownValueAsHex() {
+        ValueCodec codec = new ValueCodec(ValueCodec.FORMAT_UINT32, 0, ValueCodec.UNIT_UNITLESS);
+        assertEquals("01 02 ", format(codec, new byte[]{0x01, 0x02}));
+        assertEquals("h\u00E9", format(ValueCodec.UTF8, new byte[]{0x68, (byte) 0xC3, (byte) 0xA9}));
+    }
+}
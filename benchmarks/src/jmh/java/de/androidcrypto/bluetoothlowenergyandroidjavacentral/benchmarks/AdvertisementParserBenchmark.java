@@ -0,0 +1,101 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.AdvertisementParser;
+
+/**
+ * Parsing scan records the way the scan callbacks do: one parser reused for
+ * a stream of advertisements from deviceCount different Peripherals.
+ *
+ * recordSize 31 is a legacy advertisement, 62 adds a scan response.
+ */
+@State(Scope.Thread)
+public class AdvertisementParserBenchmark {
+    @Param({"31", "62"})
+    public int recordSize;
+
+    @Param({"1", "100", "1000"})
+    public int deviceCount;
+
+    private byte[][] mScanRecords;
+    private AdvertisementParser mParser;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mScanRecords = new byte[deviceCount][];
+        for (int device = 0; device < deviceCount; device++) {
+            mScanRecords[device] = buildScanRecord(device, random);
+        }
+        mParser = new AdvertisementParser();
+    }
+
+    private byte[] buildScanRecord(int device, Random random) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        // flags
+        record.write(2);
+        record.write(AdvertisementParser.TYPE_FLAGS);
+        record.write(0x06);
+        // one 128 bit service UUID
+        record.write(17);
+        record.write(AdvertisementParser.TYPE_SERVICE_UUIDS_128_BIT_COMPLETE);
+        byte[] uuid = new byte[16];
+        random.nextBytes(uuid);
+        record.write(uuid, 0, uuid.length);
+        // manufacturer data fills whatever is left of the advertisement
+        int manufacturerLength = Math.max(3, 31 - record.size() - 2);
+        record.write(manufacturerLength + 1);
+        record.write(AdvertisementParser.TYPE_MANUFACTURER_SPECIFIC_DATA);
+        byte[] manufacturerData = new byte[manufacturerLength];
+        random.nextBytes(manufacturerData);
+        manufacturerData[0] = 0x59; // Nordic Semiconductor
+        manufacturerData[1] = 0x00;
+        record.write(manufacturerData, 0, manufacturerData.length);
+        if (recordSize > 31) {
+            // the scan response carries the name and the TX power level
+            byte[] name = ("Peripheral " + device).getBytes(Charset.forName("UTF-8"));
+            record.write(name.length + 1);
+            record.write(AdvertisementParser.TYPE_LOCAL_NAME_COMPLETE);
+            record.write(name, 0, name.length);
+            record.write(2);
+            record.write(AdvertisementParser.TYPE_TX_POWER_LEVEL);
+            record.write(-8);
+        }
+        // Android hands over the records zero padded
+        byte[] padded = new byte[Math.max(recordSize, record.size())];
+        System.arraycopy(record.toByteArray(), 0, padded, 0, record.size());
+        return padded;
+    }
+
+    private byte[] nextScanRecord() {
+        byte[] scanRecord = mScanRecords[mNext];
+        mNext = (mNext + 1) % deviceCount;
+        return scanRecord;
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return mParser.parse(nextScanRecord());
+    }
+
+    @Benchmark
+    public void parseAndReadFields(Blackhole blackhole) {
+        mParser.parse(nextScanRecord());
+        blackhole.consume(mParser.getFlags());
+        blackhole.consume(mParser.getTxPowerLevel());
+        blackhole.consume(mParser.getLocalName());
+        blackhole.consume(mParser.getServiceUuid(0));
+        blackhole.consume(mParser.getManufacturerData(mParser.findManufacturerData(0x0059)));
+    }
+}
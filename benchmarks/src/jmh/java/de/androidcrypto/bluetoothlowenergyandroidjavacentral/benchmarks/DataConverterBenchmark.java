@@ -0,0 +1,84 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+
+/**
+ * Converting characteristic values for display and parsing.
+ *
+ * The payload sizes cover a 4 byte value, the 20 byte payload of the default MTU
+ * and the 244 byte payload of a 247 byte MTU.
+ */
+@State(Scope.Thread)
+public class DataConverterBenchmark {
+    @Param({"4", "20", "244"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private byte[] mIntBytes;
+    private byte[] mLongBytes;
+    private final StringBuilder mHexBuilder = new StringBuilder();
+    private char[] mHexChars;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mPayload = new byte[payloadSize];
+        random.nextBytes(mPayload);
+        mIntBytes = new byte[Math.min(payloadSize, 4)];
+        random.nextBytes(mIntBytes);
+        mLongBytes = new byte[Math.min(payloadSize, 8)];
+        random.nextBytes(mLongBytes);
+        mHexChars = new char[payloadSize * DataConverter.HEX_CHARS_PER_BYTE];
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return DataConverter.bytesToHex(mPayload);
+    }
+
+    @Benchmark
+    public int bytesToHexIntoArray() {
+        return DataConverter.bytesToHex(mPayload, 0, mPayload.length, mHexChars, 0);
+    }
+
+    @Benchmark
+    public int appendHex() {
+        mHexBuilder.setLength(0);
+        return DataConverter.appendHex(mHexBuilder, mPayload, 0, mPayload.length).length();
+    }
+
+    @Benchmark
+    public int bytesToInt() {
+        return DataConverter.bytesToInt(mIntBytes);
+    }
+
+    @Benchmark
+    public float bytesToFloat() {
+        return DataConverter.bytesToFloat(mIntBytes);
+    }
+
+    @Benchmark
+    public long bytesToLong() {
+        return DataConverter.bytesToLong(mLongBytes);
+    }
+
+    /**
+     * Decode every 16 bit field of the payload, as when unpacking a notification
+     */
+    @Benchmark
+    public int readInt16LeFields() {
+        int sum = 0;
+        for (int offset = 0; offset + 2 <= mPayload.length; offset += 2) {
+            sum += DataConverter.readInt16Le(mPayload, offset);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,102 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.DataConverter;
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.utilities.LongHashMap;
+
+/**
+ * De-duplicating scan results by MAC address, as BlePeripheralRegistry does.
+ *
+ * BlePeripheralRegistry needs a BluetoothDevice, which only exists on Android, so this
+ * measures its lookup path on its own: pack the MAC address into a long and look it up in a
+ * LongHashMap, as the registry does, against boxing the long into a ConcurrentHashMap key,
+ * and against keying the map by the upper cased address String.
+ * Every call sees the next scan result of a round robin over deviceCount Peripherals,
+ * so after the first round every lookup is a hit, as it is during a long scan.
+ */
+@State(Scope.Thread)
+public class PeripheralDeduplicationBenchmark {
+    @Param({"10", "100", "1000"})
+    public int deviceCount;
+
+    private String[] mMacAddresses;
+    private final LongHashMap<int[]> mByPrimitiveAddress = new LongHashMap<int[]>();
+    private final ConcurrentHashMap<Long, int[]> mByPackedAddress = new ConcurrentHashMap<Long, int[]>();
+    private final ConcurrentHashMap<String, int[]> mByAddress = new ConcurrentHashMap<String, int[]>();
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mMacAddresses = new String[deviceCount];
+        for (int device = 0; device < deviceCount; device++) {
+            byte[] address = new byte[6];
+            random.nextBytes(address);
+            StringBuilder macAddress = new StringBuilder();
+            for (int i = 0; i < address.length; i++) {
+                if (i > 0) macAddress.append(':');
+                macAddress.append(String.format(Locale.US, "%02X", address[i] & 0xFF));
+            }
+            mMacAddresses[device] = macAddress.toString();
+        }
+        mByPrimitiveAddress.clear();
+        mByPackedAddress.clear();
+        mByAddress.clear();
+    }
+
+    private String nextMacAddress() {
+        String macAddress = mMacAddresses[mNext];
+        mNext = (mNext + 1) % deviceCount;
+        return macAddress;
+    }
+
+    @Benchmark
+    public long macAddressToLong() {
+        return DataConverter.macAddressToLong(nextMacAddress());
+    }
+
+    @Benchmark
+    public boolean addOrUpdateByPrimitiveAddress() {
+        long key = DataConverter.macAddressToLong(nextMacAddress());
+        synchronized (mByPrimitiveAddress) {
+            int[] rssi = mByPrimitiveAddress.get(key);
+            if (rssi != null) {
+                rssi[0] = -60;
+                return false;
+            }
+            mByPrimitiveAddress.put(key, new int[]{-60});
+            return true;
+        }
+    }
+
+    @Benchmark
+    public boolean addOrUpdateByPackedAddress() {
+        long key = DataConverter.macAddressToLong(nextMacAddress());
+        int[] rssi = mByPackedAddress.get(key);
+        if (rssi != null) {
+            rssi[0] = -60;
+            return false;
+        }
+        return mByPackedAddress.putIfAbsent(key, new int[]{-60}) == null;
+    }
+
+    @Benchmark
+    public boolean addOrUpdateByAddress() {
+        String key = nextMacAddress().toUpperCase(Locale.US);
+        int[] rssi = mByAddress.get(key);
+        if (rssi != null) {
+            rssi[0] = -60;
+            return false;
+        }
+        return mByAddress.putIfAbsent(key, new int[]{-60}) == null;
+    }
+}
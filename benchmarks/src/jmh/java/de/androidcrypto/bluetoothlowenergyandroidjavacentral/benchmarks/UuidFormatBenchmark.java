@@ -0,0 +1,67 @@
+package de.androidcrypto.bluetoothlowenergyandroidjavacentral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.UUID;
+
+import de.androidcrypto.bluetoothlowenergyandroidjavacentral.ble.AdvertisementParser;
+
+/**
+ * Formatting and parsing UUIDs, as the profile screens and the Intents between Activities do,
+ * and expanding the 16 bit UUIDs of an advertisement to full UUIDs.
+ */
+@State(Scope.Thread)
+public class UuidFormatBenchmark {
+    @Param({"10", "1000"})
+    public int uuidCount;
+
+    private UUID[] mUuids;
+    private String[] mUuidStrings;
+    private AdvertisementParser mParser;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mUuids = new UUID[uuidCount];
+        mUuidStrings = new String[uuidCount];
+        for (int i = 0; i < uuidCount; i++) {
+            mUuids[i] = new UUID(random.nextLong(), random.nextLong());
+            mUuidStrings[i] = mUuids[i].toString();
+        }
+
+        // an advertisement listing three 16 bit service UUIDs
+        byte[] scanRecord = {
+                7, (byte) AdvertisementParser.TYPE_SERVICE_UUIDS_16_BIT_COMPLETE,
+                0x0D, 0x18, 0x0F, 0x18, 0x0A, 0x18
+        };
+        mParser = new AdvertisementParser();
+        mParser.parse(scanRecord);
+    }
+
+    private int next() {
+        int index = mNext;
+        mNext = (mNext + 1) % uuidCount;
+        return index;
+    }
+
+    @Benchmark
+    public String uuidToString() {
+        return mUuids[next()].toString();
+    }
+
+    @Benchmark
+    public UUID uuidFromString() {
+        return UUID.fromString(mUuidStrings[next()]);
+    }
+
+    @Benchmark
+    public UUID expandShortUuid() {
+        return mParser.getServiceUuid(next() % 3);
+    }
+}